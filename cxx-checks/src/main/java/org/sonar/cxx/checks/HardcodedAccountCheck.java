@@ -51,7 +51,7 @@ public class HardcodedAccountCheck extends SquidCheck<Grammar> {
 */
 
   private static final String DEFAULT_REGULAR_EXPRESSION = "\\bDSN\\b.*=.*;\\b(UID|PWD)\\b=.*;";
-  private static Matcher reg = null;
+  private Matcher reg = null;
 
   @RuleProperty(
       key = "regularExpression",
@@ -21,7 +21,7 @@ package org.sonar.cxx.checks;
 
 import org.sonar.check.Priority;
 import org.sonar.check.Rule;
-import org.sonar.cxx.parser.CxxParser;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.cxx.preprocessor.CxxPreprocessor;
 import org.sonar.squidbridge.checks.SquidCheck;
 
@@ -34,7 +34,8 @@ import com.sonar.sslr.api.Grammar;
 public class MissingIncludeFileCheck extends SquidCheck<Grammar> {
   @Override
   public void leaveFile(AstNode astNode) {
-    for(CxxPreprocessor.Include missingInclude : CxxParser.getMissingIncludeFiles(getContext().getFile())) {
+    CxxPreprocessor preprocessor = ((CxxVisitorContext<Grammar>) getContext()).getPreprocessor();
+    for(CxxPreprocessor.Include missingInclude : preprocessor.getMissingIncludeFiles(getContext().getFile())) {
       getContext().createLineViolation(this, "Unable to find the source for '" + missingInclude.getPath() + "'.",
           missingInclude.getLine());
     }
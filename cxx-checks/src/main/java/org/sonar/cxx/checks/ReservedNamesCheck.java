@@ -42,7 +42,7 @@ import com.sonar.sslr.api.Grammar;
 //similar Vera++ rule T002
 public class ReservedNamesCheck extends SquidCheck<Grammar> implements CxxCharsetAwareVisitor {
 
-  private static String[] keywords = null;
+  private String[] keywords = null;
   private Charset charset;
 
   @Override
@@ -0,0 +1,511 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Clang JSON compilation database (compile_commands.json). It provides the
+ * defines, include directories, force includes and the language of every
+ * translation unit, as passed to the compiler.
+ */
+public final class CompilationDatabase {
+  private static final Logger LOG = LoggerFactory.getLogger("CompilationDatabase");
+
+  private final Map<File, FileSettings> settings = new HashMap<File, FileSettings>();
+
+  private CompilationDatabase() {
+  }
+
+  /**
+   * Reads the compilation database from the given file.
+   *
+   * @throws IOException if the file cannot be read or is no valid compilation database
+   */
+  public static CompilationDatabase parse(File file) throws IOException {
+    Object json = new JsonReader(FileUtils.readFileToString(file, "UTF-8")).read();
+    if (!(json instanceof List)) {
+      throw new IOException("'" + file + "' does not contain an array of compile commands");
+    }
+
+    CompilationDatabase db = new CompilationDatabase();
+    for (Object element : (List<?>) json) {
+      if (!(element instanceof Map)) {
+        throw new IOException("'" + file + "' contains an invalid compile command: " + element);
+      }
+      db.addCommand((Map<?, ?>) element);
+    }
+    LOG.info("Read {} compile commands from '{}'", db.settings.size(), file);
+    return db;
+  }
+
+  /**
+   * @return the settings of the given source file or null, if the file is not in the database
+   */
+  public FileSettings getSettings(File file) {
+    return settings.get(canonical(file));
+  }
+
+  /**
+   * Groups the given files by their settings, keeping the order of the files.
+   * Files which are not in the database are grouped under the key null.
+   */
+  public Map<FileSettings, List<File>> group(List<File> files) {
+    Map<FileSettings, List<File>> groups = new LinkedHashMap<FileSettings, List<File>>();
+    for (File file : files) {
+      FileSettings key = getSettings(file);
+      List<File> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<File>();
+        groups.put(key, group);
+      }
+      group.add(file);
+    }
+    return groups;
+  }
+
+  /**
+   * Creates the configuration for files with the given settings. Defines and
+   * force includes of the database follow the globally configured ones, include
+   * directories of the database are searched first.
+   */
+  public static CxxConfiguration configure(CxxConfiguration base, FileSettings fileSettings) {
+    CxxConfiguration conf = base.copy();
+    if (fileSettings == null) {
+      return conf;
+    }
+
+    List<String> defines = new ArrayList<String>(base.getDefines());
+    defines.addAll(fileSettings.defines);
+    conf.setDefines(defines);
+
+    List<String> includeDirectories = new ArrayList<String>(fileSettings.includeDirectories);
+    includeDirectories.addAll(base.getIncludeDirectories());
+    conf.setIncludeDirectories(includeDirectories);
+
+    List<String> forceIncludes = new ArrayList<String>(base.getForceIncludeFiles());
+    forceIncludes.addAll(fileSettings.forceIncludes);
+    conf.setForceIncludeFiles(forceIncludes);
+
+    if (fileSettings.isC()) {
+      conf.setCFilesPatterns(new String[] {"*"});
+    } else if (fileSettings.isCxx()) {
+      conf.setCFilesPatterns(new String[0]);
+    }
+    return conf;
+  }
+
+  private void addCommand(Map<?, ?> command) throws IOException {
+    Object directory = command.get("directory");
+    Object file = command.get("file");
+    if (!(directory instanceof String) || !(file instanceof String)) {
+      throw new IOException("compile command without 'directory' or 'file': " + command);
+    }
+
+    List<String> arguments = new ArrayList<String>();
+    Object args = command.get("arguments");
+    if (args instanceof List) {
+      for (Object arg : (List<?>) args) {
+        arguments.add(String.valueOf(arg));
+      }
+    } else if (command.get("command") instanceof String) {
+      arguments = splitCommandLine((String) command.get("command"));
+    } else {
+      throw new IOException("compile command without 'arguments' or 'command': " + command);
+    }
+
+    File dir = new File((String) directory);
+    settings.put(canonical(resolve(dir, (String) file)), FileSettings.fromArguments(dir, arguments));
+  }
+
+  static File resolve(File directory, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(directory, path);
+  }
+
+  private static File canonical(File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException e) {
+      return file.getAbsoluteFile();
+    }
+  }
+
+  /**
+   * Splits a command line into its arguments the way a POSIX shell does,
+   * honoring quotes and backslash escapes.
+   */
+  static List<String> splitCommandLine(String commandLine) {
+    List<String> arguments = new ArrayList<String>();
+    StringBuilder current = new StringBuilder();
+    boolean inArgument = false;
+    char quote = 0;
+    for (int i = 0; i < commandLine.length(); i++) {
+      char c = commandLine.charAt(i);
+      if (quote == '\'') {
+        if (c == '\'') {
+          quote = 0;
+        } else {
+          current.append(c);
+        }
+      } else if (c == '\\' && i + 1 < commandLine.length()
+        && (quote == 0 || "\"\\$`".indexOf(commandLine.charAt(i + 1)) >= 0)) {
+        current.append(commandLine.charAt(++i));
+        inArgument = true;
+      } else if (quote == '"') {
+        if (c == '"') {
+          quote = 0;
+        } else {
+          current.append(c);
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+        inArgument = true;
+      } else if (Character.isWhitespace(c)) {
+        if (inArgument) {
+          arguments.add(current.toString());
+          current.setLength(0);
+          inArgument = false;
+        }
+      } else {
+        current.append(c);
+        inArgument = true;
+      }
+    }
+    if (inArgument) {
+      arguments.add(current.toString());
+    }
+    return arguments;
+  }
+
+  /**
+   * The part of a compile command which affects the analysis. Files with equal
+   * settings can be scanned with the same configuration.
+   */
+  public static final class FileSettings {
+    private final List<String> defines;
+    private final List<String> includeDirectories;
+    private final List<String> forceIncludes;
+    private final String language;
+
+    FileSettings(List<String> defines, List<String> includeDirectories, List<String> forceIncludes, String language) {
+      this.defines = Collections.unmodifiableList(defines);
+      this.includeDirectories = Collections.unmodifiableList(includeDirectories);
+      this.forceIncludes = Collections.unmodifiableList(forceIncludes);
+      this.language = language;
+    }
+
+    static FileSettings fromArguments(File directory, List<String> arguments) {
+      Map<String, String> defines = new LinkedHashMap<String, String>();
+      List<String> includeDirectories = new ArrayList<String>();
+      List<String> forceIncludes = new ArrayList<String>();
+      String language = null;
+
+      Iterator<String> it = arguments.iterator();
+      while (it.hasNext()) {
+        String arg = it.next();
+        if (arg.startsWith("-D")) {
+          String define = optionValue(arg, "-D", it);
+          if (define != null) {
+            addDefine(defines, define);
+          }
+        } else if (arg.startsWith("-U")) {
+          String name = optionValue(arg, "-U", it);
+          if (name != null) {
+            defines.remove(name);
+          }
+        } else if (arg.startsWith("-I")) {
+          String dir = optionValue(arg, "-I", it);
+          if (dir != null) {
+            includeDirectories.add(resolve(directory, dir).getPath());
+          }
+        } else if ("-isystem".equals(arg) || "-iquote".equals(arg) || "-idirafter".equals(arg)) {
+          if (it.hasNext()) {
+            includeDirectories.add(resolve(directory, it.next()).getPath());
+          }
+        } else if ("-include".equals(arg)) {
+          if (it.hasNext()) {
+            forceIncludes.add(resolve(directory, it.next()).getPath());
+          }
+        } else if (arg.startsWith("-std=")) {
+          language = languageOf(arg.substring("-std=".length()));
+        } else if (arg.startsWith("-x")) {
+          String lang = optionValue(arg, "-x", it);
+          if ("c".equals(lang) || "c-header".equals(lang)) {
+            language = "c";
+          } else if ("c++".equals(lang) || "c++-header".equals(lang)) {
+            language = "c++";
+          }
+        }
+      }
+
+      List<String> defineList = new ArrayList<String>();
+      for (Map.Entry<String, String> define : defines.entrySet()) {
+        defineList.add(define.getKey() + define.getValue());
+      }
+      return new FileSettings(defineList, includeDirectories, forceIncludes, language);
+    }
+
+    private static String optionValue(String arg, String option, Iterator<String> it) {
+      if (arg.length() > option.length()) {
+        return arg.substring(option.length());
+      }
+      return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Converts NAME, NAME=VALUE and NAME(args)=VALUE into the format of
+     * sonar.cxx.defines, i.e. the remainder of a #define line.
+     */
+    private static void addDefine(Map<String, String> defines, String define) {
+      int assign = define.indexOf('=');
+      String head = assign < 0 ? define : define.substring(0, assign);
+      String body = assign < 0 ? "1" : define.substring(assign + 1);
+      int paren = head.indexOf('(');
+      String name = paren < 0 ? head : head.substring(0, paren);
+      defines.put(name, head.substring(name.length()) + " " + body);
+    }
+
+    private static String languageOf(String standard) {
+      if (standard.startsWith("c++") || standard.startsWith("gnu++")) {
+        return "c++";
+      }
+      if (standard.startsWith("c") || standard.startsWith("gnu") || standard.startsWith("iso9899")) {
+        return "c";
+      }
+      return null;
+    }
+
+    public List<String> getDefines() {
+      return defines;
+    }
+
+    public List<String> getIncludeDirectories() {
+      return includeDirectories;
+    }
+
+    public List<String> getForceIncludes() {
+      return forceIncludes;
+    }
+
+    public boolean isC() {
+      return "c".equals(language);
+    }
+
+    public boolean isCxx() {
+      return "c++".equals(language);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof FileSettings)) {
+        return false;
+      }
+      FileSettings other = (FileSettings) obj;
+      return defines.equals(other.defines)
+        && includeDirectories.equals(other.includeDirectories)
+        && forceIncludes.equals(other.forceIncludes)
+        && (language == null ? other.language == null : language.equals(other.language));
+    }
+
+    @Override
+    public int hashCode() {
+      int result = defines.hashCode();
+      result = 31 * result + includeDirectories.hashCode();
+      result = 31 * result + forceIncludes.hashCode();
+      return 31 * result + (language == null ? 0 : language.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return "defines=" + defines + ", includes=" + includeDirectories + ", forceIncludes=" + forceIncludes
+        + (language == null ? "" : ", language=" + language);
+    }
+  }
+
+  /**
+   * A minimal JSON reader, sufficient for compilation databases. Objects are
+   * read into maps, arrays into lists and all scalars into strings.
+   */
+  private static final class JsonReader {
+    private final String text;
+    private int pos = 0;
+
+    JsonReader(String text) {
+      this.text = text;
+    }
+
+    Object read() throws IOException {
+      Object value = readValue();
+      skipWhitespace();
+      if (pos < text.length()) {
+        throw error("unexpected content");
+      }
+      return value;
+    }
+
+    private Object readValue() throws IOException {
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw error("unexpected end");
+      }
+      char c = text.charAt(pos);
+      if (c == '{') {
+        return readObject();
+      } else if (c == '[') {
+        return readArray();
+      } else if (c == '"') {
+        return readString();
+      }
+      int start = pos;
+      while (pos < text.length() && ",]} \t\r\n".indexOf(text.charAt(pos)) < 0) {
+        pos++;
+      }
+      if (start == pos) {
+        throw error("value expected");
+      }
+      String literal = text.substring(start, pos);
+      return "null".equals(literal) ? null : literal;
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      pos++;
+      skipWhitespace();
+      if (consume('}')) {
+        return object;
+      }
+      do {
+        skipWhitespace();
+        if (pos >= text.length() || text.charAt(pos) != '"') {
+          throw error("member name expected");
+        }
+        String name = readString();
+        skipWhitespace();
+        if (!consume(':')) {
+          throw error("':' expected");
+        }
+        object.put(name, readValue());
+        skipWhitespace();
+      } while (consume(','));
+      if (!consume('}')) {
+        throw error("'}' expected");
+      }
+      return object;
+    }
+
+    private List<Object> readArray() throws IOException {
+      List<Object> array = new ArrayList<Object>();
+      pos++;
+      skipWhitespace();
+      if (consume(']')) {
+        return array;
+      }
+      do {
+        array.add(readValue());
+        skipWhitespace();
+      } while (consume(','));
+      if (!consume(']')) {
+        throw error("']' expected");
+      }
+      return array;
+    }
+
+    private String readString() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      pos++;
+      while (pos < text.length()) {
+        char c = text.charAt(pos++);
+        if (c == '"') {
+          return sb.toString();
+        }
+        if (c != '\\') {
+          sb.append(c);
+        } else if (pos < text.length()) {
+          char escaped = text.charAt(pos++);
+          switch (escaped) {
+            case 'b':
+              sb.append('\b');
+              break;
+            case 'f':
+              sb.append('\f');
+              break;
+            case 'n':
+              sb.append('\n');
+              break;
+            case 'r':
+              sb.append('\r');
+              break;
+            case 't':
+              sb.append('\t');
+              break;
+            case 'u':
+              if (pos + 4 > text.length()) {
+                throw error("invalid unicode escape");
+              }
+              try {
+                sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+              } catch (NumberFormatException e) {
+                throw error("invalid unicode escape");
+              }
+              pos += 4;
+              break;
+            default:
+              sb.append(escaped);
+          }
+        }
+      }
+      throw error("unterminated string");
+    }
+
+    private boolean consume(char c) {
+      if (pos < text.length() && text.charAt(pos) == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private IOException error(String message) {
+      return new IOException("Invalid JSON at offset " + pos + ": " + message);
+    }
+  }
+}
@@ -36,7 +36,6 @@ import org.sonar.squidbridge.CommentAnalyser;
 import org.sonar.squidbridge.SourceCodeBuilderCallback;
 import org.sonar.squidbridge.SourceCodeBuilderVisitor;
 import org.sonar.squidbridge.SquidAstVisitor;
-import org.sonar.squidbridge.SquidAstVisitorContextImpl;
 import org.sonar.squidbridge.api.SourceClass;
 import org.sonar.squidbridge.api.SourceCode;
 import org.sonar.squidbridge.api.SourceFile;
@@ -85,7 +84,15 @@ public final class CxxAstScanner {
   }
 
   public static AstScanner<Grammar> create(CxxConfiguration conf, SquidAstVisitor<Grammar>... visitors) {
-    final SquidAstVisitorContextImpl<Grammar> context = new SquidAstVisitorContextImpl<Grammar>(new SourceProject("Cxx Project"));
+    return create(new CxxVisitorContext<Grammar>(new SourceProject("Cxx Project")), conf, visitors);
+  }
+
+  /**
+   * Creates a scanner which uses the given context. The context provides access
+   * to the preprocessor (and thus to the include information) of this scanner.
+   */
+  public static AstScanner<Grammar> create(final CxxVisitorContext<Grammar> context, CxxConfiguration conf,
+                                           SquidAstVisitor<Grammar>... visitors) {
     final Parser<Grammar> parser = CxxParser.create(context, conf);
 
     AstScanner.Builder<Grammar> builder = AstScanner.<Grammar> builder(context).setBaseParser(parser);
@@ -194,7 +201,7 @@ public final class CxxAstScanner {
         .build());
 
     // to emit a 'new file' event to the internals of the plugin
-    builder.withSquidAstVisitor(new CxxFileVisitor(context));
+    builder.withSquidAstVisitor(new CxxFileVisitor<Grammar>(context));
 
     // log syntax errors
     builder.withSquidAstVisitor(new CxxParseErrorLoggerVisitor(context));
@@ -19,15 +19,21 @@
  */
 package org.sonar.cxx;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.sonar.cxx.parser.ParseProfile;
 import org.sonar.squidbridge.api.SquidConfiguration;
 
 public class CxxConfiguration extends SquidConfiguration {
 
+  public static final long DEFAULT_MAX_EXPANDED_TOKENS = 20000000;
+  public static final int DEFAULT_MAX_EXPANSION_DEPTH = 256;
+  public static final int DEFAULT_MAX_PREPROCESSING_SECONDS = 300;
+
   private boolean ignoreHeaderComments = false;
   private List<String> defines = new ArrayList<String>();
   private List<String> includeDirectories = new ArrayList<String>();
@@ -35,7 +41,13 @@ public class CxxConfiguration extends SquidConfiguration {
   private List<String> headerFileSuffixes = new ArrayList<String>();
   private String baseDir;
   private boolean errorRecoveryEnabled = true;
+  private boolean compactAst = false;
   private List<String> cFilesPatterns = new ArrayList<String>();
+  private long maxExpandedTokens = DEFAULT_MAX_EXPANDED_TOKENS;
+  private int maxExpansionDepth = DEFAULT_MAX_EXPANSION_DEPTH;
+  private int maxPreprocessingSeconds = DEFAULT_MAX_PREPROCESSING_SECONDS;
+  private File prefixSnapshotDirectory = null;
+  private ParseProfile parseProfile = null;
 
   public CxxConfiguration() {
   }
@@ -44,6 +56,28 @@ public class CxxConfiguration extends SquidConfiguration {
     super(charset);
   }
 
+  /**
+   * @return a configuration with the same settings, which can be changed independently
+   */
+  public CxxConfiguration copy() {
+    CxxConfiguration conf = new CxxConfiguration(getCharset());
+    conf.ignoreHeaderComments = ignoreHeaderComments;
+    conf.defines = new ArrayList<String>(defines);
+    conf.includeDirectories = new ArrayList<String>(includeDirectories);
+    conf.forceIncludeFiles = new ArrayList<String>(forceIncludeFiles);
+    conf.headerFileSuffixes = new ArrayList<String>(headerFileSuffixes);
+    conf.baseDir = baseDir;
+    conf.errorRecoveryEnabled = errorRecoveryEnabled;
+    conf.compactAst = compactAst;
+    conf.cFilesPatterns = new ArrayList<String>(cFilesPatterns);
+    conf.maxExpandedTokens = maxExpandedTokens;
+    conf.maxExpansionDepth = maxExpansionDepth;
+    conf.maxPreprocessingSeconds = maxPreprocessingSeconds;
+    conf.prefixSnapshotDirectory = prefixSnapshotDirectory;
+    conf.parseProfile = parseProfile;
+    return conf;
+  }
+
   public void setIgnoreHeaderComments(boolean ignoreHeaderComments) {
     this.ignoreHeaderComments = ignoreHeaderComments;
   }
@@ -110,6 +144,32 @@ public class CxxConfiguration extends SquidConfiguration {
     return this.errorRecoveryEnabled;
   }
 
+  /**
+   * In a compact AST the pass-through rules listed in
+   * {@code CxxGrammarImpl.COMPACT_AST_RULES} get no node of their own if
+   * they have a single child.
+   */
+  public void setCompactAst(boolean compactAst) {
+    this.compactAst = compactAst;
+  }
+
+  public boolean getCompactAst() {
+    return compactAst;
+  }
+
+  /**
+   * Parsers created with a parse profile record their per rule statistics
+   * into it, see {@code ParseProfiler}. A copy of the configuration shares
+   * the profile.
+   */
+  public void setParseProfile(ParseProfile parseProfile) {
+    this.parseProfile = parseProfile;
+  }
+
+  public ParseProfile getParseProfile() {
+    return parseProfile;
+  }
+
   public List<String> getCFilesPatterns() {
     return cFilesPatterns;
   }
@@ -133,4 +193,36 @@ public class CxxConfiguration extends SquidConfiguration {
   public List<String> getHeaderFileSuffixes() {
     return this.headerFileSuffixes;
   }
+
+  public void setMaxExpandedTokens(long maxExpandedTokens) {
+    this.maxExpandedTokens = maxExpandedTokens;
+  }
+
+  public long getMaxExpandedTokens() {
+    return maxExpandedTokens;
+  }
+
+  public void setMaxExpansionDepth(int maxExpansionDepth) {
+    this.maxExpansionDepth = maxExpansionDepth;
+  }
+
+  public int getMaxExpansionDepth() {
+    return maxExpansionDepth;
+  }
+
+  public void setMaxPreprocessingSeconds(int maxPreprocessingSeconds) {
+    this.maxPreprocessingSeconds = maxPreprocessingSeconds;
+  }
+
+  public int getMaxPreprocessingSeconds() {
+    return maxPreprocessingSeconds;
+  }
+
+  public void setPrefixSnapshotDirectory(File prefixSnapshotDirectory) {
+    this.prefixSnapshotDirectory = prefixSnapshotDirectory;
+  }
+
+  public File getPrefixSnapshotDirectory() {
+    return prefixSnapshotDirectory;
+  }
 }
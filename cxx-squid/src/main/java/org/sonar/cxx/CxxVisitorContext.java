@@ -0,0 +1,47 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx;
+
+import org.sonar.cxx.preprocessor.CxxPreprocessor;
+import org.sonar.squidbridge.SquidAstVisitorContextImpl;
+import org.sonar.squidbridge.api.SourceProject;
+
+import com.sonar.sslr.api.Grammar;
+
+/**
+ * Visitor context which additionally carries the preprocessor of the
+ * parser it belongs to. Keeping the preprocessor here (instead of in a
+ * static field) allows several scanners to coexist in one JVM.
+ */
+public class CxxVisitorContext<G extends Grammar> extends SquidAstVisitorContextImpl<G> {
+  private CxxPreprocessor preprocessor = null;
+
+  public CxxVisitorContext(SourceProject project) {
+    super(project);
+  }
+
+  public void setPreprocessor(CxxPreprocessor preprocessor) {
+    this.preprocessor = preprocessor;
+  }
+
+  public CxxPreprocessor getPreprocessor() {
+    return preprocessor;
+  }
+}
@@ -31,22 +31,15 @@ public class CharacterLiteralsChannel extends Channel<Lexer> {
 
   private final StringBuilder sb = new StringBuilder();
 
-  private int index;
-  private char ch;
-
   @Override
   public boolean consume(CodeReader code, Lexer output) {
-    int line = code.getLinePosition();
-    int column = code.getColumnPosition();
-    index = 0;
-    readPrefix(code);
-    if ((ch != '\'')) {
-      return false;
-    }
-    if (!read(code)) {
+    int length = match(code);
+    if (length == 0) {
       return false;
     }
-    for (int i = 0; i < index; i++) {
+    int line = code.getLinePosition();
+    int column = code.getColumnPosition();
+    for (int i = 0; i < length; i++) {
       sb.append((char) code.pop());
     }
     output.addToken(Token.builder()
@@ -60,11 +53,24 @@ public class CharacterLiteralsChannel extends Channel<Lexer> {
     return true;
   }
 
-  private boolean read(CodeReader code) {
+  /**
+   * @return the length of the literal starting at the current position, 0 if
+   *         there is none
+   */
+  public static int match(CodeReader code) {
+    int index = 0;
+    char ch = code.charAt(index);
+    if ((ch == 'u') || (ch == 'U') || ch == 'L') {
+      index++;
+      ch = code.charAt(index);
+    }
+    if (ch != '\'') {
+      return 0;
+    }
     index++;
     while (code.charAt(index) != ch) {
       if (code.charAt(index) == EOF) {
-        return false;
+        return 0;
       }
       if (code.charAt(index) == '\\') {
         // escape
@@ -72,15 +78,6 @@ public class CharacterLiteralsChannel extends Channel<Lexer> {
       }
       index++;
     }
-    index++;
-    return true;
-  }
-
-  private void readPrefix(CodeReader code) {
-    ch = code.charAt(index);
-    if ((ch == 'u') || (ch == 'U') || ch == 'L') {
-      index++;
-      ch = code.charAt(index);
-    }
+    return index + 1;
   }
 }
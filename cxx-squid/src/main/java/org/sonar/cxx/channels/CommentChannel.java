@@ -0,0 +1,104 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.channels;
+
+import org.sonar.sslr.channel.Channel;
+import org.sonar.sslr.channel.CodeReader;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.Trivia;
+import com.sonar.sslr.impl.Lexer;
+
+/**
+ * C++ Standard, Section 2.8 "Comments": line comments and block comments,
+ * recognized in a single pass and added as comment trivia. An unterminated
+ * block comment is not consumed.
+ */
+public class CommentChannel extends Channel<Lexer> {
+  private static final char EOF = (char) -1;
+
+  private final StringBuilder sb = new StringBuilder();
+
+  @Override
+  public boolean consume(CodeReader code, Lexer output) {
+    int length = match(code);
+    if (length == 0) {
+      return false;
+    }
+
+    int line = code.getLinePosition();
+    int column = code.getColumnPosition();
+    for (int i = 0; i < length; i++) {
+      sb.append((char) code.pop());
+    }
+    Token token = Token.builder()
+        .setLine(line)
+        .setColumn(column)
+        .setURI(output.getURI())
+        .setValueAndOriginalValue(sb.toString())
+        .setType(GenericTokenType.COMMENT)
+        .build();
+    output.addTrivia(Trivia.createComment(token));
+    sb.setLength(0);
+    return true;
+  }
+
+  /**
+   * @return the length of the comment starting at the current position, 0 if
+   *         there is none
+   */
+  public static int match(CodeReader code) {
+    if (code.charAt(0) != '/') {
+      return 0;
+    }
+    char next = code.charAt(1);
+    if (next == '/') {
+      return lineCommentLength(code);
+    }
+    if (next == '*') {
+      return blockCommentLength(code);
+    }
+    return 0;
+  }
+
+  private static int lineCommentLength(CodeReader code) {
+    int index = 2;
+    char ch = code.charAt(index);
+    while (ch != '\n' && ch != '\r' && ch != EOF) {
+      ch = code.charAt(++index);
+    }
+    return index;
+  }
+
+  private static int blockCommentLength(CodeReader code) {
+    int index = 2;
+    while (true) {
+      char ch = code.charAt(index);
+      if (ch == EOF) {
+        return 0;
+      }
+      if (ch == '*' && code.charAt(index + 1) == '/') {
+        return index + 2;
+      }
+      index++;
+    }
+  }
+}
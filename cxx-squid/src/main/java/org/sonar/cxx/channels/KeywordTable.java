@@ -0,0 +1,127 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.channels;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sonar.sslr.api.TokenType;
+
+/**
+ * Keyword lookup by a perfect hash: the multiplier of the hash function is
+ * chosen such that no two keywords share a slot, so a lookup needs at most one
+ * comparison and no String has to be created for the word being looked up.
+ */
+public final class KeywordTable {
+  private static final int MAX_SIZE = 1 << 20;
+  private static final int MAX_MULTIPLIER = 1 << 16;
+
+  private final TokenType[] types;
+  private final char[][] words;
+  private final int multiplier;
+  private final int mask;
+
+  public KeywordTable(TokenType... keywords) {
+    // later definitions of the same value win, like in a keyword map
+    Map<String, TokenType> byValue = new LinkedHashMap<String, TokenType>();
+    for (TokenType keyword : keywords) {
+      byValue.put(keyword.getValue(), keyword);
+    }
+    char[][] values = new char[byValue.size()][];
+    int n = 0;
+    for (String value : byValue.keySet()) {
+      values[n++] = value.toCharArray();
+    }
+
+    char[][] slots = null;
+    int m = 0;
+    search:
+    for (int size = Integer.highestOneBit(Math.max(1, values.length)) << 2; size <= MAX_SIZE; size <<= 1) {
+      char[][] candidate = new char[size][];
+      for (m = 31; m < MAX_MULTIPLIER; m += 2) {
+        if (fill(values, candidate, m, size - 1)) {
+          slots = candidate;
+          break search;
+        }
+        Arrays.fill(candidate, null);
+      }
+    }
+    if (slots == null) {
+      throw new IllegalStateException("No perfect hash function found for " + byValue.keySet());
+    }
+
+    this.words = slots;
+    this.multiplier = m;
+    this.mask = slots.length - 1;
+    this.types = new TokenType[slots.length];
+    for (int slot = 0; slot < slots.length; slot++) {
+      if (slots[slot] != null) {
+        types[slot] = byValue.get(new String(slots[slot]));
+      }
+    }
+  }
+
+  /**
+   * @return the keyword spelled by the first {@code length} characters of
+   *         {@code word}, {@code null} if there is none
+   */
+  public TokenType get(char[] word, int length) {
+    return get(word, 0, length);
+  }
+
+  /**
+   * @return the keyword spelled by the {@code length} characters of
+   *         {@code text} starting at {@code offset}, {@code null} if there is
+   *         none
+   */
+  public TokenType get(char[] text, int offset, int length) {
+    int slot = slot(text, offset, length, multiplier, mask);
+    char[] candidate = words[slot];
+    if (candidate == null || candidate.length != length) {
+      return null;
+    }
+    for (int i = 0; i < length; i++) {
+      if (candidate[i] != text[offset + i]) {
+        return null;
+      }
+    }
+    return types[slot];
+  }
+
+  private static boolean fill(char[][] values, char[][] slots, int multiplier, int mask) {
+    for (char[] value : values) {
+      int slot = slot(value, 0, value.length, multiplier, mask);
+      if (slots[slot] != null) {
+        return false;
+      }
+      slots[slot] = value;
+    }
+    return true;
+  }
+
+  private static int slot(char[] text, int offset, int length, int multiplier, int mask) {
+    int h = length;
+    for (int i = offset; i < offset + length; i++) {
+      h = h * multiplier + text[i];
+    }
+    return (h ^ (h >>> 15)) & mask;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.channels;
+
+import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.api.CxxTokenType;
+import org.sonar.sslr.channel.Channel;
+import org.sonar.sslr.channel.CodeReader;
+
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.impl.Lexer;
+
+/**
+ * Numeric literals, recognized in a single pass:
+ * <ul>
+ * <li>C++ Standard, Section 2.14.4 "Floating literals"</li>
+ * <li>C++ Standard, Section 2.14.2 "Integer literals"</li>
+ * <li>C++ Standard, Section 2.14.7 "Pointer literals"</li>
+ * </ul>
+ * The accepted prefix of the input is the same as the one of the former
+ * sequence of regular expression channels: a literal ends at the longest
+ * valid prefix and whatever follows (e.g. a user-defined literal suffix)
+ * is lexed as the next token.
+ */
+public class NumberLiteralsChannel extends Channel<Lexer> {
+  private static final String NULLPTR = CxxKeyword.NULLPTR.getValue();
+
+  private final StringBuilder sb = new StringBuilder();
+
+  @Override
+  public boolean consume(CodeReader code, Lexer output) {
+    int length = match(code);
+    if (length == 0) {
+      return false;
+    }
+
+    int line = code.getLinePosition();
+    int column = code.getColumnPosition();
+    for (int i = 0; i < length; i++) {
+      sb.append((char) code.pop());
+    }
+    output.addToken(Token.builder()
+        .setLine(line)
+        .setColumn(column)
+        .setURI(output.getURI())
+        .setValueAndOriginalValue(sb.toString())
+        .setType(CxxTokenType.NUMBER)
+        .build());
+    sb.setLength(0);
+    return true;
+  }
+
+  /**
+   * @return the length of the literal starting at the current position, 0 if
+   *         there is none
+   */
+  public static int match(CodeReader code) {
+    char ch = code.charAt(0);
+    if (isDigit(ch)) {
+      return matchDigits(code);
+    }
+    if (ch == '.') {
+      int end = skipDigits(code, 1);
+      return end > 1 ? skipFloatSuffix(code, skipExponent(code, end)) : 0;
+    }
+    if (ch == 'n') {
+      return matchNullptr(code);
+    }
+    return 0;
+  }
+
+  private static int matchDigits(CodeReader code) {
+    int digits = skipDigits(code, 0);
+
+    // floating literal with a fraction: 1. 1.5 1.5e3 1.5f
+    if (code.charAt(digits) == '.') {
+      return skipFloatSuffix(code, skipExponent(code, skipDigits(code, digits + 1)));
+    }
+
+    // floating literal without a fraction: 1e3 1e3f
+    int exponent = skipExponent(code, digits);
+    if (exponent > digits) {
+      return skipFloatSuffix(code, exponent);
+    }
+
+    // decimal literal
+    if (code.charAt(0) != '0') {
+      return skipIntegerSuffix(code, digits);
+    }
+
+    // octal literal
+    int octal = skipOctalDigits(code, 1);
+    if (octal > 1) {
+      return skipIntegerSuffix(code, octal);
+    }
+
+    // hexadecimal literal
+    char x = code.charAt(1);
+    if ((x == 'x' || x == 'X') && isHexDigit(code.charAt(2))) {
+      return skipIntegerSuffix(code, skipHexDigits(code, 2));
+    }
+
+    // zero
+    return skipIntegerSuffix(code, 1);
+  }
+
+  private static int matchNullptr(CodeReader code) {
+    for (int i = 1; i < NULLPTR.length(); i++) {
+      if (code.charAt(i) != NULLPTR.charAt(i)) {
+        return 0;
+      }
+    }
+    return NULLPTR.length();
+  }
+
+  private static int skipExponent(CodeReader code, int index) {
+    char ch = code.charAt(index);
+    if (ch != 'e' && ch != 'E') {
+      return index;
+    }
+    int end = index + 1;
+    ch = code.charAt(end);
+    if (ch == '+' || ch == '-') {
+      ch = code.charAt(++end);
+    }
+    if (!isDigit(ch) && ch != '_') {
+      return index;
+    }
+    do {
+      ch = code.charAt(++end);
+    } while (isDigit(ch) || ch == '_');
+    return end;
+  }
+
+  private static int skipFloatSuffix(CodeReader code, int index) {
+    char ch = code.charAt(index);
+    return ch == 'f' || ch == 'F' || ch == 'l' || ch == 'L' ? index + 1 : index;
+  }
+
+  private static int skipIntegerSuffix(CodeReader code, int index) {
+    char ch = code.charAt(index);
+    if (ch == 'u' || ch == 'U') {
+      return skipLongSuffix(code, index + 1);
+    }
+    if (ch == 'l' || ch == 'L') {
+      int end = skipLongSuffix(code, index);
+      ch = code.charAt(end);
+      return ch == 'u' || ch == 'U' ? end + 1 : end;
+    }
+    return index;
+  }
+
+  private static int skipLongSuffix(CodeReader code, int index) {
+    char ch = code.charAt(index);
+    if (ch != 'l' && ch != 'L') {
+      return index;
+    }
+    return code.charAt(index + 1) == ch ? index + 2 : index + 1;
+  }
+
+  private static int skipDigits(CodeReader code, int index) {
+    int end = index;
+    while (isDigit(code.charAt(end))) {
+      end++;
+    }
+    return end;
+  }
+
+  private static int skipOctalDigits(CodeReader code, int index) {
+    int end = index;
+    char ch = code.charAt(end);
+    while (ch >= '0' && ch <= '7') {
+      ch = code.charAt(++end);
+    }
+    return end;
+  }
+
+  private static int skipHexDigits(CodeReader code, int index) {
+    int end = index;
+    while (isHexDigit(code.charAt(end))) {
+      end++;
+    }
+    return end;
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+
+  private static boolean isHexDigit(char ch) {
+    return isDigit(ch) || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
+  }
+}
@@ -39,65 +39,91 @@ public class PreprocessorChannel extends Channel<Lexer> {
       return false;
     }
 
-    String tokenValue = read(code);
+    int length = length(code);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append((char) code.pop());
+    }
     output.addToken(Token.builder()
         .setLine(line)
         .setColumn(column)
         .setURI(output.getURI())
-        .setValueAndOriginalValue(tokenValue)
+        .setValueAndOriginalValue(value(sb))
         .setType(CxxTokenType.PREPROCESSOR)
         .build());
 
     return true;
   }
 
-  private String read(CodeReader code) {
-    StringBuilder sb = new StringBuilder();
-    char ch;
-
+  /**
+   * @return the number of characters of the directive starting at the current
+   *         position, including the newline which ends it
+   */
+  public static int length(CodeReader code) {
+    int index = 0;
     while (true) {
-      ch = (char) code.pop();
-      if (isNewline(ch) || ch == EOF) {
+      char ch = code.charAt(index);
+      if (ch == EOF) {
+        return index;
+      }
+      index++;
+      if (isNewline(ch)) {
+        return index;
+      }
+      if (ch == '/' && code.charAt(index) == '*') {
+        index = skipComment(code, index + 1);
+      } else if (ch == '\\' && isNewline(code.charAt(index))) {
+        index += (code.charAt(index) == '\r') && (code.charAt(index + 1) == '\n') ? 2 : 1;
+      }
+    }
+  }
+
+  /**
+   * @return the value of a directive from the characters consumed for it:
+   *         comments are dropped, an escaped newline becomes a space
+   */
+  public static String value(CharSequence directive) {
+    StringBuilder sb = new StringBuilder(directive.length());
+    int length = directive.length();
+    int index = 0;
+    while (index < length) {
+      char ch = directive.charAt(index++);
+      if (isNewline(ch)) {
         break;
       }
-      if (ch == '/' && code.charAt(0) == '*') {
-        consumeComment(code);
-      } else if (ch == '\\' && isNewline((char) code.peek())) {
+      if (ch == '/' && index < length && directive.charAt(index) == '*') {
+        // the comment: from the initial '*' up to and including "*/"
+        index++;
+        while (index < length) {
+          ch = directive.charAt(index++);
+          if (ch == '*' && index < length && directive.charAt(index) == '/') {
+            index++;
+            break;
+          }
+        }
+      } else if (ch == '\\' && index < length && isNewline(directive.charAt(index))) {
         // the newline is escaped: we have a the multi line preprocessor directive
-        // consume both the backslash and the newline, insert a space instead
-        consumeNewline(code);
+        // skip both the backslash and the newline, insert a space instead
+        boolean crlf = directive.charAt(index) == '\r' && index + 1 < length && directive.charAt(index + 1) == '\n';
+        index += crlf ? 2 : 1;
         sb.append(' ');
-      }
-      else {
+      } else {
         sb.append(ch);
       }
     }
     return sb.toString();
   }
 
-  private static void consumeNewline(CodeReader code) {
-    if ((code.charAt(0) == '\r') && (code.charAt(1) == '\n')) {
-      // \r\n
-      code.pop();
-      code.pop();
-    } else {
-      // \r or \n
-      code.pop();
-    }
-  }
-
-  private static void consumeComment(CodeReader code) {
-    char ch;
-
-    code.pop(); // initial '*'
+  private static int skipComment(CodeReader code, int start) {
+    int index = start;
     while (true) {
-      ch = (char)code.pop();
+      char ch = code.charAt(index);
       if (ch == EOF) {
-        break;
+        return index;
       }
-      if (ch == '*' && code.charAt(0) == '/') {
-        code.pop();
-        break;
+      index++;
+      if (ch == '*' && code.charAt(index) == '/') {
+        return index + 1;
       }
     }
   }
@@ -0,0 +1,109 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.channels;
+
+import org.sonar.sslr.channel.Channel;
+import org.sonar.sslr.channel.CodeReader;
+
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.TokenType;
+import com.sonar.sslr.impl.Lexer;
+
+/**
+ * Operators and punctuators, matched by walking a trie of their spellings.
+ * The longest spelling wins; of equal spellings the first one given wins.
+ */
+public class PunctuatorTrieChannel extends Channel<Lexer> {
+  private static final int ALPHABET = 128;
+
+  private final Node root = new Node();
+
+  public PunctuatorTrieChannel(TokenType... punctuators) {
+    for (TokenType punctuator : punctuators) {
+      String value = punctuator.getValue();
+      Node node = root;
+      for (int i = 0; i < value.length(); i++) {
+        char ch = value.charAt(i);
+        if (ch >= ALPHABET) {
+          throw new IllegalArgumentException("Punctuator '" + value + "' contains a non ASCII character");
+        }
+        node = node.child(ch);
+      }
+      if (node.type == null) {
+        node.type = punctuator;
+      }
+    }
+  }
+
+  @Override
+  public boolean consume(CodeReader code, Lexer output) {
+    TokenType type = match(code);
+    if (type == null) {
+      return false;
+    }
+
+    output.addToken(Token.builder()
+        .setLine(code.getLinePosition())
+        .setColumn(code.getColumnPosition())
+        .setURI(output.getURI())
+        .setValueAndOriginalValue(type.getValue())
+        .setType(type)
+        .build());
+    for (int i = 0; i < type.getValue().length(); i++) {
+      code.pop();
+    }
+    return true;
+  }
+
+  /**
+   * @return the punctuator with the longest spelling at the current position,
+   *         {@code null} if there is none
+   */
+  public TokenType match(CodeReader code) {
+    TokenType type = null;
+    Node node = root;
+    for (int i = 0;; i++) {
+      char ch = code.charAt(i);
+      if (ch >= ALPHABET || node.children == null || node.children[ch] == null) {
+        break;
+      }
+      node = node.children[ch];
+      if (node.type != null) {
+        type = node.type;
+      }
+    }
+    return type;
+  }
+
+  private static final class Node {
+    private Node[] children;
+    private TokenType type;
+
+    private Node child(char ch) {
+      if (children == null) {
+        children = new Node[ALPHABET];
+      }
+      if (children[ch] == null) {
+        children[ch] = new Node();
+      }
+      return children[ch];
+    }
+  }
+}
@@ -34,22 +34,15 @@ public class StringLiteralsChannel extends Channel<Lexer> {
 
   private final StringBuilder sb = new StringBuilder();
 
-  private int index;
-  private char ch;
-
   @Override
   public boolean consume(CodeReader code, Lexer output) {
-    int line = code.getLinePosition();
-    int column = code.getColumnPosition();
-    index = 0;
-    readStringPrefix(code);
-    if ((ch != '\"')) {
-      return false;
-    }
-    if (!read(code)) {
+    int length = match(code);
+    if (length == 0) {
       return false;
     }
-    for (int i = 0; i < index; i++) {
+    int line = code.getLinePosition();
+    int column = code.getColumnPosition();
+    for (int i = 0; i < length; i++) {
       sb.append((char) code.pop());
     }
     output.addToken(Token.builder()
@@ -63,26 +56,13 @@ public class StringLiteralsChannel extends Channel<Lexer> {
     return true;
   }
 
-  private boolean read(CodeReader code) {
-    // TODO: proper reading raw strings.
-
-    index++;
-    while (code.charAt(index) != ch) {
-      if (code.charAt(index) == EOF) {
-        return false;
-      }
-      if (code.charAt(index) == '\\') {
-        // escape
-        index++;
-      }
-      index++;
-    }
-    index++;
-    return true;
-  }
-
-  private void readStringPrefix(CodeReader code) {
-    ch = code.charAt(index);
+  /**
+   * @return the length of the literal starting at the current position, 0 if
+   *         there is none
+   */
+  public static int match(CodeReader code) {
+    int index = 0;
+    char ch = code.charAt(index);
     if ((ch == 'u') || (ch == 'U') || ch == 'L') {
       index++;
       if (ch == 'u' && code.charAt(index) == '8') {
@@ -94,5 +74,22 @@ public class StringLiteralsChannel extends Channel<Lexer> {
       index++;
       ch = code.charAt(index);
     }
+    if (ch != '\"') {
+      return 0;
+    }
+
+    // TODO: proper reading raw strings.
+    index++;
+    while (code.charAt(index) != ch) {
+      if (code.charAt(index) == EOF) {
+        return 0;
+      }
+      if (code.charAt(index) == '\\') {
+        // escape
+        index++;
+      }
+      index++;
+    }
+    return index + 1;
   }
 }
@@ -0,0 +1,163 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.api.CxxPunctuator;
+import org.sonar.cxx.api.CxxTokenType;
+import org.sonar.cxx.channels.CharacterLiteralsChannel;
+import org.sonar.cxx.channels.CommentChannel;
+import org.sonar.cxx.channels.KeywordTable;
+import org.sonar.cxx.channels.NumberLiteralsChannel;
+import org.sonar.cxx.channels.PreprocessorChannel;
+import org.sonar.cxx.channels.PunctuatorTrieChannel;
+import org.sonar.cxx.channels.StringLiteralsChannel;
+import org.sonar.sslr.channel.CodeReader;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.TokenType;
+import com.sonar.sslr.impl.LexerException;
+
+/**
+ * Lexer for consumers which need tokens only (e.g. CPD): it recognizes the
+ * same tokens as the {@link CxxLexer} without preprocessors, using the
+ * matching of its channels, but records them in {@link CompactTokens}
+ * instead of creating a {@link com.sonar.sslr.api.Token} for each of them.
+ */
+public final class CompactLexer {
+  private static final int EOF = -1;
+
+  private final Charset charset;
+  private final List<String> cFilesPatterns;
+  private final PunctuatorTrieChannel punctuators = new PunctuatorTrieChannel(CxxPunctuator.values());
+
+  public CompactLexer(CxxConfiguration conf) {
+    this.charset = conf.getCharset();
+    this.cFilesPatterns = conf.getCFilesPatterns();
+  }
+
+  public CompactTokens lex(File file) {
+    String source;
+    try {
+      source = FileUtils.readFileToString(file, charset.name());
+    } catch (IOException e) {
+      throw new LexerException("Unable to lex file : " + file.getAbsolutePath(), e);
+    }
+    boolean cFile = !cFilesPatterns.isEmpty() && DialectAwareKeywordChannel.isCFile(file, cFilesPatterns);
+    return lex(source, file.toURI(), cFile);
+  }
+
+  /**
+   * Lexes a piece of code, with the URI the SSLR lexer uses for code not read
+   * from a file.
+   */
+  public CompactTokens lex(String source) {
+    try {
+      return lex(source, new URI("tests://unittest"), false);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private CompactTokens lex(String source, URI uri, boolean cFile) {
+    char[] chars = source.toCharArray();
+    CompactTokens tokens = new CompactTokens(chars, uri);
+    KeywordTable keywords = DialectAwareKeywordChannel.keywords(cFile);
+    CodeReader code = new CodeReader(source);
+    int offset = 0;
+
+    // the channels of the CxxLexer, in their order
+    while (code.peek() != EOF) {
+      char ch = (char) code.peek();
+      int line = code.getLinePosition();
+      int column = code.getColumnPosition();
+      TokenType type;
+      int length;
+      if (isWhitespace(ch)) {
+        code.pop();
+        offset++;
+        continue;
+      } else if ((length = CommentChannel.match(code)) > 0) {
+        type = GenericTokenType.COMMENT;
+      } else if (ch == '\\' && isNewline(code.charAt(1))) {
+        // backslash at the end of the line: just throw away
+        code.pop();
+        offset++;
+        continue;
+      } else if (ch == '#') {
+        type = CxxTokenType.PREPROCESSOR;
+        length = PreprocessorChannel.length(code);
+      } else if ((length = CharacterLiteralsChannel.match(code)) > 0) {
+        type = CxxTokenType.CHARACTER;
+      } else if ((length = StringLiteralsChannel.match(code)) > 0) {
+        type = CxxTokenType.STRING;
+      } else if ((length = NumberLiteralsChannel.match(code)) > 0) {
+        type = CxxTokenType.NUMBER;
+      } else if (DialectAwareKeywordChannel.isIdentifierStart(ch)) {
+        length = identifierLength(code);
+        type = keywords.get(chars, offset, length);
+        if (type == null) {
+          type = GenericTokenType.IDENTIFIER;
+        }
+      } else if ((type = punctuators.match(code)) != null) {
+        length = type.getValue().length();
+      } else {
+        type = GenericTokenType.UNKNOWN_CHAR;
+        length = 1;
+      }
+
+      tokens.add(type, offset, offset + length, line, column);
+      for (int i = 0; i < length; i++) {
+        code.pop();
+      }
+      offset += length;
+    }
+    tokens.add(GenericTokenType.EOF, offset, offset, code.getLinePosition(), code.getColumnPosition());
+    return tokens;
+  }
+
+  private static int identifierLength(CodeReader code) {
+    int length = 1;
+    char ch = code.charAt(length);
+    while (DialectAwareKeywordChannel.isIdentifierStart(ch) || (ch >= '0' && ch <= '9')) {
+      ch = code.charAt(++length);
+    }
+    return length;
+  }
+
+  /**
+   * The characters of the regular expression \s, which the lexer throws away.
+   */
+  private static boolean isWhitespace(char ch) {
+    return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+  }
+
+  private static boolean isNewline(char ch) {
+    return (ch == '\n') || (ch == '\r');
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.api.CxxPunctuator;
+import org.sonar.cxx.api.CxxTokenType;
+import org.sonar.cxx.channels.PreprocessorChannel;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.TokenType;
+import com.sonar.sslr.api.Trivia;
+
+/**
+ * Token stream of one file for consumers which need tokens only, filled by
+ * the {@link CompactLexer}: type id, offset and length in the source, line
+ * and column of every token are kept in parallel primitive arrays over the
+ * source text. {@link Token} objects are created on access only and are not
+ * kept.
+ * <p>
+ * Comments are entries of their own, preceding the token they belong to.
+ */
+public final class CompactTokens {
+  private static final int CXX_TOKEN_TYPES = GenericTokenType.values().length;
+  private static final int CXX_KEYWORDS = CXX_TOKEN_TYPES + CxxTokenType.values().length;
+  private static final int CXX_PUNCTUATORS = CXX_KEYWORDS + CxxKeyword.values().length;
+  private static final TokenType[] TYPES = types();
+  private static final int EOF = idOf(GenericTokenType.EOF);
+  private static final int COMMENT = idOf(GenericTokenType.COMMENT);
+  private static final int PREPROCESSOR = idOf(CxxTokenType.PREPROCESSOR);
+
+  private final char[] source;
+  private final URI uri;
+
+  private int size = 0;
+  private short[] typeId;
+  private int[] offset;
+  private int[] length;
+  private int[] line;
+  private int[] column;
+
+  CompactTokens(char[] source, URI uri) {
+    this.source = source;
+    this.uri = uri;
+    // about one token per five characters of source code
+    int capacity = source.length / 5 + 16;
+    typeId = new short[capacity];
+    offset = new int[capacity];
+    length = new int[capacity];
+    line = new int[capacity];
+    column = new int[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isComment(int index) {
+    return typeId[checkIndex(index)] == COMMENT;
+  }
+
+  public TokenType getType(int index) {
+    return TYPES[typeId[checkIndex(index)]];
+  }
+
+  public int getLine(int index) {
+    return line[checkIndex(index)];
+  }
+
+  public int getColumn(int index) {
+    return column[checkIndex(index)];
+  }
+
+  /**
+   * @return the value of the token, copied out of the source unless it is the
+   *         spelling of its type
+   */
+  public String getValue(int index) {
+    int id = typeId[checkIndex(index)];
+    TokenType type = TYPES[id];
+    if (id == EOF) {
+      return "EOF";
+    }
+    if (id == PREPROCESSOR) {
+      return PreprocessorChannel.value(CharBuffer.wrap(source, offset[index], length[index]));
+    }
+    if (type instanceof CxxKeyword || type instanceof CxxPunctuator) {
+      return type.getValue();
+    }
+    return new String(source, offset[index], length[index]);
+  }
+
+  /**
+   * Creates the token at the given index, including the comments preceding it
+   * as trivia. For a comment entry the comment token itself is returned.
+   */
+  public Token getToken(int index) {
+    Token.Builder builder = Token.builder()
+        .setType(getType(index))
+        .setValueAndOriginalValue(getValue(index))
+        .setURI(uri)
+        .setLine(line[index])
+        .setColumn(column[index]);
+    if (!isComment(index)) {
+      List<Trivia> trivia = Collections.emptyList();
+      for (int i = firstComment(index); i < index; i++) {
+        if (trivia.isEmpty()) {
+          trivia = new ArrayList<Trivia>();
+        }
+        trivia.add(Trivia.createComment(getToken(i)));
+      }
+      builder.setTrivia(trivia);
+    }
+    return builder.build();
+  }
+
+  private int firstComment(int index) {
+    int first = index;
+    while (first > 0 && typeId[first - 1] == COMMENT) {
+      first--;
+    }
+    return first;
+  }
+
+  void add(TokenType type, int start, int end, int tokenLine, int tokenColumn) {
+    if (size == typeId.length) {
+      grow();
+    }
+    typeId[size] = (short) idOf(type);
+    offset[size] = start;
+    length[size] = end - start;
+    line[size] = tokenLine;
+    column[size] = tokenColumn;
+    size++;
+  }
+
+  private void grow() {
+    int capacity = 2 * typeId.length;
+    short[] largerTypeId = new short[capacity];
+    System.arraycopy(typeId, 0, largerTypeId, 0, size);
+    typeId = largerTypeId;
+    offset = copyOf(offset, capacity);
+    length = copyOf(length, capacity);
+    line = copyOf(line, capacity);
+    column = copyOf(column, capacity);
+  }
+
+  private static int[] copyOf(int[] array, int capacity) {
+    int[] larger = new int[capacity];
+    System.arraycopy(array, 0, larger, 0, array.length);
+    return larger;
+  }
+
+  private int checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return index;
+  }
+
+  /**
+   * Type ids: the generic token types, followed by the ones of C++, each
+   * group in the order of its ordinals.
+   */
+  private static int idOf(TokenType type) {
+    if (type instanceof GenericTokenType) {
+      return ((GenericTokenType) type).ordinal();
+    }
+    if (type instanceof CxxTokenType) {
+      return CXX_TOKEN_TYPES + ((CxxTokenType) type).ordinal();
+    }
+    if (type instanceof CxxKeyword) {
+      return CXX_KEYWORDS + ((CxxKeyword) type).ordinal();
+    }
+    if (type instanceof CxxPunctuator) {
+      return CXX_PUNCTUATORS + ((CxxPunctuator) type).ordinal();
+    }
+    throw new IllegalArgumentException("Unsupported token type: " + type);
+  }
+
+  private static TokenType[] types() {
+    List<TokenType> types = new ArrayList<TokenType>();
+    Collections.addAll(types, GenericTokenType.values());
+    Collections.addAll(types, CxxTokenType.values());
+    Collections.addAll(types, CxxKeyword.values());
+    Collections.addAll(types, CxxPunctuator.values());
+    return types.toArray(new TokenType[types.size()]);
+  }
+}
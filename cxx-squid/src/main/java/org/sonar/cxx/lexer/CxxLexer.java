@@ -19,26 +19,18 @@
  */
 package org.sonar.cxx.lexer;
 
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.ANY_CHAR;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.and;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.commentRegexp;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.o2n;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.opt;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.regexp;
-
 import org.sonar.cxx.CxxConfiguration;
-import org.sonar.cxx.api.CxxKeyword;
 import org.sonar.cxx.api.CxxPunctuator;
-import org.sonar.cxx.api.CxxTokenType;
 import org.sonar.cxx.channels.CharacterLiteralsChannel;
+import org.sonar.cxx.channels.CommentChannel;
+import org.sonar.cxx.channels.NumberLiteralsChannel;
 import org.sonar.cxx.channels.PreprocessorChannel;
+import org.sonar.cxx.channels.PunctuatorTrieChannel;
 import org.sonar.cxx.channels.StringLiteralsChannel;
 
 import com.sonar.sslr.api.Preprocessor;
 import com.sonar.sslr.impl.Lexer;
 import com.sonar.sslr.impl.channel.BlackHoleChannel;
-import com.sonar.sslr.impl.channel.IdentifierAndKeywordChannel;
-import com.sonar.sslr.impl.channel.PunctuatorChannel;
 import com.sonar.sslr.impl.channel.UnknownCharacterChannel;
 
 public final class CxxLexer {
@@ -50,11 +42,15 @@ public final class CxxLexer {
     return create(new CxxConfiguration(), preprocessors);
   }
 
-  private static final String INTEGER_SUFFIX = "(((U|u)(LL|ll|L|l)?)|((LL|ll|L|l)(u|U)?))";
-  private static final String EXP = "([Ee][+-]?+[0-9_]++)";
-  private static final String FLOAT_SUFFIX = "(f|l|F|L)";
-
   public static Lexer create(CxxConfiguration conf, Preprocessor... preprocessors) {
+    return create(conf, new StringPool(), preprocessors);
+  }
+
+  /**
+   * @param identifiers pool for the spellings of the identifiers, shared by the
+   *        lexers of one parser
+   */
+  public static Lexer create(CxxConfiguration conf, StringPool identifiers, Preprocessor... preprocessors) {
     Lexer.Builder builder = Lexer.builder()
         .withCharset(conf.getCharset())
         .withFailIfNoChannelToConsumeOneCharacter(true)
@@ -62,8 +58,7 @@ public final class CxxLexer {
         .withChannel(new BlackHoleChannel("\\s"))
 
         // C++ Standard, Section 2.8 "Comments"
-        .withChannel(commentRegexp("//[^\\n\\r]*+"))
-        .withChannel(commentRegexp("/\\*", ANY_CHAR + "*?", "\\*/"))
+        .withChannel(new CommentChannel())
 
         // backslash at the end of the line: just throw away
         .withChannel(new BackslashChannel())
@@ -78,28 +73,20 @@ public final class CxxLexer {
         .withChannel(new StringLiteralsChannel())
 
         // C++ Standard, Section 2.14.4 "Floating literals"
-        .withChannel(regexp(CxxTokenType.NUMBER, "[0-9]++\\.[0-9]*+" + opt(EXP) + opt(FLOAT_SUFFIX)))
-        .withChannel(regexp(CxxTokenType.NUMBER, "\\.[0-9]++" + opt(EXP) + opt(FLOAT_SUFFIX)))
-        .withChannel(regexp(CxxTokenType.NUMBER, "[0-9]++" + EXP + opt(FLOAT_SUFFIX)))
-
         // C++ Standard, Section 2.14.2 "Integer literals"
-        .withChannel(regexp(CxxTokenType.NUMBER, "[1-9][0-9]*+" + opt(INTEGER_SUFFIX))) // Decimal literals
-        .withChannel(regexp(CxxTokenType.NUMBER, "0[0-7]++" + opt(INTEGER_SUFFIX))) // Octal Literals
-        .withChannel(regexp(CxxTokenType.NUMBER, "0[xX][0-9a-fA-F]++" + opt(INTEGER_SUFFIX))) // Hex Literals
-        .withChannel(regexp(CxxTokenType.NUMBER, "0" + opt(INTEGER_SUFFIX))) // Decimal zero
-
         // C++ Standard, Section 2.14.7 "Pointer literals"
-        .withChannel(regexp(CxxTokenType.NUMBER, CxxKeyword.NULLPTR.getValue()))
+        .withChannel(new NumberLiteralsChannel())
 
         // TODO:
         // C++ Standard, Section 2.14.8 "User-defined literals"
 
         // C++ Standard, Section 2.12 "Keywords"
         // C++ Standard, Section 2.11 "Identifiers"
-        .withChannel(new IdentifierAndKeywordChannel(and("[a-zA-Z_]", o2n("\\w")), true, CxxKeyword.values()))
+        // In C files the C++ only keywords are identifiers
+        .withChannel(new DialectAwareKeywordChannel(conf.getCFilesPatterns(), identifiers))
 
         // C++ Standard, Section 2.13 "Operators and punctuators"
-        .withChannel(new PunctuatorChannel(CxxPunctuator.values()))
+        .withChannel(new PunctuatorTrieChannel(CxxPunctuator.values()))
 
         .withChannel(new UnknownCharacterChannel());
 
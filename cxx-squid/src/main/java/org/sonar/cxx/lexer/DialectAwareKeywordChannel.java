@@ -0,0 +1,136 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import static org.apache.commons.io.FilenameUtils.wildcardMatchOnSystem;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.channels.KeywordTable;
+import org.sonar.cxx.preprocessor.StandardDefinitions;
+import org.sonar.sslr.channel.Channel;
+import org.sonar.sslr.channel.CodeReader;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.TokenType;
+import com.sonar.sslr.impl.Lexer;
+
+/**
+ * Identifiers and keywords ([a-zA-Z_][a-zA-Z_0-9]*). In files matching one of
+ * the C file patterns the keywords which exist in C++ only are lexed as plain
+ * identifiers. Keywords share the spelling of their token type, identifiers
+ * the one of the given pool.
+ */
+public class DialectAwareKeywordChannel extends Channel<Lexer> {
+  private static final KeywordTable CXX_KEYWORDS = new KeywordTable(CxxKeyword.values());
+  private static final KeywordTable C_KEYWORDS = new KeywordTable(cKeywords());
+
+  private final List<String> cFilesPatterns;
+  private final StringPool identifiers;
+
+  private char[] buffer = new char[64];
+  private URI lastUri = null;
+  private boolean lastUriIsC = false;
+
+  public DialectAwareKeywordChannel(List<String> cFilesPatterns, StringPool identifiers) {
+    this.cFilesPatterns = cFilesPatterns;
+    this.identifiers = identifiers;
+  }
+
+  @Override
+  public boolean consume(CodeReader code, Lexer lexer) {
+    char ch = code.charAt(0);
+    if (!isIdentifierStart(ch)) {
+      return false;
+    }
+    int length = 0;
+    do {
+      if (length == buffer.length) {
+        char[] larger = new char[2 * length];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+      }
+      buffer[length++] = ch;
+      ch = code.charAt(length);
+    } while (isIdentifierStart(ch) || (ch >= '0' && ch <= '9'));
+
+    TokenType keyword = keywords(isCFile(lexer.getURI())).get(buffer, length);
+    lexer.addToken(Token.builder()
+        .setLine(code.getLinePosition())
+        .setColumn(code.getColumnPosition())
+        .setURI(lexer.getURI())
+        .setValueAndOriginalValue(keyword == null ? identifiers.intern(buffer, length) : keyword.getValue())
+        .setType(keyword == null ? GenericTokenType.IDENTIFIER : keyword)
+        .build());
+    for (int i = 0; i < length; i++) {
+      code.pop();
+    }
+    return true;
+  }
+
+  static KeywordTable keywords(boolean cFile) {
+    return cFile ? C_KEYWORDS : CXX_KEYWORDS;
+  }
+
+  static boolean isIdentifierStart(char ch) {
+    return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+  }
+
+  private boolean isCFile(URI uri) {
+    if (cFilesPatterns.isEmpty() || uri == null) {
+      return false;
+    }
+    if (!uri.equals(lastUri)) {
+      lastUri = uri;
+      lastUriIsC = false;
+      if ("file".equals(uri.getScheme())) {
+        lastUriIsC = isCFile(new File(uri), cFilesPatterns);
+      }
+    }
+    return lastUriIsC;
+  }
+
+  static boolean isCFile(File file, List<String> cFilesPatterns) {
+    String path = file.getAbsolutePath();
+    for (String pattern : cFilesPatterns) {
+      if (wildcardMatchOnSystem(path, pattern)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static CxxKeyword[] cKeywords() {
+    Set<String> cxxOnly = StandardDefinitions.cxxOnlyKeywords();
+    List<CxxKeyword> keywords = new ArrayList<CxxKeyword>();
+    for (CxxKeyword keyword : CxxKeyword.values()) {
+      if (!cxxOnly.contains(keyword.getValue())) {
+        keywords.add(keyword);
+      }
+    }
+    return keywords.toArray(new CxxKeyword[keywords.size()]);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+/**
+ * Pool of the identifier spellings of one scan: tokens with the same
+ * spelling share one String instead of each holding its own copy. The pool
+ * is not thread safe; every parser owns its own one. It is bounded, when it
+ * is full it is cleared and starts over.
+ */
+public class StringPool {
+  private static final int INITIAL_CAPACITY = 1 << 10;
+  static final int MAX_CAPACITY = 1 << 17;
+
+  private String[] table = new String[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * @return the pooled String consisting of the first {@code length}
+   *         characters of {@code chars}
+   */
+  public String intern(char[] chars, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    int mask = table.length - 1;
+    int slot = spread(hash) & mask;
+    for (String candidate = table[slot]; candidate != null; candidate = table[slot]) {
+      if (candidate.hashCode() == hash && matches(candidate, chars, length)) {
+        return candidate;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return add(new String(chars, 0, length), slot);
+  }
+
+  /**
+   * @return the pooled String equal to {@code value}
+   */
+  public String intern(String value) {
+    int mask = table.length - 1;
+    int slot = spread(value.hashCode()) & mask;
+    for (String candidate = table[slot]; candidate != null; candidate = table[slot]) {
+      if (candidate.equals(value)) {
+        return candidate;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return add(value, slot);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private String add(String value, int slot) {
+    if (2 * (size + 1) > table.length) {
+      if (table.length == MAX_CAPACITY) {
+        table = new String[INITIAL_CAPACITY];
+        size = 0;
+      } else {
+        rehash(2 * table.length);
+      }
+      return intern(value);
+    }
+    table[slot] = value;
+    size++;
+    return value;
+  }
+
+  private void rehash(int capacity) {
+    String[] old = table;
+    table = new String[capacity];
+    int mask = capacity - 1;
+    for (String value : old) {
+      if (value != null) {
+        int slot = spread(value.hashCode()) & mask;
+        while (table[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+      }
+    }
+  }
+
+  private static boolean matches(String candidate, char[] chars, int length) {
+    if (candidate.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (candidate.charAt(i) != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -25,6 +25,10 @@ import static org.sonar.cxx.api.CxxTokenType.CHARACTER;
 import static org.sonar.cxx.api.CxxTokenType.NUMBER;
 import static org.sonar.cxx.api.CxxTokenType.STRING;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.cxx.CxxConfiguration;
@@ -276,6 +280,23 @@ public enum CxxGrammarImpl implements GrammarRuleKey {
 
   public static final Logger LOG = LoggerFactory.getLogger("CxxGrammarImpl");
 
+  /**
+   * Pass-through rules which get no AST node of their own if they have a
+   * single child, when the compact AST is enabled. None of them is used by
+   * the metrics or checks; XPath rules referring to them see the child instead.
+   */
+  public static final List<CxxGrammarImpl> COMPACT_AST_RULES = Collections.unmodifiableList(Arrays.asList(
+    idExpression,
+    unqualifiedId,
+    expressionList,
+    initializerList,
+    initializerClause,
+    constantExpression,
+    typeSpecifier,
+    trailingTypeSpecifier,
+    ptrDeclarator,
+    noptrDeclarator));
+
   public static Grammar create(CxxConfiguration conf) {
     LexerfulGrammarBuilder b = LexerfulGrammarBuilder.create();
 
@@ -294,6 +315,12 @@ public enum CxxGrammarImpl implements GrammarRuleKey {
     misc(b);
     vcAttributedAtl(b);
 
+    if (conf.getCompactAst()) {
+      for (CxxGrammarImpl rule : COMPACT_AST_RULES) {
+        b.rule(rule).skipIfOneChild();
+      }
+    }
+
     b.setRootRule(translationUnit);
 
     return b.buildWithMemoizationOfMatchesForAllRules();
@@ -369,6 +396,9 @@ public enum CxxGrammarImpl implements GrammarRuleKey {
         );
 
     b.rule(nestedNameSpecifier).is(
+      // FIRST set lookahead: most identifiers are not followed by '::' or '<',
+      // fail right away instead of trying every alternative
+      b.next(b.firstOf("::", b.sequence(IDENTIFIER, b.firstOf("::", "<")), CxxKeyword.DECLTYPE)),
       b.firstOf(
         b.sequence(b.optional("::"), typeName, "::"),
         b.sequence(b.optional("::"), namespaceName, "::"),
@@ -778,6 +808,10 @@ public enum CxxGrammarImpl implements GrammarRuleKey {
     b.rule(trailingTypeSpecifierSeq).is(b.oneOrMore(trailingTypeSpecifier), b.optional(attributeSpecifierSeq));
 
     b.rule(simpleTypeSpecifier).is(
+      // FIRST set lookahead: literals, parentheses and most keywords
+      // cannot start a type, fail right away instead of trying every alternative
+      b.next(b.firstOf(IDENTIFIER, "::", CxxKeyword.DECLTYPE,
+        "char", "char16_t", "char32_t", "wchar_t", "bool", "short", "int", "long", "signed", "unsigned", "float", "double", "void", "auto")),
       b.firstOf(
         "char", "char16_t", "char32_t", "wchar_t", "bool", "short", "int", "long", "signed", "unsigned", "float", "double", "void", "auto",
         b.sequence(b.firstOf("typeof", "__typeof", "__typeof__"), "(", 
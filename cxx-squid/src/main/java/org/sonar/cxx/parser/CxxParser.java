@@ -19,40 +19,24 @@
  */
 package org.sonar.cxx.parser;
 
-import java.io.File;
-import java.util.Collection;
-
 import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.cxx.lexer.CxxLexer;
 import org.sonar.cxx.preprocessor.CxxPreprocessor;
 import org.sonar.cxx.preprocessor.JoinStringsPreprocessor;
 import org.sonar.squidbridge.SquidAstVisitorContext;
-import org.sonar.squidbridge.SquidAstVisitorContextImpl;
 import org.sonar.squidbridge.api.SourceProject;
 
 import com.sonar.sslr.api.Grammar;
 import com.sonar.sslr.impl.Parser;
 
 public final class CxxParser {
-  private static CxxPreprocessor cxxpp = null;
 
   private CxxParser() {
   }
 
-  public static void finishedParsing(File path){
-    cxxpp.finishedPreprocessing(path);
-  }
-
-  public static Collection<CxxPreprocessor.Include> getIncludedFiles(File path) {
-    return cxxpp.getIncludedFiles(path);
-  }
-
-  public static Collection<CxxPreprocessor.Include> getMissingIncludeFiles(File path) {
-    return cxxpp.getMissingIncludeFiles(path);
-  }
-
   public static Parser<Grammar> create() {
-    return create(new SquidAstVisitorContextImpl<Grammar>(new SourceProject("")),
+    return create(new CxxVisitorContext<Grammar>(new SourceProject("")),
                   new CxxConfiguration());
   }
 
@@ -62,9 +46,16 @@ public final class CxxParser {
 
   public static Parser<Grammar> create(SquidAstVisitorContext<Grammar> context,
                                        CxxConfiguration conf) {
-    cxxpp = new CxxPreprocessor(context, conf);
-    return Parser.builder(CxxGrammarImpl.create(conf))
-      .withLexer(CxxLexer.create(conf, cxxpp, new JoinStringsPreprocessor()))
+    CxxPreprocessor cxxpp = new CxxPreprocessor(context, conf);
+    if (context instanceof CxxVisitorContext) {
+      ((CxxVisitorContext<Grammar>) context).setPreprocessor(cxxpp);
+    }
+    Grammar grammar = CxxGrammarImpl.create(conf);
+    if (cxxpp.getParseProfiler() != null) {
+      cxxpp.getParseProfiler().instrument(grammar, CxxGrammarImpl.values());
+    }
+    return Parser.builder(grammar)
+      .withLexer(CxxLexer.create(conf, cxxpp.getIdentifierPool(), cxxpp, new JoinStringsPreprocessor()))
       .build();
   }
 }
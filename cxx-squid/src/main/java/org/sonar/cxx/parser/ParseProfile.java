@@ -0,0 +1,247 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Parse statistics of a scan: per grammar rule the number of invocations,
+ * successful matches, backtracked tokens and the time spent, in aggregate and
+ * for the files which took longest to parse. The rules are aggregated as the
+ * files are added and only the slowest {@link #MAX_FILES} files are kept, so
+ * the profile does not grow with the size of the scan. Filled by the
+ * {@link ParseProfiler}s of the parsers of a scan, it is thread safe.
+ */
+public class ParseProfile {
+  static final int MAX_FILES = 50;
+  private static final int MAX_RULES_PER_FILE = 5;
+
+  private final Map<String, RuleStatistics> rules = new HashMap<String, RuleStatistics>();
+  // the fastest of the kept files is at the head
+  private final PriorityQueue<FileStatistics> files = new PriorityQueue<FileStatistics>(MAX_FILES + 1, BY_TIME_ASCENDING);
+  private long fileCount = 0;
+
+  /**
+   * Statistics of one grammar rule. The total time includes the time of the
+   * rules invoked by it, the self time does not.
+   */
+  public static final class RuleStatistics {
+    private final String rule;
+    long invocations;
+    long matches;
+    long backtrackedTokens;
+    long totalNanos;
+    long selfNanos;
+
+    public RuleStatistics(String rule) {
+      this.rule = rule;
+    }
+
+    public String getRule() {
+      return rule;
+    }
+
+    public long getInvocations() {
+      return invocations;
+    }
+
+    public long getMatches() {
+      return matches;
+    }
+
+    public long getBacktrackedTokens() {
+      return backtrackedTokens;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getSelfNanos() {
+      return selfNanos;
+    }
+
+    void add(RuleStatistics other) {
+      invocations += other.invocations;
+      matches += other.matches;
+      backtrackedTokens += other.backtrackedTokens;
+      totalNanos += other.totalNanos;
+      selfNanos += other.selfNanos;
+    }
+
+    RuleStatistics copy() {
+      RuleStatistics copy = new RuleStatistics(rule);
+      copy.add(this);
+      return copy;
+    }
+  }
+
+  /**
+   * Parse time of one file and its most expensive rules.
+   */
+  public static final class FileStatistics {
+    private final String file;
+    private final long nanos;
+    private final List<RuleStatistics> topRules;
+
+    FileStatistics(String file, long nanos, List<RuleStatistics> topRules) {
+      this.file = file;
+      this.nanos = nanos;
+      this.topRules = topRules;
+    }
+
+    public String getFile() {
+      return file;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public List<RuleStatistics> getTopRules() {
+      return topRules;
+    }
+  }
+
+  /**
+   * Adds the statistics recorded while parsing the given file.
+   */
+  public synchronized void add(String file, Collection<RuleStatistics> fileRules) {
+    long nanos = 0;
+    List<RuleStatistics> sorted = new ArrayList<RuleStatistics>();
+    for (RuleStatistics statistics : fileRules) {
+      nanos += statistics.selfNanos;
+      sorted.add(statistics.copy());
+
+      RuleStatistics total = rules.get(statistics.getRule());
+      if (total == null) {
+        total = new RuleStatistics(statistics.getRule());
+        rules.put(statistics.getRule(), total);
+      }
+      total.add(statistics);
+    }
+    Collections.sort(sorted, BY_SELF_TIME);
+    fileCount++;
+    files.add(new FileStatistics(file, nanos,
+                                 new ArrayList<RuleStatistics>(sorted.subList(0, Math.min(MAX_RULES_PER_FILE, sorted.size())))));
+    if (files.size() > MAX_FILES) {
+      files.poll();
+    }
+  }
+
+  /**
+   * @return the number of files added, including those which are not kept
+   */
+  public synchronized long getFileCount() {
+    return fileCount;
+  }
+
+  /**
+   * @return the aggregated statistics of all rules, most expensive first
+   */
+  public synchronized List<RuleStatistics> getRules() {
+    List<RuleStatistics> result = new ArrayList<RuleStatistics>();
+    for (RuleStatistics statistics : rules.values()) {
+      result.add(statistics.copy());
+    }
+    Collections.sort(result, BY_SELF_TIME);
+    return result;
+  }
+
+  /**
+   * @return the statistics of the slowest files, most expensive first
+   */
+  public synchronized List<FileStatistics> getFiles() {
+    List<FileStatistics> result = new ArrayList<FileStatistics>(files);
+    Collections.sort(result, Collections.reverseOrder(BY_TIME_ASCENDING));
+    return result;
+  }
+
+  public void write(File report) throws IOException {
+    FileUtils.forceMkdir(report.getAbsoluteFile().getParentFile());
+    PrintWriter writer = new PrintWriter(report, "UTF-8");
+    try {
+      write(writer);
+    } finally {
+      writer.close();
+    }
+  }
+
+  public void write(Writer out) {
+    PrintWriter writer = new PrintWriter(out);
+    List<FileStatistics> sortedFiles = getFiles();
+    writer.println("Parse profile of " + getFileCount() + " files");
+    writer.println();
+    writer.println("Rules by self time:");
+    writer.println(String.format(Locale.ENGLISH, "%-50s %12s %12s %14s %12s %12s",
+                                 "rule", "invocations", "matches", "backtracked", "self ms", "total ms"));
+    for (RuleStatistics statistics : getRules()) {
+      writer.println(String.format(Locale.ENGLISH, "%-50s %12d %12d %14d %12.1f %12.1f",
+                                   statistics.getRule(), statistics.getInvocations(), statistics.getMatches(),
+                                   statistics.getBacktrackedTokens(), millis(statistics.getSelfNanos()),
+                                   millis(statistics.getTotalNanos())));
+    }
+    writer.println();
+    writer.println("Files by parse time:");
+    for (FileStatistics file : sortedFiles) {
+      StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH, "%10.1f ms  %s", millis(file.getNanos()), file.getFile()));
+      String separator = "  (";
+      for (RuleStatistics statistics : file.getTopRules()) {
+        sb.append(separator).append(statistics.getRule())
+          .append(String.format(Locale.ENGLISH, " %.1f ms", millis(statistics.getSelfNanos())));
+        separator = ", ";
+      }
+      writer.println(file.getTopRules().isEmpty() ? sb.toString() : sb.append(')').toString());
+    }
+    writer.flush();
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1000000.0;
+  }
+
+  private static final Comparator<FileStatistics> BY_TIME_ASCENDING = new Comparator<FileStatistics>() {
+    @Override
+    public int compare(FileStatistics a, FileStatistics b) {
+      return a.nanos < b.nanos ? -1 : (a.nanos == b.nanos ? 0 : 1);
+    }
+  };
+
+  private static final Comparator<RuleStatistics> BY_SELF_TIME = new Comparator<RuleStatistics>() {
+    @Override
+    public int compare(RuleStatistics a, RuleStatistics b) {
+      return a.selfNanos < b.selfNanos ? 1 : (a.selfNanos == b.selfNanos ? a.rule.compareTo(b.rule) : -1);
+    }
+  };
+}
@@ -0,0 +1,153 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.cxx.parser.ParseProfile.RuleStatistics;
+import org.sonar.sslr.grammar.GrammarRuleKey;
+
+import com.sonar.sslr.api.Grammar;
+
+/**
+ * Records per grammar rule how often it is invoked, how often it matches,
+ * how many tokens are given up when it fails and how much time is spent in
+ * it. SSLR has no parse listener, so {@link #instrument} wraps the body of
+ * each rule into probes which run in the parsing machine, see
+ * {@link SslrInstrumentation}. If the SSLR in use does not support that, a
+ * warning is logged and the files are parsed without profiling. The body
+ * of a rule is skipped on a memoization hit, which therefore is not
+ * counted. The tokens given up by a failing rule are approximated by the
+ * furthest token reached by the rules it invoked.
+ *
+ * A profiler belongs to the parsers of one preprocessor and is not thread
+ * safe; {@link #finishFile} moves the numbers of a file into the shared
+ * {@link ParseProfile}.
+ */
+public class ParseProfiler {
+  private static final Logger LOG = LoggerFactory.getLogger("ParseProfiler");
+  private static final AtomicBoolean WARNED = new AtomicBoolean(false);
+
+  private final ParseProfile profile;
+  private final List<RuleStatistics> rules = new ArrayList<RuleStatistics>();
+  private final List<Frame> frames = new ArrayList<Frame>();
+  private int depth = 0;
+
+  private static final class Frame {
+    int startIndex;
+    int maxIndex;
+    long startNanos;
+    long childNanos;
+  }
+
+  public ParseProfiler(ParseProfile profile) {
+    this.profile = profile;
+  }
+
+  public ParseProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Instruments the given rules of the grammar. Has to be called before the
+   * grammar is handed to a parser.
+   */
+  public void instrument(Grammar grammar, GrammarRuleKey... keys) {
+    try {
+      for (GrammarRuleKey key : keys) {
+        RuleStatistics statistics = new RuleStatistics(key.getClass().getSimpleName() + "." + key);
+        if (SslrInstrumentation.instrument(grammar, key, this, statistics)) {
+          rules.add(statistics);
+        }
+      }
+    } catch (LinkageError e) {
+      unsupported(e);
+    } catch (ClassCastException e) {
+      unsupported(e);
+    }
+  }
+
+  private static void unsupported(Throwable e) {
+    if (!WARNED.getAndSet(true)) {
+      LOG.warn("Parse profiling is not supported by this SSLR version, parsing without it: {}", e.toString());
+    }
+  }
+
+  /**
+   * Adds the numbers recorded since the last call to the profile.
+   */
+  public void finishFile(File file) {
+    List<RuleStatistics> fileRules = new ArrayList<RuleStatistics>();
+    for (RuleStatistics statistics : rules) {
+      if (statistics.invocations > 0) {
+        fileRules.add(statistics.copy());
+        statistics.invocations = 0;
+        statistics.matches = 0;
+        statistics.backtrackedTokens = 0;
+        statistics.totalNanos = 0;
+        statistics.selfNanos = 0;
+      }
+    }
+    profile.add(file.getPath(), fileRules);
+    // a recognition exception leaves the frames of the open rules behind
+    depth = 0;
+  }
+
+  void enter(int index) {
+    if (depth == frames.size()) {
+      frames.add(new Frame());
+    }
+    Frame frame = frames.get(depth++);
+    frame.startIndex = index;
+    frame.maxIndex = index;
+    frame.childNanos = 0;
+    frame.startNanos = System.nanoTime();
+  }
+
+  void exit(RuleStatistics statistics, boolean matched, int index) {
+    long nanos = System.nanoTime();
+    if (depth == 0) {
+      return;
+    }
+    Frame frame = frames.get(--depth);
+    long elapsed = nanos - frame.startNanos;
+    int maxIndex = Math.max(frame.maxIndex, index);
+
+    statistics.invocations++;
+    statistics.totalNanos += elapsed;
+    statistics.selfNanos += elapsed - frame.childNanos;
+    if (matched) {
+      statistics.matches++;
+    } else {
+      statistics.backtrackedTokens += maxIndex - frame.startIndex;
+    }
+
+    if (depth > 0) {
+      Frame parent = frames.get(depth - 1);
+      parent.childNanos += elapsed;
+      parent.maxIndex = Math.max(parent.maxIndex, maxIndex);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import org.sonar.cxx.parser.ParseProfile.RuleStatistics;
+import org.sonar.sslr.grammar.GrammarRuleKey;
+import org.sonar.sslr.internal.vm.CompilableGrammarRule;
+import org.sonar.sslr.internal.vm.FirstOfExpression;
+import org.sonar.sslr.internal.vm.Machine;
+import org.sonar.sslr.internal.vm.NativeExpression;
+import org.sonar.sslr.internal.vm.ParsingExpression;
+import org.sonar.sslr.internal.vm.SequenceExpression;
+
+import com.sonar.sslr.api.Grammar;
+
+/**
+ * The probes of the {@link ParseProfiler}. This is the only class which uses
+ * the internals of the SSLR parsing machine (org.sonar.sslr.internal.vm),
+ * which are no API and have been checked against SSLR 1.20 only. A newer SSLR
+ * may fail here with a {@link LinkageError} or a {@link ClassCastException},
+ * which the profiler catches to parse without profiling.
+ */
+final class SslrInstrumentation {
+
+  private SslrInstrumentation() {
+  }
+
+  /**
+   * Wraps the body of the rule into probes:
+   * <pre>
+   *   firstOf(sequence(enter, body, matched), failed)
+   * </pre>
+   *
+   * @return false if the grammar has no body for the rule
+   */
+  static boolean instrument(Grammar grammar, GrammarRuleKey key, ParseProfiler profiler, RuleStatistics statistics) {
+    CompilableGrammarRule rule = (CompilableGrammarRule) grammar.rule(key);
+    ParsingExpression body = rule == null ? null : rule.getExpression();
+    if (body == null) {
+      return false;
+    }
+    rule.setExpression(new FirstOfExpression(
+      new SequenceExpression(new EnterProbe(profiler), body, new ExitProbe(profiler, statistics, true)),
+      new ExitProbe(profiler, statistics, false)));
+    return true;
+  }
+
+  private static final class EnterProbe extends NativeExpression {
+    private final ParseProfiler profiler;
+
+    EnterProbe(ParseProfiler profiler) {
+      this.profiler = profiler;
+    }
+
+    @Override
+    public void execute(Machine machine) {
+      profiler.enter(machine.getIndex());
+      machine.jump(1);
+    }
+
+    @Override
+    public String toString() {
+      return "EnterProbe";
+    }
+  }
+
+  private static final class ExitProbe extends NativeExpression {
+    private final ParseProfiler profiler;
+    private final RuleStatistics statistics;
+    private final boolean matched;
+
+    ExitProbe(ParseProfiler profiler, RuleStatistics statistics, boolean matched) {
+      this.profiler = profiler;
+      this.statistics = statistics;
+      this.matched = matched;
+    }
+
+    @Override
+    public void execute(Machine machine) {
+      profiler.exit(statistics, matched, machine.getIndex());
+      if (matched) {
+        machine.jump(1);
+      } else {
+        machine.backtrack();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return (matched ? "Matched" : "Failed") + "Probe[" + statistics.getRule() + "]";
+    }
+  }
+}
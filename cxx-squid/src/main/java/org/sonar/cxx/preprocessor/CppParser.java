@@ -20,6 +20,7 @@
 package org.sonar.cxx.preprocessor;
 
 import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.parser.ParseProfiler;
 
 import com.sonar.sslr.api.Grammar;
 import com.sonar.sslr.impl.Parser;
@@ -29,13 +30,28 @@ public final class CppParser {
   }
 
   public static Parser<Grammar> create(CxxConfiguration conf) {
-    return Parser.builder(CppGrammar.create())
+    return create(conf, null);
+  }
+
+  public static Parser<Grammar> create(CxxConfiguration conf, ParseProfiler profiler) {
+    Grammar grammar = CppGrammar.create();
+    if (profiler != null) {
+      profiler.instrument(grammar, CppGrammar.values());
+    }
+    return Parser.builder(grammar)
         .withLexer(CppLexer.create(conf))
         .build();
   }
 
   public static Parser<Grammar> createConstantExpressionParser(CxxConfiguration conf) {
+    return createConstantExpressionParser(conf, null);
+  }
+
+  public static Parser<Grammar> createConstantExpressionParser(CxxConfiguration conf, ParseProfiler profiler) {
     Grammar grammar = CppGrammar.create();
+    if (profiler != null) {
+      profiler.instrument(grammar, CppGrammar.values());
+    }
     Parser<Grammar> parser = Parser.builder(grammar)
         .withLexer(CppLexer.create(conf))
         .build();
@@ -22,7 +22,6 @@ package org.sonar.cxx.preprocessor;
 import static com.sonar.sslr.api.GenericTokenType.EOF;
 import static com.sonar.sslr.api.GenericTokenType.IDENTIFIER;
 import static org.apache.commons.io.FilenameUtils.wildcardMatchOnSystem;
-import static org.sonar.cxx.api.CppKeyword.IFDEF;
 import static org.sonar.cxx.api.CppKeyword.IFNDEF;
 import static org.sonar.cxx.api.CppPunctuator.LT;
 import static org.sonar.cxx.api.CxxTokenType.NUMBER;
@@ -34,7 +33,10 @@ import static org.sonar.cxx.api.CxxTokenType.WS;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,7 +48,11 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.api.CxxPunctuator;
 import org.sonar.cxx.lexer.CxxLexer;
+import org.sonar.cxx.lexer.StringPool;
+import org.sonar.cxx.parser.ParseProfiler;
 import org.sonar.squidbridge.SquidAstVisitorContext;
 
 import com.google.common.collect.HashMultimap;
@@ -79,6 +85,16 @@ public class CxxPreprocessor extends Preprocessor {
     }
   }
 
+  private static final class HeaderDirectives {
+    private final String contentHash;
+    private final List<Token> tokens;
+
+    HeaderDirectives(String contentHash, List<Token> tokens) {
+      this.contentHash = contentHash;
+      this.tokens = tokens;
+    }
+  }
+
   static class MismatchException extends Exception {
     private String why;
 
@@ -91,12 +107,22 @@ public class CxxPreprocessor extends Preprocessor {
     }
   }
 
+  /**
+   * Immutable macro definition. Definitions read from a directive line are
+   * interned by the text of the line, so a header defining the same macros
+   * in every translation unit shares the objects.
+   */
   class Macro {
     public Macro(String name, List<Token> params, List<Token> body, boolean variadic) {
+      this(name, params, body, variadic, null);
+    }
+
+    Macro(String name, List<Token> params, List<Token> body, boolean variadic, String line) {
       this.name = name;
-      this.params = params;
-      this.body = body;
+      this.params = params == null ? null : Collections.unmodifiableList(new ArrayList<Token>(params));
+      this.body = Collections.unmodifiableList(new ArrayList<Token>(body));
       this.isVariadic = variadic;
+      this.line = line;
     }
 
     public String toString() {
@@ -111,13 +137,60 @@ public class CxxPreprocessor extends Preprocessor {
         : count == params.size();
     }
 
-    public String name;
-    public List<Token> params;
-    public List<Token> body;
-    public boolean isVariadic;
+    /**
+     * Textual form of the definition, used to compare macros cheaply.
+     */
+    public String getDefinition() {
+      if (definition == null) {
+        StringBuilder sb = new StringBuilder(name);
+        if (params != null) {
+          sb.append('(');
+          for (Token param : params) {
+            sb.append(param.getValue()).append(',');
+          }
+          sb.append(isVariadic ? "...)" : ")");
+        }
+        sb.append(' ');
+        for (Token token : body) {
+          sb.append(token.getValue());
+        }
+        definition = sb.toString();
+      }
+      return definition;
+    }
+
+    public final String name;
+    public final List<Token> params;
+    public final List<Token> body;
+    public final boolean isVariadic;
+    private final String line;
+
+    // derived from the definition, computed on demand
+    private String definition;
+    private List<Token> replacement;
+    private List<List<Token>> lexedBody;
+    private String value;
   }
 
   private static final Logger LOG = LoggerFactory.getLogger("CxxPreprocessor");
+  private static final List<Token> NO_TOKENS = Collections.emptyList();
+  private static final int MAX_LEXED_EXPRESSIONS = 4096;
+  private static final int MAX_PARSED_LINES = 4096;
+  private static final int MAX_PROLOGUE_NODES = 4096;
+  private static final int MAX_INTERNED_MACROS = 16384;
+  private static final int MAX_CACHED_HEADERS = 4096;
+  private static final Set<String> CXX_ONLY_KEYWORDS = StandardDefinitions.cxxOnlyKeywords();
+  private static final String NULLPTR = CxxKeyword.NULLPTR.getValue();
+  private static final Map<String, Integer> PUNCTUATORS = new HashMap<String, Integer>();
+  private static final byte SPACE = 1;
+  private static final byte NO_SPACE = 2;
+
+  static {
+    for (CxxPunctuator punctuator : CxxPunctuator.values()) {
+      PUNCTUATORS.put(punctuator.getValue(), punctuator.ordinal());
+    }
+  }
+
   private Parser<Grammar> pplineParser = null;
   private MapChain<String, Macro> macros = new MapChain<String, Macro>();
   private Set<File> analysedFiles = new HashSet<File>();
@@ -125,6 +198,52 @@ public class CxxPreprocessor extends Preprocessor {
   private SquidAstVisitorContext<Grammar> context;
   private ExpressionEvaluator ifExprEvaluator;
   private List<String> cFilesPatterns;
+  private HeaderSummaryCache headerSummaries = new HeaderSummaryCache();
+  private Map<File, String> includeGuards = new HashMap<File, String>();
+  private Deque<HeaderSummary> summaryRecorders = new LinkedList<HeaderSummary>();
+  private Lexer expressionLexer = null;
+  private final StringPool identifiers = new StringPool();
+  private final byte[][] punctuatorSpacing = new byte[CxxPunctuator.values().length][CxxPunctuator.values().length];
+  private Map<String, Boolean> spacedPairs = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > MAX_LEXED_EXPRESSIONS;
+    }
+  };
+  private ParseProfiler parseProfiler = null;
+  private List<PrefixSnapshot.Resolution> prefixResolutions = null;
+  private Lexer includeLexer = null;
+  private ExpansionBudget expansionBudget;
+  private int expansionDepth = 0;
+  private PrologueNode<Macro> cPrologues = new PrologueNode<Macro>();
+  private PrologueNode<Macro> cxxPrologues = new PrologueNode<Macro>();
+  private PrologueNode<Macro> prologueNode = null;
+  private List<File> prologueAnalysedFiles = null;
+  private int prologueNodes = 0;
+  private Map<String, AstNode> parsedLines = new LinkedHashMap<String, AstNode>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, AstNode> eldest) {
+      return size() > MAX_PARSED_LINES;
+    }
+  };
+  private Map<File, HeaderDirectives> headerDirectives = new LinkedHashMap<File, HeaderDirectives>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, HeaderDirectives> eldest) {
+      return size() > MAX_CACHED_HEADERS;
+    }
+  };
+  private Map<String, Macro> internedMacros = new LinkedHashMap<String, Macro>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Macro> eldest) {
+      return size() > MAX_INTERNED_MACROS;
+    }
+  };
+  private Map<String, List<Token>> lexedExpressions = new LinkedHashMap<String, List<Token>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, List<Token>> eldest) {
+      return size() > MAX_LEXED_EXPRESSIONS;
+    }
+  };
 
   public static class Include {
     private int line;
@@ -199,17 +318,33 @@ public class CxxPreprocessor extends Preprocessor {
     CxxConfiguration conf,
     SourceCodeProvider sourceCodeProvider) {
     this.context = context;
+    if (conf.getParseProfile() != null) {
+      this.parseProfiler = new ParseProfiler(conf.getParseProfile());
+    }
     this.ifExprEvaluator = new ExpressionEvaluator(conf, this);
     this.cFilesPatterns = conf.getCFilesPatterns();
+    this.expansionBudget = new ExpansionBudget(conf);
 
     codeProvider = sourceCodeProvider;
     codeProvider.setIncludeRoots(conf.getIncludeDirectories(), conf.getBaseDir());
+    codeProvider.setCharset(conf.getCharset());
 
-    pplineParser = CppParser.create(conf);
+    pplineParser = CppParser.create(conf, parseProfiler);
 
     try {
       macros.setHighPrio(true);
 
+      // processing the force includes is expensive, reuse the outcome if possible
+      boolean hasForceIncludes = !conf.getForceIncludeFiles().isEmpty();
+      PrefixSnapshot snapshot = hasForceIncludes ? PrefixSnapshot.find(conf, codeProvider) : null;
+      if (snapshot != null) {
+        loadPrefixSnapshot(snapshot);
+        return;
+      }
+      if (hasForceIncludes) {
+        prefixResolutions = new ArrayList<PrefixSnapshot.Resolution>();
+      }
+
       // parse the configured defines and store into the macro library
       for (String define : conf.getDefines()) {
         LOG.debug("parsing external macro: '{}'", define);
@@ -232,8 +367,45 @@ public class CxxPreprocessor extends Preprocessor {
           parseIncludeLine("#include \"" + include + "\"", "sonar.cxx.forceIncludes");
         }
       }
+
+      if (hasForceIncludes) {
+        storePrefixSnapshot(conf);
+      }
     } finally {
       macros.setHighPrio(false);
+      prefixResolutions = null;
+    }
+  }
+
+  private void loadPrefixSnapshot(PrefixSnapshot snapshot) {
+    // the snapshot only holds the final definitions; standard macros
+    // are registered unless a stored definition replaced them
+    Map<String, String> standardMacros = new HashMap<String, String>(StandardDefinitions.macros());
+    for (String line : snapshot.getMacroLines()) {
+      Macro macro = parseMacroDefinition(line);
+      if (macro != null) {
+        macros.put(macro.name, macro);
+        standardMacros.remove(macro.name);
+      }
+    }
+    registerMacros(standardMacros);
+    for (File file : snapshot.getFiles()) {
+      analysedFiles.add(file);
+    }
+    LOG.debug("loaded prefix snapshot with {} macros", snapshot.getMacroLines().size());
+  }
+
+  private void storePrefixSnapshot(CxxConfiguration conf) {
+    // the standard macros are registered anyway, only the parsed ones are stored
+    List<String> lines = new ArrayList<String>();
+    for (Macro macro : macros.getHighPrioMappings().values()) {
+      if (macro.line != null) {
+        lines.add(macro.line);
+      }
+    }
+    PrefixSnapshot snapshot = PrefixSnapshot.create(analysedFiles, prefixResolutions, lines, codeProvider);
+    if (snapshot != null) {
+      PrefixSnapshot.store(conf, snapshot);
     }
   }
 
@@ -245,6 +417,22 @@ public class CxxPreprocessor extends Preprocessor {
     return missingIncludeFiles.get(file.getPath());
   }
 
+  /**
+   * Pool for the spellings of identifiers, to be shared by the lexer feeding
+   * this preprocessor so that expanded and lexed tokens share their strings.
+   */
+  public StringPool getIdentifierPool() {
+    return identifiers;
+  }
+
+  /**
+   * Profiler for the parsers working for this preprocessor and for the one
+   * of the file, or null if the configuration has no parse profile.
+   */
+  public ParseProfiler getParseProfiler() {
+    return parseProfiler;
+  }
+
   private boolean isCFile(String filePath) {
     for (String pattern : cFilesPatterns) {
       if (wildcardMatchOnSystem(filePath, pattern)) {
@@ -257,33 +445,55 @@ public class CxxPreprocessor extends Preprocessor {
   }
 
   private File currentContextFile = null;
+  private File pathFile = null;
+  private String path = null;
+  private boolean cDialect = false;
 
   @Override
   public PreprocessorAction process(List<Token> tokens) {
     Token token = tokens.get(0);
     TokenType ttype = token.getType();
-    File file = getFileUnderAnalysis();
-    String filePath = file == null ? token.getURI().toString() : file.getAbsolutePath();
+    String filePath = getPathUnderAnalysis(token);
 
     if (context.getFile() != currentContextFile) {
       currentContextFile = context.getFile();
-      if (isCFile(currentContextFile.getAbsolutePath())) {
-        //Create macros to replace C++ keywords when parsing C files
-        registerMacros(StandardDefinitions.compatibilityMacros());
-        macros.disable("__cplusplus");
-      } else {
-        macros.enable("__cplusplus");
+      expansionBudget.reset();
+      boolean isCFile = isCFile(currentContextFile.getAbsolutePath());
+      // the lexer already treats the C++ only keywords as identifiers in C files
+      cDialect = isCFile;
+      macros.setHidden("__cplusplus", isCFile);
+
+      // the prologues can only be shared by units which start in the same state;
+      // the first unit may see the force includes as analysed already
+      if (analysedFiles.isEmpty()) {
+        prologueNode = isCFile ? cPrologues : cxxPrologues;
+      }
+    }
+
+    if (prologueNode != null && state.includeUnderAnalysis == null && !isPrologueToken(token)) {
+      prologueNode = null;
+    }
+
+    if (inSkippingMode()) {
+      PreprocessorAction action = skipInactiveTokens(tokens, filePath);
+      if (action != null) {
+        return action;
       }
     }
 
     if (ttype == PREPROCESSOR) {
 
+      PreprocessorAction action = handleTrivialLine(token, filePath);
+      if (action != null) {
+        return action;
+      }
+
       AstNode lineAst = null;
       try {
-        lineAst = pplineParser.parse(token.getValue()).getFirstChild();
+        lineAst = parseLine(token.getValue());
       } catch (com.sonar.sslr.api.RecognitionException re) {
         LOG.warn("Cannot parse '{}', ignoring...", token.getValue());
-        return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+        return skipDirective(token);
       }
 
       String lineKind = lineAst.getName();
@@ -301,7 +511,7 @@ public class CxxPreprocessor extends Preprocessor {
       }
 
       if (inSkippingMode()) {
-        return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+        return skipDirective(token);
       }
 
       if ("defineLine".equals(lineKind)) {
@@ -315,12 +525,12 @@ public class CxxPreprocessor extends Preprocessor {
       // Ignore all other preprocessor directives (which are not handled explicitly)
       // and strip them from the stream
 
-      return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+      return skipDirective(token);
     }
 
     if (ttype != EOF) {
       if (inSkippingMode()) {
-        return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+        return skipDirective(token);
       }
 
       if (ttype != STRING && ttype != NUMBER) {
@@ -331,44 +541,163 @@ public class CxxPreprocessor extends Preprocessor {
     return PreprocessorAction.NO_OPERATION;
   }
 
+  /**
+   * The prologue of a translation unit consists of the includes before any
+   * other token or directive with an effect.
+   */
+  private static boolean isPrologueToken(Token token) {
+    if (token.getType() != PREPROCESSOR) {
+      return false;
+    }
+    String keyword = DirectiveClassifier.keyword(token.getValue());
+    return "include".equals(keyword) || DirectiveClassifier.isIgnored(keyword);
+  }
+
+  /**
+   * Handles the directives which can be recognized without the line grammar,
+   * returns null for all the others.
+   */
+  private PreprocessorAction handleTrivialLine(Token token, String filePath) {
+    String line = token.getValue();
+    String keyword = DirectiveClassifier.keyword(line);
+    if (DirectiveClassifier.isIgnored(keyword)) {
+      return skipDirective(token);
+    } else if ("ifdef".equals(keyword) || "ifndef".equals(keyword)) {
+      String macroName = DirectiveClassifier.ifdefMacroName(line);
+      if (macroName != null) {
+        return handleIfdefLine(macroName, "ifndef".equals(keyword), token, filePath);
+      }
+    } else if ("else".equals(keyword)) {
+      if (DirectiveClassifier.hasNoArguments(line)) {
+        return handleElseLine(null, token, filePath);
+      }
+    } else if ("endif".equals(keyword)) {
+      if (DirectiveClassifier.hasNoArguments(line)) {
+        return handleEndifLine(null, token, filePath);
+      }
+    } else if ("define".equals(keyword) && !inSkippingMode()) {
+      Macro macro = internedMacros.get(line);
+      if (macro != null) {
+        return handleDefineLine(macro, token, filePath);
+      }
+    } else if ("undef".equals(keyword) && !inSkippingMode()) {
+      String macroName = DirectiveClassifier.undefMacroName(line);
+      if (macroName != null) {
+        return handleUndefLine(macroName, token, filePath);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses a preprocessor line with the line grammar. The trees are kept by
+   * the text of the line, as the same lines are seen again and again.
+   */
+  private AstNode parseLine(String line) {
+    AstNode lineAst = parsedLines.get(line);
+    if (lineAst == null) {
+      lineAst = pplineParser.parse(line).getFirstChild();
+      parsedLines.put(line, lineAst);
+    }
+    return lineAst;
+  }
+
+  private PreprocessorAction skipInactiveTokens(List<Token> tokens, String filePath) {
+    // Inside of an inactive branch only the conditional directives are of
+    // interest: consume everything up to the next one in one step and
+    // without parsing any of the skipped directives
+    int size = tokens.size();
+    int skipped = 0;
+    while (skipped < size) {
+      Token token = tokens.get(skipped);
+      TokenType type = token.getType();
+      if (type == EOF || (type == PREPROCESSOR && DirectiveClassifier.isConditional(DirectiveClassifier.keyword(token.getValue())))) {
+        break;
+      }
+      skipped++;
+    }
+
+    if (skipped > 0) {
+      return new PreprocessorAction(skipped, Collections.singletonList(Trivia.createSkippedText(tokens.subList(0, skipped))),
+                                    NO_TOKENS);
+    }
+
+    // the nesting of the conditionals can be maintained without parsing them,
+    // except for an #elif which may end the skipping
+    Token token = tokens.get(0);
+    String keyword = DirectiveClassifier.keyword(token.getValue());
+    if ("if".equals(keyword) || "ifdef".equals(keyword) || "ifndef".equals(keyword)) {
+      state.nestedIfdefs++;
+      return skipDirective(token);
+    } else if ("else".equals(keyword)) {
+      return handleElseLine(null, token, filePath);
+    } else if ("endif".equals(keyword)) {
+      return handleEndifLine(null, token, filePath);
+    } else if ("elif".equals(keyword) && state.nestedIfdefs > 0) {
+      return skipDirective(token);
+    }
+
+    return null;
+  }
+
   public void finishedPreprocessing(File file) {
     // From 16.3.5 "Scope of macro definitions":
     // A macro definition lasts (independent of block structure) until
     // a corresponding #undef directive is encountered or (if none
     // is encountered) until the end of the translation unit.
 
-    LOG.debug("finished preprocessing '{}'", file);
+    LOG.debug("finished preprocessing '{}', header summaries: {} hits, {} misses",
+              new Object[] {file, headerSummaries.getHits(), headerSummaries.getMisses()});
+    LOG.debug("source cache: {} hits, {} misses, {} evictions",
+              new Object[] {codeProvider.getCacheHits(), codeProvider.getCacheMisses(), codeProvider.getCacheEvictions()});
+
+    String budgetSummary = expansionBudget.getSummary();
+    if (budgetSummary != null) {
+      LOG.warn("[{}]: {}", file, budgetSummary);
+    }
+
+    if (parseProfiler != null) {
+      parseProfiler.finishFile(file);
+    }
 
     analysedFiles.clear();
     macros.clearLowPrio();
     state.reset();
     currentContextFile = null;
+    prologueNode = null;
+    prologueAnalysedFiles = null;
   }
 
   public String valueOf(String macroname) {
     String result = null;
-    Macro macro = macros.get(macroname);
+    Macro macro = getMacro(macroname);
     if (macro != null) {
-      result = serialize(macro.body);
+      if (macro.value == null) {
+        macro.value = serialize(macro.body);
+      }
+      result = macro.value;
     }
     return result;
   }
 
   private PreprocessorAction handleIfdefLine(AstNode ast, Token token, String filename) {
+    return handleIfdefLine(getMacroName(ast), ast.getToken().getType() == IFNDEF, token, filename);
+  }
+
+  private PreprocessorAction handleIfdefLine(String macroName, boolean isIfndef, Token token, String filename) {
     if (state.skipping) {
       state.nestedIfdefs++;
     }
     else {
-      Macro macro = macros.get(getMacroName(ast));
-      TokenType tokType = ast.getToken().getType();
-      if ((tokType == IFDEF && macro == null) || (tokType == IFNDEF && macro != null)) {
+      Macro macro = getMacro(macroName);
+      if ((!isIfndef && macro == null) || (isIfndef && macro != null)) {
         LOG.trace("[{}:{}]: '{}' evaluated to false, skipping tokens that follow",
             new Object[] {filename, token.getLine(), token.getValue()});
         state.skipping = true;
       }
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
   }
 
   PreprocessorAction handleElseLine(AstNode ast, Token token, String filename) {
@@ -383,7 +712,7 @@ public class CxxPreprocessor extends Preprocessor {
       state.skipping = !state.skipping;
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
   }
 
   PreprocessorAction handleEndifLine(AstNode ast, Token token, String filename) {
@@ -397,7 +726,7 @@ public class CxxPreprocessor extends Preprocessor {
       state.skipping = false;
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
   }
 
   PreprocessorAction handleIfLine(AstNode ast, Token token, String filename) {
@@ -422,7 +751,7 @@ public class CxxPreprocessor extends Preprocessor {
       }
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
   }
 
   PreprocessorAction handleElIfLine(AstNode ast, Token token, String filename) {
@@ -457,19 +786,32 @@ public class CxxPreprocessor extends Preprocessor {
       }
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
   }
 
   PreprocessorAction handleDefineLine(AstNode ast, Token token, String filename) {
     // Here we have a define directive. Parse it and store the result in a dictionary.
+    return handleDefineLine(internMacro(token.getValue(), ast), token, filename);
+  }
 
-    Macro macro = parseMacroDefinition(ast);
+  private PreprocessorAction handleDefineLine(Macro macro, Token token, String filename) {
     if (macro != null) {
       LOG.trace("[{}:{}]: storing macro: '{}'", new Object[] {filename, token.getLine(), macro});
-      macros.put(macro.name, macro);
+      defineMacro(macro);
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return skipDirective(token);
+  }
+
+  private Macro internMacro(String line, AstNode defineLineAst) {
+    Macro macro = internedMacros.get(line);
+    if (macro == null) {
+      macro = parseMacroDefinition(defineLineAst, line);
+      if (macro != null) {
+        internedMacros.put(line, macro);
+      }
+    }
+    return macro;
   }
 
   private void parseIncludeLine(String includeLine, String filename) {
@@ -495,6 +837,21 @@ public class CxxPreprocessor extends Preprocessor {
       includedFiles.put(currentFile.getPath(), new Include(token.getLine(), includedFile.getAbsolutePath()));
     }
 
+    boolean inPrologue = prologueNode != null && state.includeUnderAnalysis == null && includedFile != null;
+    if (inPrologue) {
+      PrologueNode<Macro> next = prologueNode.getChild(includedFile);
+      if (next != null) {
+        LOG.debug("[{}:{}]: reusing the state after the include prologue up to '{}'",
+                  new Object[] {filename, token.getLine(), includedFile});
+        enterPrologueNode(next);
+        return skipDirective(token);
+      }
+      macros.startJournal();
+      prologueAnalysedFiles = new ArrayList<File>();
+    } else if (state.includeUnderAnalysis == null) {
+      prologueNode = null;
+    }
+
     if (includedFile == null) {
       LOG.warn("[" + filename + ":" + token.getLine() + "]: cannot find the sources for '"
                + token.getValue() + "'");
@@ -502,31 +859,226 @@ public class CxxPreprocessor extends Preprocessor {
         missingIncludeFiles.put(currentFile.getPath(), new Include(token.getLine(), token.getValue()));
       }
     }
-    else if (!analysedFiles.contains(includedFile)) {
-      analysedFiles.add(includedFile.getAbsoluteFile());
+    else if (!isAnalysed(includedFile)) {
+      markAnalysed(includedFile.getAbsoluteFile());
       LOG.debug("[{}:{}]: processing {}, resolved to file '{}'",
                 new Object[] {filename, token.getLine(), token.getValue(), includedFile.getAbsolutePath()});
 
-      stateStack.push(state);
-      state = new State(includedFile);
-
-      try {
-        IncludeLexer.create(this).lex(codeProvider.getSourceCode(includedFile));
-      } finally {
-        state = stateStack.pop();
+      if (isGuarded(includedFile)) {
+        // multiple-include optimization: the header cannot have any effect
+        LOG.debug("[{}:{}]: skipping '{}', its include guard is defined",
+                  new Object[] {filename, token.getLine(), includedFile});
+      } else {
+        String code = codeProvider.getSourceCode(includedFile);
+        if (!includeGuards.containsKey(includedFile)) {
+          includeGuards.put(includedFile, IncludeGuardDetector.detect(code));
+        }
+        if (code != null && !macros.isHighPrioEnabled()) {
+          processWithSummary(includedFile, code);
+        } else {
+          processInclude(includedFile, code, code == null ? null : HeaderSummaryCache.hash(codeProvider, includedFile, code));
+        }
       }
     }
     else {
       LOG.debug("[{}:{}]: skipping already included file '{}'", new Object[] {filename, token.getLine(), includedFile});
     }
 
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    if (inPrologue) {
+      addPrologueNode(includedFile);
+    }
+
+    return skipDirective(token);
+  }
+
+  private void enterPrologueNode(PrologueNode<Macro> node) {
+    macros.applyLowPrio(node.getMacroChanges());
+    analysedFiles.addAll(node.getAnalysedFiles());
+    prologueNode = node;
+  }
+
+  private void addPrologueNode(File includedFile) {
+    // remember the changes of this include, unless they depend on an exhausted expansion budget
+    Map<String, Macro> changes = macros.stopJournal();
+    List<File> files = prologueAnalysedFiles;
+    prologueAnalysedFiles = null;
+    if (expansionBudget.getSummary() != null || prologueNodes >= MAX_PROLOGUE_NODES) {
+      prologueNode = null;
+      return;
+    }
+
+    PrologueNode<Macro> node = new PrologueNode<Macro>(changes, files);
+    prologueNode.addChild(includedFile, node);
+    prologueNodes++;
+    prologueNode = node;
+  }
+
+  private boolean isGuarded(File includedFile) {
+    String guard = includeGuards.get(includedFile);
+    return guard != null && getMacro(guard) != null;
+  }
+
+  private void processInclude(File includedFile, String code, String contentHash) {
+    if (code == null) {
+      LOG.warn("cannot read the contents of '{}'", includedFile);
+      return;
+    }
+    List<Token> directives = getDirectives(includedFile, code, contentHash);
+
+    stateStack.push(state);
+    state = new State(includedFile);
+
+    try {
+      // the same as a lexer with this preprocessor would do, minus the collection of the tokens
+      int i = 0;
+      while (i < directives.size()) {
+        PreprocessorAction action = process(directives.subList(i, directives.size()));
+        i += Math.max(1, action.getNumberOfConsumedTokens());
+      }
+    } finally {
+      state = stateStack.pop();
+    }
+  }
+
+  /**
+   * The directive tokens of a header. They are kept as long as the header
+   * has the same content hash, so including it again needs no lexing.
+   */
+  private List<Token> getDirectives(File includedFile, String code, String contentHash) {
+    HeaderDirectives cached = headerDirectives.get(includedFile);
+    if (cached != null && cached.contentHash.equals(contentHash)) {
+      return cached.tokens;
+    }
+
+    if (includeLexer == null) {
+      includeLexer = IncludeLexer.create();
+    }
+    List<Token> tokens = new ArrayList<Token>(includeLexer.lex(code));
+    headerDirectives.put(includedFile, new HeaderDirectives(contentHash, tokens));
+    return tokens;
+  }
+
+  private void processWithSummary(File includedFile, String code) {
+    // Replay the effects the header had in a previous translation unit, if
+    // everything it depends on is the same; otherwise process it and record them
+    String contentHash = HeaderSummaryCache.hash(codeProvider, includedFile, code);
+    for (HeaderSummary summary : headerSummaries.getVariants(includedFile, contentHash)) {
+      if (isApplicable(summary)) {
+        headerSummaries.hit();
+        LOG.trace("replaying the summary of '{}'", includedFile);
+        replay(summary);
+        return;
+      }
+    }
+
+    headerSummaries.miss();
+    HeaderSummary summary = new HeaderSummary(contentHash);
+    summaryRecorders.push(summary);
+    try {
+      processInclude(includedFile, code, contentHash);
+    } finally {
+      summaryRecorders.pop();
+    }
+    // with an exhausted expansion budget the effects depend on the macros left unexpanded
+    if (expansionBudget.getSummary() == null) {
+      headerSummaries.put(includedFile, summary);
+    }
+  }
+
+  private boolean isApplicable(HeaderSummary summary) {
+    for (Map.Entry<String, String> dependency : summary.getMacroDependencies().entrySet()) {
+      Macro macro = macros.get(dependency.getKey());
+      String definition = macro == null ? null : macro.getDefinition();
+      if (definition == null ? dependency.getValue() != null : !definition.equals(dependency.getValue())) {
+        return false;
+      }
+    }
+    for (Map.Entry<File, Boolean> dependency : summary.getFileDependencies().entrySet()) {
+      if (analysedFiles.contains(dependency.getKey()) != dependency.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void replay(HeaderSummary summary) {
+    // the enclosing headers depend on the same state as the replayed one
+    for (HeaderSummary recorder : summaryRecorders) {
+      for (Map.Entry<String, String> dependency : summary.getMacroDependencies().entrySet()) {
+        recorder.macroRead(dependency.getKey(), dependency.getValue());
+      }
+      for (Map.Entry<File, Boolean> dependency : summary.getFileDependencies().entrySet()) {
+        recorder.fileRead(dependency.getKey(), dependency.getValue());
+      }
+    }
+
+    for (HeaderSummary.Effect effect : summary.getEffects()) {
+      switch (effect.getKind()) {
+        case DEFINE:
+          defineMacro(effect.getMacro());
+          break;
+        case UNDEF:
+          undefineMacro(effect.getMacroName());
+          break;
+        case ANALYSED:
+          markAnalysed(effect.getFile());
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private Macro getMacro(String name) {
+    Macro macro = macros.get(name);
+    if (!summaryRecorders.isEmpty()) {
+      String definition = macro == null ? null : macro.getDefinition();
+      for (HeaderSummary recorder : summaryRecorders) {
+        recorder.macroRead(name, definition);
+      }
+    }
+    return macro;
+  }
+
+  private void defineMacro(Macro macro) {
+    macros.put(macro.name, macro);
+    for (HeaderSummary recorder : summaryRecorders) {
+      recorder.define(macro);
+    }
+  }
+
+  private void undefineMacro(String name) {
+    macros.removeLowPrio(name);
+    for (HeaderSummary recorder : summaryRecorders) {
+      recorder.undef(name);
+    }
+  }
+
+  private boolean isAnalysed(File file) {
+    boolean analysed = analysedFiles.contains(file);
+    for (HeaderSummary recorder : summaryRecorders) {
+      recorder.fileRead(file, analysed);
+    }
+    return analysed;
+  }
+
+  private void markAnalysed(File file) {
+    analysedFiles.add(file);
+    if (prologueAnalysedFiles != null) {
+      prologueAnalysedFiles.add(file);
+    }
+    for (HeaderSummary recorder : summaryRecorders) {
+      recorder.analysed(file);
+    }
   }
 
   PreprocessorAction handleUndefLine(AstNode ast, Token token, String filename) {
-    String macroName = ast.getFirstDescendant(IDENTIFIER).getTokenValue();
-    macros.removeLowPrio(macroName);
-    return new PreprocessorAction(1, Lists.newArrayList(Trivia.createSkippedText(token)), new ArrayList<Token>());
+    return handleUndefLine(ast.getFirstDescendant(IDENTIFIER).getTokenValue(), token, filename);
+  }
+
+  private PreprocessorAction handleUndefLine(String macroName, Token token, String filename) {
+    undefineMacro(macroName);
+    return skipDirective(token);
   }
 
   PreprocessorAction handleIdentifiersAndKeywords(List<Token> tokens, Token curr, String filename) {
@@ -537,69 +1089,86 @@ public class CxxPreprocessor extends Preprocessor {
     //
 
     PreprocessorAction ppaction = PreprocessorAction.NO_OPERATION;
-    Macro macro = macros.get(curr.getValue());
+    Macro macro = getMacro(curr.getValue());
     if (macro != null) {
-      List<Token> replTokens = new LinkedList<Token>();
-      int tokensConsumed = 0;
-
-      if (macro.params == null) {
-        tokensConsumed = 1;
-        replTokens = expandMacro(macro.name, serialize(evaluateHashhashOperators(macro.body)));
+      if (!expansionBudget.allows(macro.name, expansionDepth)) {
+        // leave the macro unexpanded, the limits are reported once per translation unit
+        return ppaction;
       }
-      else {
-        int tokensConsumedMatchingArgs = expandFunctionLikeMacro(macro.name,
-            tokens.subList(1, tokens.size()),
-            replTokens);
-        if (tokensConsumedMatchingArgs > 0) {
-          tokensConsumed = 1 + tokensConsumedMatchingArgs;
-        }
+      expansionDepth++;
+      try {
+        ppaction = expandMacroInstance(macro, tokens, curr, filename);
+      } finally {
+        expansionDepth--;
       }
+    }
 
-      if (tokensConsumed > 0) {
+    return ppaction;
+  }
 
-        // Rescanning to expand function like macros, in case it requires consuming more tokens
-        List<Token> outTokens = new LinkedList<Token>();
-        macros.disable(macro.name);
-        while(!replTokens.isEmpty()) {
-          Token c = replTokens.get(0);
-          PreprocessorAction action = PreprocessorAction.NO_OPERATION;
-          if (c.getType() == IDENTIFIER) {
-            List<Token> rest = new ArrayList(replTokens);
-            rest.addAll(tokens.subList(tokensConsumed, tokens.size()));
-            action = handleIdentifiersAndKeywords(rest, c, filename);
-          }
-          if (action == PreprocessorAction.NO_OPERATION) {
-            replTokens = replTokens.subList(1, replTokens.size());
-            outTokens.add(c);
+  private PreprocessorAction expandMacroInstance(Macro macro, List<Token> tokens, Token curr, String filename) {
+    PreprocessorAction ppaction = PreprocessorAction.NO_OPERATION;
+    List<Token> replTokens = new LinkedList<Token>();
+    int tokensConsumed = 0;
+
+    if (macro.params == null) {
+      tokensConsumed = 1;
+      replTokens = expandMacro(macro.name, getReplacement(macro));
+    }
+    else {
+      int tokensConsumedMatchingArgs = expandFunctionLikeMacro(macro.name,
+          tokens.subList(1, tokens.size()),
+          replTokens);
+      if (tokensConsumedMatchingArgs > 0) {
+        tokensConsumed = 1 + tokensConsumedMatchingArgs;
+      }
+    }
+
+    if (tokensConsumed > 0) {
+
+      // Rescanning to expand function like macros, in case it requires consuming more tokens
+      List<Token> outTokens = new LinkedList<Token>();
+      macros.disable(macro.name);
+      while(!replTokens.isEmpty()) {
+        Token c = replTokens.get(0);
+        PreprocessorAction action = PreprocessorAction.NO_OPERATION;
+        if (c.getType() == IDENTIFIER) {
+          List<Token> rest = new ArrayList(replTokens);
+          rest.addAll(tokens.subList(tokensConsumed, tokens.size()));
+          action = handleIdentifiersAndKeywords(rest, c, filename);
+        }
+        if (action == PreprocessorAction.NO_OPERATION) {
+          replTokens = replTokens.subList(1, replTokens.size());
+          outTokens.add(c);
+        }
+        else {
+          outTokens.addAll(action.getTokensToInject());
+          int tokensConsumedRescanning = action.getNumberOfConsumedTokens();
+          if (tokensConsumedRescanning >= replTokens.size()) {
+            tokensConsumed += tokensConsumedRescanning - replTokens.size();
+            replTokens = replTokens.subList(replTokens.size(), replTokens.size());
           }
           else {
-            outTokens.addAll(action.getTokensToInject());
-            int tokensConsumedRescanning = action.getNumberOfConsumedTokens();
-            if (tokensConsumedRescanning >= replTokens.size()) {
-              tokensConsumed += tokensConsumedRescanning - replTokens.size();
-              replTokens = replTokens.subList(replTokens.size(), replTokens.size());
-            }
-            else {
-              replTokens = replTokens.subList(tokensConsumedRescanning, replTokens.size());
-            }
+            replTokens = replTokens.subList(tokensConsumedRescanning, replTokens.size());
           }
         }
-        replTokens = outTokens;
-        macros.enable(macro.name);
-
-        replTokens = reallocate(replTokens, curr);
-
-        LOG.trace("[{}:{}]: replacing '" + curr.getValue()
-                + (tokensConsumed == 1
-                ? ""
-                : serialize(tokens.subList(1, tokensConsumed))) + "' -> '" + serialize(replTokens) + "'",
-            filename, curr.getLine());
-
-        ppaction = new PreprocessorAction(
-            tokensConsumed,
-            Lists.newArrayList(Trivia.createSkippedText(tokens.subList(0, tokensConsumed))),
-            replTokens);
       }
+      replTokens = outTokens;
+      macros.enable(macro.name);
+
+      replTokens = reallocate(replTokens, curr);
+      expansionBudget.consumed(replTokens.size());
+
+      LOG.trace("[{}:{}]: replacing '" + curr.getValue()
+              + (tokensConsumed == 1
+              ? ""
+              : serialize(tokens.subList(1, tokensConsumed))) + "' -> '" + serialize(replTokens) + "'",
+          filename, curr.getLine());
+
+      ppaction = new PreprocessorAction(
+          tokensConsumed,
+          Lists.newArrayList(Trivia.createSkippedText(tokens.subList(0, tokensConsumed))),
+          replTokens);
     }
 
     return ppaction;
@@ -612,47 +1181,166 @@ public class CxxPreprocessor extends Preprocessor {
   }
 
   private int expandFunctionLikeMacro(String macroName, List<Token> restTokens, List<Token> expansion) {
-    List<Token> replTokens = null;
-    List<Token> arguments = new ArrayList<Token>();
+    List<MacroArgument> arguments = new ArrayList<MacroArgument>();
     int tokensConsumedMatchingArgs = matchArguments(restTokens, arguments);
 
-    Macro macro = macros.get(macroName);
+    Macro macro = getMacro(macroName);
     if (macro != null && macro.checkArgumentsCount(arguments.size())) {
       if (arguments.size() > macro.params.size()) {
         //Group all arguments into the last one
-        List<Token> vaargs = arguments.subList(macro.params.size() - 1, arguments.size());
-        Token firstToken = vaargs.get(0);
-        arguments = arguments.subList(0, macro.params.size() - 1);
-        arguments.add(Token.builder()
-            .setLine(firstToken.getLine())
-            .setColumn(firstToken.getColumn())
-            .setURI(firstToken.getURI())
-            .setValueAndOriginalValue(serialize(vaargs, ","))
-            .setType(STRING)
-            .build());
+        List<MacroArgument> vaargs = arguments.subList(macro.params.size() - 1, arguments.size());
+        MacroArgument grouped = groupArguments(vaargs, restTokens.get(0));
+        arguments = new ArrayList<MacroArgument>(arguments.subList(0, macro.params.size() - 1));
+        arguments.add(grouped);
       }
-      replTokens = replaceParams(macro.body, macro.params, arguments);
+      List<Token> replTokens = replaceParams(macro, arguments);
       replTokens = evaluateHashhashOperators(replTokens);
-      expansion.addAll(expandMacro(macro.name, serialize(replTokens)));
+      expansion.addAll(expandMacro(macro.name, toExpressionTokens(replTokens)));
     }
 
     return tokensConsumedMatchingArgs;
   }
 
+  /**
+   * An argument of a function-like macro instance: its tokens, their text as
+   * operand of # and, computed once when needed, its complete expansion.
+   */
+  private static final class MacroArgument {
+    private final Token position;
+    private final List<Token> tokens;
+    private final String text;
+    private List<Token> expansion = null;
+
+    MacroArgument(Token position, List<Token> tokens, String text) {
+      this.position = position;
+      this.tokens = tokens;
+      this.text = text;
+    }
+  }
+
+  private static MacroArgument groupArguments(List<MacroArgument> arguments, Token position) {
+    List<Token> tokens = new ArrayList<Token>();
+    List<String> texts = new ArrayList<String>();
+    for (MacroArgument argument : arguments) {
+      if (!texts.isEmpty()) {
+        tokens.add(Token.builder()
+            .setLine(argument.position.getLine())
+            .setColumn(argument.position.getColumn())
+            .setURI(argument.position.getURI())
+            .setValueAndOriginalValue(",")
+            .setType(CxxPunctuator.COMMA)
+            .build());
+      }
+      tokens.addAll(argument.tokens);
+      texts.add(argument.text);
+    }
+    Token first = arguments.isEmpty() ? position : arguments.get(0).position;
+    return new MacroArgument(first, tokens, StringUtils.join(texts, ","));
+  }
+
+  private List<Token> getExpansion(MacroArgument argument) {
+    if (argument.expansion == null) {
+      argument.expansion = expandMacro("", argument.tokens);
+    }
+    return argument.expansion;
+  }
+
   private List<Token> expandMacro(String macroName, String macroExpression) {
+    return expandMacro(macroName, lexExpression(macroExpression));
+  }
+
+  private List<Token> expandMacro(String macroName, List<Token> lexedExpression) {
     // C++ standard 16.3.4/2 Macro Replacement - Rescanning and further replacement
     List<Token> tokens = null;
     macros.disable(macroName);
     try {
-      tokens = stripEOF(CxxLexer.create(this).lex(macroExpression));
+      tokens = stripEOF(rescan(lexedExpression));
     } finally {
       macros.enable(macroName);
     }
     return tokens;
   }
 
+  /**
+   * Runs this preprocessor over already lexed tokens, the same way the lexer
+   * does after its channels consumed the code.
+   */
+  private List<Token> rescan(List<Token> tokens) {
+    List<Token> result = new ArrayList<Token>(tokens.size());
+    List<Trivia> trivia = new ArrayList<Trivia>();
+    int i = 0;
+    while (i < tokens.size()) {
+      PreprocessorAction action = process(tokens.subList(i, tokens.size()));
+      trivia.addAll(action.getTriviaToInject());
+      for (Token tokenToInject : action.getTokensToInject()) {
+        trivia = addToken(result, trivia, tokenToInject);
+      }
+      if (action.getNumberOfConsumedTokens() == 0) {
+        trivia = addToken(result, trivia, tokens.get(i));
+        i++;
+      } else {
+        i += action.getNumberOfConsumedTokens();
+      }
+    }
+    return result;
+  }
+
+  private static List<Trivia> addToken(List<Token> tokens, List<Trivia> trivia, Token token) {
+    if (trivia.isEmpty()) {
+      tokens.add(token);
+      return trivia;
+    }
+    trivia.addAll(token.getTrivia());
+    tokens.add(Token.builder(token).setTrivia(trivia).build());
+    return new ArrayList<Trivia>();
+  }
+
+  /**
+   * Lexes a macro expression without preprocessing it. The outcome depends
+   * on the text only, hence it is memoized.
+   */
+  private List<Token> lexExpression(String expression) {
+    List<Token> tokens = lexedExpressions.get(expression);
+    if (tokens == null) {
+      tokens = Collections.unmodifiableList(new ArrayList<Token>(getExpressionLexer().lex(expression)));
+      lexedExpressions.put(expression, tokens);
+    }
+    return tokens;
+  }
+
+  private Lexer getExpressionLexer() {
+    if (expressionLexer == null) {
+      expressionLexer = CxxLexer.create(new CxxConfiguration(), identifiers);
+    }
+    return expressionLexer;
+  }
+
+  /**
+   * Lexed replacement list of an object-like macro. It is kept with the macro
+   * unless ## operators make it depend on the macros defined at expansion time.
+   */
+  private List<Token> getReplacement(Macro macro) {
+    if (macro.replacement != null) {
+      return macro.replacement;
+    }
+    List<Token> replacement = lexExpression(serialize(evaluateHashhashOperators(macro.body)));
+    if (!containsHashhash(macro.body)) {
+      macro.replacement = replacement;
+    }
+    return replacement;
+  }
+
+  private static boolean containsHashhash(List<Token> tokens) {
+    for (Token token : tokens) {
+      if ("##".equals(token.getValue())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private List<Token> stripEOF(List<Token> tokens) {
-    if (tokens.get(tokens.size() - 1).getType() == EOF){
+    if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).getType() == EOF){
       return tokens.subList(0, tokens.size() - 1);
     }
     else{
@@ -661,26 +1349,78 @@ public class CxxPreprocessor extends Preprocessor {
   }
 
   private String serialize(List<Token> tokens) {
-	StringBuilder sb = new StringBuilder();
-	if (!tokens.isEmpty()) {
-		sb.append(tokens.get(0).getValue());
-	}
-	for (int i = 1 ; i < tokens.size(); ++i) {
-		Token token = tokens.get(i);
-		if (token.hasTrivia()) {
-			sb.append(' ');
-		}
-		else {
-			Lexer lexer = CxxLexer.create();
-			if (lexer.lex(tokens.get(i-1).getValue()+token.getValue()).size() < 3 ) { // 2 tokens + EOF
-				sb.append(' ');
-			}
-		}
-		sb.append(token.getValue());
-	}
+    StringBuilder sb = new StringBuilder();
+    Token prev = null;
+    for (Token token : tokens) {
+      if (prev != null && (token.hasTrivia() || needsSpace(prev.getValue(), token.getValue()))) {
+        sb.append(' ');
+      }
+      sb.append(token.getValue());
+      prev = token;
+    }
     return sb.toString();
   }
 
+  /**
+   * Whether two adjacent tokens have to be separated by a space in order to
+   * be lexed as two tokens again. Words and punctuators are decided from
+   * their spelling, pairs of punctuators from a table filled on demand;
+   * literals and anything else are lexed once and memoized.
+   */
+  private boolean needsSpace(String left, String right) {
+    if (left.isEmpty() || right.isEmpty()) {
+      return true;
+    }
+    boolean leftIsWord = isWord(left) && !left.startsWith(NULLPTR);
+    boolean rightIsWord = isWord(right);
+    Integer leftPunctuator = PUNCTUATORS.get(left);
+    Integer rightPunctuator = PUNCTUATORS.get(right);
+    if (leftIsWord && (rightIsWord || rightPunctuator != null)) {
+      return rightIsWord;
+    }
+    if (leftPunctuator != null && rightIsWord) {
+      return false;
+    }
+    if (leftPunctuator != null && rightPunctuator != null) {
+      byte spacing = punctuatorSpacing[leftPunctuator][rightPunctuator];
+      if (spacing == 0) {
+        spacing = lexesAsOneToken(left + right) ? SPACE : NO_SPACE;
+        punctuatorSpacing[leftPunctuator][rightPunctuator] = spacing;
+      }
+      return spacing == SPACE;
+    }
+
+    String pair = left + right;
+    Boolean spaced = spacedPairs.get(pair);
+    if (spaced == null) {
+      spaced = lexesAsOneToken(pair);
+      spacedPairs.put(pair, spaced);
+    }
+    return spaced;
+  }
+
+  private boolean lexesAsOneToken(String text) {
+    return getExpressionLexer().lex(text).size() < 3; // 2 tokens + EOF
+  }
+
+  /**
+   * Identifiers and keywords: the spellings the identifier channel consumes
+   * as a whole.
+   */
+  private static boolean isWord(String value) {
+    char first = value.charAt(0);
+    if (!(first >= 'a' && first <= 'z') && !(first >= 'A' && first <= 'Z') && first != '_') {
+      return false;
+    }
+    for (int i = 1; i < value.length(); i++) {
+      char ch = value.charAt(i);
+      if (!(ch >= 'a' && ch <= 'z') && !(ch >= 'A' && ch <= 'Z') && !(ch >= '0' && ch <= '9') && ch != '_') {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private String serialize(List<Token> tokens, String spacer) {
     List<String> values = new LinkedList<String>();
     for (Token t : tokens) {
@@ -689,7 +1429,7 @@ public class CxxPreprocessor extends Preprocessor {
     return StringUtils.join(values, spacer);
   }
 
-  private int matchArguments(List<Token> tokens, List<Token> arguments) {
+  private int matchArguments(List<Token> tokens, List<MacroArgument> arguments) {
     List<Token> rest = tokens;
     try {
       rest = match(rest, "(");
@@ -724,25 +1464,19 @@ public class CxxPreprocessor extends Preprocessor {
     return tokens.subList(1, tokens.size());
   }
 
-  private List<Token> matchArgument(List<Token> tokens, List<Token> arguments) throws MismatchException {
+  private List<Token> matchArgument(List<Token> tokens, List<MacroArgument> arguments) throws MismatchException {
     int nestingLevel = 0;
     int tokensConsumed = 0;
     int noTokens = tokens.size();
     Token firstToken = tokens.get(0);
     Token currToken = firstToken;
     String curr = currToken.getValue();
-    List<Token> matchedTokens = new LinkedList<Token>();
+    List<Token> matchedTokens = new ArrayList<Token>();
 
     while (true) {
       if (nestingLevel == 0 && (",".equals(curr) || ")".equals(curr))) {
         if (tokensConsumed > 0) {
-          arguments.add(Token.builder()
-              .setLine(firstToken.getLine())
-              .setColumn(firstToken.getColumn())
-              .setURI(firstToken.getURI())
-              .setValueAndOriginalValue(serialize(matchedTokens))
-              .setType(STRING)
-              .build());
+          arguments.add(new MacroArgument(firstToken, matchedTokens, serialize(matchedTokens)));
         }
         return tokens.subList(tokensConsumed, noTokens);
       }
@@ -758,21 +1492,28 @@ public class CxxPreprocessor extends Preprocessor {
         throw new MismatchException("reached the end of the stream while matching a macro argument");
       }
 
-      matchedTokens.add(currToken);
+      // the lines of #if expressions come with whitespace tokens
+      if (currToken.getType() != WS) {
+        matchedTokens.add(currToken);
+      }
       currToken = tokens.get(tokensConsumed);
       curr = currToken.getValue();
     }
   }
 
-  private List<Token> replaceParams(List<Token> body, List<Token> parameters, List<Token> arguments) {
+  private List<Token> replaceParams(Macro macro, List<MacroArgument> arguments) {
     // Replace all parameters by according arguments
     // "Stringify" the argument if the according parameter is preceded by an #
-	// Protect arguments to ## operator
+    // Protect arguments to ## operator
+    // The other tokens of the body are replaced by their lexed form, only
+    // whitespace, # and ## are kept as they are for the ## evaluation
 
+    List<Token> body = macro.body;
     List<Token> newTokens = new ArrayList<Token>();
     if (!body.isEmpty()) {
+      List<List<Token>> lexedBody = getLexedBody(macro);
       List<String> defParamValues = new ArrayList<String>();
-      for (Token t : parameters) {
+      for (Token t : macro.params) {
         defParamValues.add(t.getValue());
       }
 
@@ -780,60 +1521,65 @@ public class CxxPreprocessor extends Preprocessor {
         Token curr = body.get(i);
         int index = defParamValues.indexOf(curr.getValue());
         if (index == -1) {
-          newTokens.add(curr);
+          List<Token> lexed = lexedBody.get(i);
+          if (lexed == null) {
+            newTokens.add(curr);
+          } else {
+            newTokens.addAll(lexed);
+          }
         }
         else if (index == arguments.size()) {
           // EXTENSION: GCC's special meaning of token paste operator
           // If variable argument is left out then the comma before the paste operator will be deleted
-          int j = i;
-          while(j > 0 && body.get(j - 1).getType() == WS)
-            j--;
-          if (j == 0 || !"##".equals(body.get(--j).getValue()))
-            continue;
-          int k = j;
-          while(j > 0 && body.get(j - 1).getType() == WS)
-            j--;
-          if (j > 0 && ",".equals(body.get(j - 1).getValue())) {
-            newTokens.remove(newTokens.size() - 1 + j - i); //remove the comma
-            newTokens.remove(newTokens.size() - 1 + k - i); //remove the paste operator
+          int pasteOperator = lastNonWhitespace(newTokens, newTokens.size() - 1);
+          if (pasteOperator >= 0 && "##".equals(newTokens.get(pasteOperator).getValue())) {
+            int comma = lastNonWhitespace(newTokens, pasteOperator - 1);
+            if (comma >= 0 && ",".equals(newTokens.get(comma).getValue())) {
+              newTokens.remove(pasteOperator);
+              newTokens.remove(comma);
+            }
           }
         }
         else if (index < arguments.size()) {
           boolean isHashOperand = (i > 0 && body.get(i-1).getValue().equals("#"));
           if (!isHashOperand) {
-        	int j = i - 1;
+            int j = i - 1;
             while (j >= 0 && body.get(j).getType() == WS) {
-            	--j;
+              --j;
             }
             if (j >= 0 && body.get(j).getValue().equals("##")) {
-            	isHashOperand = j == 0 || !body.get(j-1).getValue().equals("#");
+              isHashOperand = j == 0 || !body.get(j-1).getValue().equals("#");
             }
             else {
-            	j = i + 1;
-            	while (j < body.size() && body.get(j).getType() == WS) {
-            		++j;
-            	}
-            	isHashOperand = j < body.size() && body.get(j).getValue().equals("##");
+              j = i + 1;
+              while (j < body.size() && body.get(j).getType() == WS) {
+                ++j;
+              }
+              isHashOperand = j < body.size() && body.get(j).getValue().equals("##");
+            }
           }
-        }
-          Token replacement = arguments.get(index);
-          // The arguments have to be fully expanded before expanding the body of the macro, unless they are operand to # or ##
-          String newValue = (isHashOperand)
-        		  ? replacement.getOriginalValue() 
-        		  : serialize(expandMacro("", replacement.getValue()));
 
+          MacroArgument argument = arguments.get(index);
           if (!newTokens.isEmpty() && newTokens.get(newTokens.size() - 1).getValue().equals("#")) {
             newTokens.remove(newTokens.size() - 1);
-            newValue = encloseWithQuotes(quote(newValue));
+            String text = isHashOperand ? argument.text : serialize(getExpansion(argument));
+            newTokens.add(Token.builder()
+                .setLine(argument.position.getLine())
+                .setColumn(argument.position.getColumn())
+                .setURI(argument.position.getURI())
+                .setValueAndOriginalValue(encloseWithQuotes(quote(text)))
+                .setType(STRING)
+                .setGeneratedCode(true)
+                .build());
+          } else if (isHashOperand) {
+            // operands of ## are not expanded; marked so that the ## evaluation keeps them apart
+            for (Token token : argument.tokens) {
+              newTokens.add(Token.builder(token).setGeneratedCode(true).build());
+            }
+          } else {
+            // the arguments have to be fully expanded before expanding the body of the macro
+            newTokens.addAll(getExpansion(argument));
           }
-          newTokens.add(Token.builder()
-              .setLine(replacement.getLine())
-              .setColumn(replacement.getColumn())
-              .setURI(replacement.getURI())
-              .setValueAndOriginalValue(newValue)
-              .setType(replacement.getType())
-              .setGeneratedCode(true)
-              .build());
         }
       }
     }
@@ -841,6 +1587,55 @@ public class CxxPreprocessor extends Preprocessor {
     return newTokens;
   }
 
+  private static int lastNonWhitespace(List<Token> tokens, int from) {
+    int i = from;
+    while (i >= 0 && tokens.get(i).getType() == WS) {
+      i--;
+    }
+    return i;
+  }
+
+  /**
+   * The tokens of a function-like macro body as the expression lexer sees
+   * them, null for whitespace and for # and ##. Computed once per macro.
+   */
+  private List<List<Token>> getLexedBody(Macro macro) {
+    if (macro.lexedBody == null) {
+      List<List<Token>> lexedBody = new ArrayList<List<Token>>(macro.body.size());
+      for (Token token : macro.body) {
+        if (token.getType() == WS || token.getValue().startsWith("#")) {
+          lexedBody.add(null);
+        } else {
+          lexedBody.add(stripEOF(lexExpression(token.getValue())));
+        }
+      }
+      macro.lexedBody = lexedBody;
+    }
+    return macro.lexedBody;
+  }
+
+  /**
+   * Drops the whitespace left over from the macro body. A # or ## which is
+   * not an operator is lexed together with the rest of the text, as the
+   * expression lexer turns it into a directive.
+   */
+  private List<Token> toExpressionTokens(List<Token> tokens) {
+    List<Token> result = new ArrayList<Token>(tokens.size());
+    for (int i = 0; i < tokens.size(); i++) {
+      Token token = tokens.get(i);
+      String value = token.getValue();
+      if (token.getType() == WS || value.isEmpty()) {
+        continue;
+      }
+      if (value.charAt(0) == '#') {
+        result.addAll(stripEOF(lexExpression(serialize(tokens.subList(i, tokens.size())))));
+        break;
+      }
+      result.add(token);
+    }
+    return result;
+  }
+
   private List<Token> evaluateHashhashOperators(List<Token> tokens) {
     List<Token> newTokens = new ArrayList<Token>();
 
@@ -850,16 +1645,23 @@ public class CxxPreprocessor extends Preprocessor {
       if ("##".equals(curr.getValue())) {
         Token pred = predConcatToken(newTokens);
         Token succ = succConcatToken(it);
-        String replacement = pred.getValue().replaceFirst("\\s*$", "") + succ.getValue().replaceFirst("^\\s*", "");
-        replacement = serialize(expandMacro("", replacement));
-        newTokens.add(Token.builder()
-            .setLine(pred.getLine())
-            .setColumn(pred.getColumn())
-            .setURI(pred.getURI())
-            .setValueAndOriginalValue(replacement)
-            .setType(pred.getType())
-            .setGeneratedCode(true)
-            .build());
+        String pasted = (pred == null ? "" : pred.getValue()) + (succ == null ? "" : succ.getValue());
+        Token position = pred == null ? curr : pred;
+        List<Token> replacement = expandMacro("", lexExpression(pasted));
+        if (replacement.isEmpty()) {
+          // an empty operand for a following ##
+          newTokens.add(Token.builder()
+              .setLine(position.getLine())
+              .setColumn(position.getColumn())
+              .setURI(position.getURI())
+              .setValueAndOriginalValue("")
+              .setType(IDENTIFIER)
+              .setGeneratedCode(true)
+              .build());
+        }
+        for (Token token : replacement) {
+          newTokens.add(Token.builder(token).setGeneratedCode(true).build());
+        }
       } else {
         newTokens.add(curr);
       }
@@ -874,7 +1676,7 @@ public class CxxPreprocessor extends Preprocessor {
       if (last.getType() != WS) {
         if ( !tokens.isEmpty() ) {
           Token pred = tokens.get(tokens.size() - 1);
-          if (pred.getType() != WS && !pred.hasTrivia()) {
+          if (pred.getType() != WS && !pred.hasTrivia() && !pred.isGeneratedCode()) {
             // Needed to paste tokens 0 and x back together after #define N(hex) 0x ## hex
             tokens.remove(tokens.size() - 1);
             String replacement = pred.getValue() + last.getValue();
@@ -922,7 +1724,7 @@ public class CxxPreprocessor extends Preprocessor {
           .setColumn(currColumn)
           .setURI(token.getURI())
           .setValueAndOriginalValue(t.getValue())
-          .setType(t.getType())
+          .setType(dialectType(t))
           .setGeneratedCode(true)
           .build());
       currColumn += t.getValue().length() + 1;
@@ -931,12 +1733,27 @@ public class CxxPreprocessor extends Preprocessor {
     return reallocated;
   }
 
+  /**
+   * Replacements are lexed as C++, in C files the C++ only keywords
+   * have to become identifiers like in the rest of the file.
+   */
+  private TokenType dialectType(Token token) {
+    TokenType type = token.getType();
+    if (cDialect && type instanceof CxxKeyword && CXX_ONLY_KEYWORDS.contains(token.getValue())) {
+      return IDENTIFIER;
+    }
+    return type;
+  }
+
   private Macro parseMacroDefinition(String macroDef) {
-    return parseMacroDefinition(pplineParser.parse(macroDef)
-        .getFirstDescendant(CppGrammar.defineLine));
+    Macro macro = internedMacros.get(macroDef);
+    if (macro == null) {
+      macro = internMacro(macroDef, pplineParser.parse(macroDef).getFirstDescendant(CppGrammar.defineLine));
+    }
+    return macro;
   }
 
-  private Macro parseMacroDefinition(AstNode defineLineAst) {
+  private Macro parseMacroDefinition(AstNode defineLineAst, String line) {
     AstNode ast = defineLineAst.getFirstChild();
     AstNode nameNode = ast.getFirstDescendant(CppGrammar.ppToken);
     String macroName = nameNode.getTokenValue();
@@ -966,7 +1783,7 @@ public class CxxPreprocessor extends Preprocessor {
         ? new LinkedList<Token>()
         : replList.getTokens().subList(0, replList.getTokens().size() - 1);
 
-    return new Macro(macroName, macroParams, macroBody, vaargs != null);
+    return new Macro(macroName, macroParams, macroBody, vaargs != null, line);
   }
 
   private List<Token> getParams(AstNode identListAst) {
@@ -1034,6 +1851,9 @@ public class CxxPreprocessor extends Preprocessor {
       File file = getFileUnderAnalysis();
       String dir = file == null ? "" : file.getParent();
       includedFile = codeProvider.getSourceCodeFile(includedFileName, dir, quoted);
+      if (prefixResolutions != null) {
+        prefixResolutions.add(new PrefixSnapshot.Resolution(includedFileName, dir, quoted, includedFile));
+      }
     }
 
     return includedFile;
@@ -1047,6 +1867,29 @@ public class CxxPreprocessor extends Preprocessor {
     return str.substring(1, str.length() - 1);
   }
 
+  /**
+   * Path of the file under analysis, for messages. Kept between calls, since
+   * it is needed for every token.
+   */
+  private String getPathUnderAnalysis(Token token) {
+    File file = getFileUnderAnalysis();
+    if (file == null) {
+      return token.getURI().toString();
+    }
+    if (file != pathFile) {
+      pathFile = file;
+      path = file.getAbsolutePath();
+    }
+    return path;
+  }
+
+  /**
+   * Removes a directive from the token stream, keeping its text as trivia.
+   */
+  private static PreprocessorAction skipDirective(Token token) {
+    return new PreprocessorAction(1, Collections.singletonList(Trivia.createSkippedText(token)), NO_TOKENS);
+  }
+
   private File getFileUnderAnalysis() {
     if (state.includeUnderAnalysis == null) {
       return context.getFile();
@@ -0,0 +1,131 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+/**
+ * Classifies preprocessor lines by looking at their characters, so that the
+ * trivial directives can be handled without running the line grammar. Only
+ * lines in their plain form are classified, everything else is left to the
+ * grammar.
+ */
+final class DirectiveClassifier {
+
+  private DirectiveClassifier() {
+  }
+
+  /**
+   * Keyword of a preprocessor line, i.e. the word following the hash.
+   */
+  static String keyword(String line) {
+    int start = keywordStart(line);
+    return line.substring(start, wordEnd(line, start));
+  }
+
+  static boolean isConditional(String keyword) {
+    return "if".equals(keyword) || "ifdef".equals(keyword) || "ifndef".equals(keyword)
+      || "elif".equals(keyword) || "else".equals(keyword) || "endif".equals(keyword);
+  }
+
+  /**
+   * Directives which have no effect on the preprocessing, like #pragma,
+   * #error or #line.
+   */
+  static boolean isIgnored(String keyword) {
+    return !isConditional(keyword)
+      && !"define".equals(keyword)
+      && !"undef".equals(keyword)
+      && !"include".equals(keyword)
+      && !"include_next".equals(keyword);
+  }
+
+  /**
+   * True for lines which consist of the keyword only, as #else and #endif
+   * usually do.
+   */
+  static boolean hasNoArguments(String line) {
+    int start = keywordStart(line);
+    return isBlank(line, wordEnd(line, start));
+  }
+
+  /**
+   * Name of the macro of a plain '#ifdef NAME' or '#ifndef NAME' line, null
+   * for any other line.
+   */
+  static String ifdefMacroName(String line) {
+    int start = keywordStart(line);
+    int end = wordEnd(line, start);
+    int nameStart = skipWhitespace(line, end);
+    if (nameStart == end || !isIdentifierStart(line, nameStart)) {
+      return null;
+    }
+    int nameEnd = wordEnd(line, nameStart);
+    return isBlank(line, nameEnd) ? line.substring(nameStart, nameEnd) : null;
+  }
+
+  /**
+   * Name of the macro of an '#undef NAME' line without any trailing
+   * characters, null for any other line.
+   */
+  static String undefMacroName(String line) {
+    int start = keywordStart(line);
+    int end = wordEnd(line, start);
+    int nameStart = skipWhitespace(line, end);
+    if (nameStart == end || !isIdentifierStart(line, nameStart)) {
+      return null;
+    }
+    int nameEnd = wordEnd(line, nameStart);
+    return nameEnd == line.length() ? line.substring(nameStart, nameEnd) : null;
+  }
+
+  private static int keywordStart(String line) {
+    // skip the hash
+    return skipWhitespace(line, 1);
+  }
+
+  private static int skipWhitespace(String line, int from) {
+    int i = from;
+    while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int wordEnd(String line, int from) {
+    int i = from;
+    while (i < line.length() && isWordCharacter(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isBlank(String line, int from) {
+    int i = skipWhitespace(line, from);
+    return i == line.length() || line.startsWith("//", i);
+  }
+
+  private static boolean isIdentifierStart(String line, int index) {
+    char ch = line.charAt(index);
+    return ch == '_' || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+  }
+
+  private static boolean isWordCharacter(char ch) {
+    return ch == '_' || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9');
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sonar.cxx.CxxConfiguration;
+
+/**
+ * Limits the work spent on macro expansion within one translation unit:
+ * the number of expanded tokens, the nesting depth of expansions and the
+ * wall time. Once the token or time limit is reached no more macros are
+ * expanded in this unit; the depth limit only affects the expansion at hand.
+ * A limit of 0 means no limit.
+ */
+class ExpansionBudget {
+  private static final int REPORTED_MACROS = 10;
+
+  private final long maxExpandedTokens;
+  private final int maxDepth;
+  private final long maxNanos;
+
+  private long start = System.nanoTime();
+  private long expandedTokens = 0;
+  private String exhausted = null;
+  private boolean depthExceeded = false;
+  private Map<String, Integer> unexpandedMacros = new HashMap<String, Integer>();
+
+  ExpansionBudget(CxxConfiguration conf) {
+    this(conf.getMaxExpandedTokens(), conf.getMaxExpansionDepth(), conf.getMaxPreprocessingSeconds());
+  }
+
+  ExpansionBudget(long maxExpandedTokens, int maxDepth, int maxSeconds) {
+    this.maxExpandedTokens = maxExpandedTokens;
+    this.maxDepth = maxDepth;
+    this.maxNanos = maxSeconds * 1000000000L;
+  }
+
+  /**
+   * Starts the budget of a new translation unit.
+   */
+  void reset() {
+    start = System.nanoTime();
+    expandedTokens = 0;
+    exhausted = null;
+    depthExceeded = false;
+    unexpandedMacros.clear();
+  }
+
+  /**
+   * Decides whether a macro may be expanded at the given nesting depth and
+   * remembers the macros which may not.
+   */
+  boolean allows(String macroName, int depth) {
+    if (exhausted == null) {
+      if (maxExpandedTokens > 0 && expandedTokens >= maxExpandedTokens) {
+        exhausted = "expanded tokens (" + maxExpandedTokens + ")";
+      } else if (maxNanos > 0 && System.nanoTime() - start >= maxNanos) {
+        exhausted = "time (" + maxNanos / 1000000000L + "s)";
+      } else if (maxDepth > 0 && depth >= maxDepth) {
+        depthExceeded = true;
+      } else {
+        return true;
+      }
+    }
+
+    Integer count = unexpandedMacros.get(macroName);
+    unexpandedMacros.put(macroName, count == null ? 1 : count + 1);
+    return false;
+  }
+
+  void consumed(int tokens) {
+    expandedTokens += tokens;
+  }
+
+  long getExpandedTokens() {
+    return expandedTokens;
+  }
+
+  /**
+   * One line describing the limits which were hit and the macros left
+   * unexpanded most often, null if no limit was hit.
+   */
+  String getSummary() {
+    if (unexpandedMacros.isEmpty()) {
+      return null;
+    }
+
+    List<String> limits = new ArrayList<String>();
+    if (exhausted != null) {
+      limits.add(exhausted);
+    }
+    if (depthExceeded) {
+      limits.add("depth (" + maxDepth + ")");
+    }
+
+    List<Map.Entry<String, Integer>> macros = new ArrayList<Map.Entry<String, Integer>>(unexpandedMacros.entrySet());
+    Collections.sort(macros, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+        return e2.getValue().compareTo(e1.getValue());
+      }
+    });
+    int total = 0;
+    StringBuilder names = new StringBuilder();
+    for (int i = 0; i < macros.size(); i++) {
+      Map.Entry<String, Integer> macro = macros.get(i);
+      total += macro.getValue();
+      if (i < REPORTED_MACROS) {
+        names.append(i == 0 ? "" : ", ").append(macro.getKey()).append(" (").append(macro.getValue()).append(')');
+      }
+    }
+    if (macros.size() > REPORTED_MACROS) {
+      names.append(", ...");
+    }
+
+    return "macro expansion limits reached: " + limits + ", " + total + " expansions skipped, macros: " + names;
+  }
+}
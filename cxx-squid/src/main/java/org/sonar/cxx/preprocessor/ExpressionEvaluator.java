@@ -20,7 +20,9 @@
 package org.sonar.cxx.preprocessor;
 
 import java.math.BigInteger;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,115 +33,237 @@ import com.sonar.sslr.api.Grammar;
 import com.sonar.sslr.api.Token;
 import com.sonar.sslr.impl.Parser;
 
+/**
+ * Evaluates the constant expressions of #if and #elif lines. Expressions are
+ * compiled into a tree of {@link Expression}s once and kept by their text.
+ * The evaluation runs on longs and is repeated on BigIntegers only if a value
+ * does not fit into a long.
+ */
 public final class ExpressionEvaluator {
   private static final BigInteger UINT64_MAX = new BigInteger("FFFFFFFFFFFFFFFF", 16);
+  private static final int MAX_COMPILED_EXPRESSIONS = 4096;
   public static final Logger LOG = LoggerFactory.getLogger("Evaluator");
 
+  private static final int ADD = 0;
+  private static final int SUBTRACT = 1;
+  private static final int MULTIPLY = 2;
+  private static final int DIVIDE = 3;
+  private static final int MODULO = 4;
+  private static final int SHIFT_LEFT = 5;
+  private static final int SHIFT_RIGHT = 6;
+  private static final int AND = 7;
+  private static final int OR = 8;
+  private static final int XOR = 9;
+  private static final int EQUAL = 10;
+  private static final int NOT_EQUAL = 11;
+  private static final int LESS = 12;
+  private static final int GREATER = 13;
+  private static final int LESS_EQUAL = 14;
+  private static final int GREATER_EQUAL = 15;
+  private static final int PLUS = 16;
+  private static final int MINUS = 17;
+  private static final int NOT = 18;
+  private static final int COMPLEMENT = 19;
+
+  private static final LongOverflow OVERFLOW = new LongOverflow();
+
   private Parser<Grammar> parser;
   private CxxPreprocessor preprocessor;
+  private Map<String, Expression> compiledTexts = new LruMap<String, Expression>();
+  private Map<AstNode, Expression> compiledNodes = new LruMap<AstNode, Expression>();
 
   public ExpressionEvaluator(CxxConfiguration conf, CxxPreprocessor preprocessor) {
-    parser = CppParser.createConstantExpressionParser(conf);
+    parser = CppParser.createConstantExpressionParser(conf, preprocessor.getParseProfiler());
 
     this.preprocessor = preprocessor;
   }
 
   public boolean eval(String constExpr) {
-    return evalToInt(constExpr).compareTo(BigInteger.ZERO) != 0;
+    return evaluate(compile(constExpr)).signum() != 0;
   }
 
   public boolean eval(AstNode constExpr) {
-    return evalToInt(constExpr).compareTo(BigInteger.ZERO) != 0;
+    Expression expression = compiledNodes.get(constExpr);
+    if (expression == null) {
+      expression = compile(constExpr);
+      compiledNodes.put(constExpr, expression);
+    }
+    return evaluate(expression).signum() != 0;
   }
 
-  private BigInteger evalToInt(String constExpr) {
-    AstNode constExprAst = null;
+  private BigInteger evaluate(Expression expression) {
     try {
-      constExprAst = parser.parse(constExpr);
-    } catch (com.sonar.sslr.api.RecognitionException re) {
-      LOG.warn("Error evaluating expression '{}', assuming 0", constExpr);
-      return BigInteger.ZERO;
+      return BigInteger.valueOf(expression.evalLong());
+    } catch (LongOverflow e) {
+      return expression.evalBig();
     }
-
-    return evalToInt(constExprAst);
   }
 
-  private BigInteger evalToInt(AstNode exprAst) {
-    LOG.trace("Evaluating expression: {}", exprAst);
+  private Expression compile(String constExpr) {
+    Expression expression = compiledTexts.get(constExpr);
+    if (expression == null) {
+      try {
+        expression = compile(parser.parse(constExpr));
+      } catch (com.sonar.sslr.api.RecognitionException re) {
+        expression = new Unparsable(constExpr);
+      }
+      compiledTexts.put(constExpr, expression);
+    }
+    return expression;
+  }
 
+  private Expression compile(AstNode exprAst) {
     int noChildren = exprAst.getNumberOfChildren();
     if (noChildren == 0) {
-      return evalLeaf(exprAst);
+      return compileLeaf(exprAst);
     } else if (noChildren == 1) {
-      return evalOneChildAst(exprAst);
+      // Booleans and 'pass-through's
+      if ("bool".equals(exprAst.getName())) {
+        return new Constant(evalBool(exprAst.getTokenValue()));
+      }
+      return compile(exprAst.getChild(0));
     }
 
-    return evalComplexAst(exprAst);
+    return compileComplexAst(exprAst);
   }
 
-  private BigInteger evalLeaf(AstNode exprAst) {
-    // Evaluation of leafs
-    //
+  private Expression compileLeaf(AstNode exprAst) {
     String nodeType = exprAst.getName();
     if ("NUMBER".equals(nodeType)) {
-      return evalNumber(exprAst.getTokenValue());
+      return new Constant(evalNumber(exprAst.getTokenValue()));
     } else if ("CHARACTER".equals(nodeType)) {
-      return evalCharacter(exprAst.getTokenValue());
+      return new Constant(evalCharacter(exprAst.getTokenValue()));
     } else if ("IDENTIFIER".equals(nodeType)) {
-      String value = preprocessor.valueOf(exprAst.getTokenValue());
-      return value == null ? BigInteger.ZERO : evalToInt(value);
+      return new Identifier(exprAst.getTokenValue());
     } else {
       throw new EvaluationException("Unknown expression type '" + nodeType + "'");
     }
   }
 
-  private BigInteger evalOneChildAst(AstNode exprAst) {
-    // Evaluation of booleans and 'pass-through's
-    //
-    String nodeType = exprAst.getName();
-    if ("bool".equals(nodeType)) {
-      return evalBool(exprAst.getTokenValue());
-    }
-    return evalToInt(exprAst.getChild(0));
-  }
-
-  private BigInteger evalComplexAst(AstNode exprAst) {
+  private Expression compileComplexAst(AstNode exprAst) {
     // More complex expressions with more than one child
     //
     String nodeType = exprAst.getName();
     if ("unaryExpression".equals(nodeType)) {
-      return evalUnaryExpression(exprAst);
+      return new Unary(unaryOperator(exprAst.getChild(0).getTokenValue()), compile(exprAst.getChild(1)));
     } else if ("conditionalExpression".equals(nodeType)) {
-      return evalConditionalExpression(exprAst);
+      return compileConditionalExpression(exprAst);
     } else if ("logicalOrExpression".equals(nodeType)) {
-      return evalLogicalOrExpression(exprAst);
+      return new Logical(false, compileOperands(exprAst));
     } else if ("logicalAndExpression".equals(nodeType)) {
-      return evalLogicalAndExpression(exprAst);
-    } else if ("inclusiveOrExpression".equals(nodeType)) {
-      return evalInclusiveOrExpression(exprAst);
+      return new Logical(true, compileOperands(exprAst));
+    } else if ("inclusiveOrExpression".equals(nodeType)
+      || "exclusiveOrExpression".equals(nodeType)
+      || "andExpression".equals(nodeType)
+      || "shiftExpression".equals(nodeType)
+      || "additiveExpression".equals(nodeType)
+      || "multiplicativeExpression".equals(nodeType)) {
+      return new Arithmetic(compileOperators(exprAst, nodeType), compileOperands(exprAst));
+    } else if ("equalityExpression".equals(nodeType) || "relationalExpression".equals(nodeType)) {
+      return new Comparison(compileOperators(exprAst, nodeType), compileOperands(exprAst));
+    } else if ("primaryExpression".equals(nodeType)) {
+      // case "( expression )"
+      return compile(exprAst.getChild(1));
+    } else if ("definedExpression".equals(nodeType)) {
+      int posOfMacroName = exprAst.getNumberOfChildren() == 2 ? 1 : 2;
+      return new Defined(exprAst.getChild(posOfMacroName).getTokenValue());
+    } else if ("functionlikeMacro".equals(nodeType)) {
+      List<Token> tokens = exprAst.getTokens();
+      return new FunctionlikeMacro(exprAst.getChild(0).getTokenValue(), tokens.subList(1, tokens.size()));
+    } else {
+      throw new EvaluationException("Unknown expression type '" + nodeType + "'");
+    }
+  }
+
+  private Expression compileConditionalExpression(AstNode exprAst) {
+    if (exprAst.getNumberOfChildren() == 5) {
+      return new Conditional(compile(exprAst.getChild(0)), compile(exprAst.getChild(2)),
+                             compile(exprAst.getChild(4)));
+    }
+    return new Conditional(compile(exprAst.getChild(0)), null, compile(exprAst.getChild(3)));
+  }
+
+  private Expression[] compileOperands(AstNode exprAst) {
+    int noChildren = exprAst.getNumberOfChildren();
+    Expression[] operands = new Expression[(noChildren + 1) / 2];
+    for (int i = 0; i < noChildren; i += 2) {
+      operands[i / 2] = compile(exprAst.getChild(i));
+    }
+    return operands;
+  }
+
+  private int[] compileOperators(AstNode exprAst, String nodeType) {
+    int noChildren = exprAst.getNumberOfChildren();
+    int[] operators = new int[noChildren / 2];
+    for (int i = 1; i < noChildren; i += 2) {
+      operators[i / 2] = binaryOperator(nodeType, exprAst.getChild(i).getTokenValue());
+    }
+    return operators;
+  }
+
+  private static int binaryOperator(String nodeType, String operator) {
+    if ("inclusiveOrExpression".equals(nodeType)) {
+      return OR;
     } else if ("exclusiveOrExpression".equals(nodeType)) {
-      return evalExclusiveOrExpression(exprAst);
+      return XOR;
     } else if ("andExpression".equals(nodeType)) {
-      return evalAndExpression(exprAst);
-    } else if ("equalityExpression".equals(nodeType)) {
-      return evalEqualityExpression(exprAst);
-    } else if ("relationalExpression".equals(nodeType)) {
-      return evalRelationalExpression(exprAst);
+      return AND;
     } else if ("shiftExpression".equals(nodeType)) {
-      return evalShiftExpression(exprAst);
+      if ("<<".equals(operator)) {
+        return SHIFT_LEFT;
+      } else if (">>".equals(operator)) {
+        return SHIFT_RIGHT;
+      }
+      throw new EvaluationException("Unknown shift operator '" + operator + "'");
     } else if ("additiveExpression".equals(nodeType)) {
-      return evalAdditiveExpression(exprAst);
+      if ("+".equals(operator)) {
+        return ADD;
+      } else if ("-".equals(operator)) {
+        return SUBTRACT;
+      }
+      throw new EvaluationException("Unknown additive operator '" + operator + "'");
     } else if ("multiplicativeExpression".equals(nodeType)) {
-      return evalMultiplicativeExpression(exprAst);
-    } else if ("primaryExpression".equals(nodeType)) {
-      return evalPrimaryExpression(exprAst);
-    } else if ("definedExpression".equals(nodeType)) {
-      return evalDefinedExpression(exprAst);
-    } else if ("functionlikeMacro".equals(nodeType)) {
-      return evalFunctionlikeMacro(exprAst);
+      if ("*".equals(operator)) {
+        return MULTIPLY;
+      } else if ("/".equals(operator)) {
+        return DIVIDE;
+      } else if ("%".equals(operator)) {
+        return MODULO;
+      }
+      throw new EvaluationException("Unknown multiplicative operator '" + operator + "'");
+    } else if ("equalityExpression".equals(nodeType)) {
+      if ("==".equals(operator)) {
+        return EQUAL;
+      } else if ("!=".equals(operator)) {
+        return NOT_EQUAL;
+      }
+      throw new EvaluationException("Unknown equality operator '" + operator + "'");
     } else {
-      throw new EvaluationException("Unknown expression type '" + nodeType + "'");
+      if ("<".equals(operator)) {
+        return LESS;
+      } else if (">".equals(operator)) {
+        return GREATER;
+      } else if ("<=".equals(operator)) {
+        return LESS_EQUAL;
+      } else if (">=".equals(operator)) {
+        return GREATER_EQUAL;
+      }
+      throw new EvaluationException("Unknown relational operator '" + operator + "'");
+    }
+  }
+
+  private static int unaryOperator(String operator) {
+    // only 'unary-operator cast-expression' production is allowed in #if-context
+    if ("+".equals(operator)) {
+      return PLUS;
+    } else if ("-".equals(operator)) {
+      return MINUS;
+    } else if ("!".equals(operator)) {
+      return NOT;
+    } else if ("~".equals(operator)) {
+      return COMPLEMENT;
     }
+    throw new EvaluationException("Unknown unary operator  '" + operator + "'");
   }
 
   // ///////////////// Primitives //////////////////////
@@ -165,286 +289,468 @@ public final class ExpressionEvaluator {
     return "'\0'".equals(charValue) ? BigInteger.ZERO : BigInteger.ONE;
   }
 
-  // ////////////// logical expressions ///////////////////////////
-  BigInteger evalLogicalOrExpression(AstNode exprAst) {
-    int noChildren = exprAst.getNumberOfChildren();
-    boolean result = eval(exprAst.getChild(0));
-    for(int i = 2; i < noChildren && result != true; i+=2){
-      AstNode operand = exprAst.getChild(i);
-      result = result || eval(operand);
+  String stripSuffix(String number)
+  {
+    return number.replaceAll("[LlUu]", "");
+  }
+
+  BigInteger decode(String number)
+  {
+    int radix = 10;
+    if (number.length() > 2) {
+      if (number.charAt(0) == '0') {
+        if (number.charAt(1) == 'x' || number.charAt(1) == 'X') {
+          radix = 16; // 0x...
+          number = number.substring(2);
+        } else {
+          radix = 8; // 0...
+        }
+      }
     }
 
-    return result ? BigInteger.ONE : BigInteger.ZERO;
+    return new BigInteger(stripSuffix(number), radix);
   }
 
-  BigInteger evalLogicalAndExpression(AstNode exprAst) {
-    int noChildren = exprAst.getNumberOfChildren();
-    boolean result = eval(exprAst.getChild(0));
-    for(int i = 2; i < noChildren && result != false; i+=2){
-      AstNode operand = exprAst.getChild(i);
-      result = result && eval(operand);
-    }
+  // ///////////////// compiled expressions ///////////////////////
+
+  /**
+   * Node of a compiled expression. evalLong() throws {@link LongOverflow} as
+   * soon as a value leaves the range of a long, evalBig() computes the exact
+   * result.
+   */
+  private abstract static class Expression {
+    abstract long evalLong();
 
-    return result ? BigInteger.ONE : BigInteger.ZERO;
+    abstract BigInteger evalBig();
   }
 
-  BigInteger evalEqualityExpression(AstNode exprAst) {
-    String operator = exprAst.getChild(1).getTokenValue();
-    AstNode lhs = exprAst.getChild(0);
-    AstNode rhs = exprAst.getChild(2);
-    boolean result;
-    if ("==".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) == 0;
-    } else if ("!=".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) != 0;
-    } else {
-      throw new EvaluationException("Unknown equality operator '" + operator + "'");
+  private static final class LongOverflow extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
     }
+  }
 
-    int noChildren = exprAst.getNumberOfChildren();
-    for(int i = 4; i < noChildren; i+=2){
-      operator = exprAst.getChild(i-1).getTokenValue();
-      rhs = exprAst.getChild(i);
-      if ("==".equals(operator)) {
-        result = result == eval(rhs);
-      } else if ("!=".equals(operator)) {
-        result = result != eval(rhs);
-      } else {
-        throw new EvaluationException("Unknown equality operator '" + operator + "'");
+  private static final class Constant extends Expression {
+    private final BigInteger value;
+    private final boolean fitsLong;
+    private final long longValue;
+
+    Constant(BigInteger value) {
+      this.value = value;
+      this.fitsLong = value.bitLength() < 64;
+      this.longValue = value.longValue();
+    }
+
+    @Override
+    long evalLong() {
+      if (!fitsLong) {
+        throw OVERFLOW;
       }
+      return longValue;
     }
 
-    return result ? BigInteger.ONE : BigInteger.ZERO;
+    @Override
+    BigInteger evalBig() {
+      return value;
+    }
   }
 
-  BigInteger evalRelationalExpression(AstNode exprAst) {
-    String operator = exprAst.getChild(1).getTokenValue();
-    AstNode lhs = exprAst.getChild(0);
-    AstNode rhs = exprAst.getChild(2);
-    boolean result;
-    if ("<".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) < 0;
-    } else if (">".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) > 0;
-    } else if ("<=".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) <= 0;
-    } else if (">=".equals(operator)) {
-      result = evalToInt(lhs).compareTo(evalToInt(rhs)) >= 0;
-    } else {
-      throw new EvaluationException("Unknown relational operator '" + operator + "'");
-    }
+  private static final class Unparsable extends Expression {
+    private final String text;
 
-    BigInteger resultAsInt;
-    int noChildren = exprAst.getNumberOfChildren();
-    for(int i = 4; i < noChildren; i+=2){
-      operator = exprAst.getChild(i-1).getTokenValue();
-      rhs = exprAst.getChild(i);
+    Unparsable(String text) {
+      this.text = text;
+    }
 
-      resultAsInt = result ? BigInteger.ONE : BigInteger.ZERO;
-      if ("<".equals(operator)) {
-        result = resultAsInt.compareTo(evalToInt(rhs)) < 0;
-      } else if (">".equals(operator)) {
-        result = resultAsInt.compareTo(evalToInt(rhs)) > 0;
-      } else if ("<=".equals(operator)) {
-        result = resultAsInt.compareTo(evalToInt(rhs)) <= 0;
-      } else if (">=".equals(operator)) {
-        result = resultAsInt.compareTo(evalToInt(rhs)) >= 0;
-      } else {
-        throw new EvaluationException("Unknown relational operator '" + operator + "'");
-      }
+    @Override
+    long evalLong() {
+      LOG.warn("Error evaluating expression '{}', assuming 0", text);
+      return 0;
     }
 
-    return result ? BigInteger.ONE : BigInteger.ZERO;
+    @Override
+    BigInteger evalBig() {
+      return BigInteger.valueOf(evalLong());
+    }
   }
 
-  // ///////////////// bitwise expressions ///////////////////////
-  BigInteger evalAndExpression(AstNode exprAst) {
-    int noChildren = exprAst.getNumberOfChildren();
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    for(int i = 2; i < noChildren; i+=2){
-      AstNode operand = exprAst.getChild(i);
-      result = result.and(evalToInt(operand));
+  private final class Identifier extends Expression {
+    private final String name;
+
+    Identifier(String name) {
+      this.name = name;
+    }
+
+    @Override
+    long evalLong() {
+      String value = preprocessor.valueOf(name);
+      return value == null ? 0 : compile(value).evalLong();
     }
 
-    return result;
+    @Override
+    BigInteger evalBig() {
+      String value = preprocessor.valueOf(name);
+      return value == null ? BigInteger.ZERO : compile(value).evalBig();
+    }
   }
 
-  BigInteger evalInclusiveOrExpression(AstNode exprAst) {
-    int noChildren = exprAst.getNumberOfChildren();
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    for(int i = 2; i < noChildren; i+=2){
-      AstNode operand = exprAst.getChild(i);
-      result = result.or(evalToInt(operand));
+  private final class Defined extends Expression {
+    private final String macroName;
+
+    Defined(String macroName) {
+      this.macroName = macroName;
     }
 
-    return result;
-  }
+    @Override
+    long evalLong() {
+      String value = preprocessor.valueOf(macroName);
 
-  BigInteger evalExclusiveOrExpression(AstNode exprAst) {
-    int noChildren = exprAst.getNumberOfChildren();
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    for(int i = 2; i < noChildren; i+=2){
-      AstNode operand = exprAst.getChild(i);
-      result = result.xor(evalToInt(operand));
+      LOG.trace("expanding '{}' to '{}'", macroName, value);
+
+      return value == null ? 0 : 1;
     }
 
-    return result;
+    @Override
+    BigInteger evalBig() {
+      return BigInteger.valueOf(evalLong());
+    }
   }
 
-  // ///////////////// other ... ///////////////////
-  BigInteger evalUnaryExpression(AstNode exprAst) {
-    // only 'unary-operator cast-expression' production is allowed in #if-context
+  private final class FunctionlikeMacro extends Expression {
+    private final String macroName;
+    private final List<Token> restTokens;
 
-    String operator = exprAst.getChild(0).getTokenValue();
-    AstNode operand = exprAst.getChild(1);
-    if ("+".equals(operator)) {
-      return evalToInt(operand);
-    } else if ("-".equals(operator)) {
-      return evalToInt(operand).negate();
-    } else if ("!".equals(operator)) {
-      boolean result = !eval(operand);
-      return result ? BigInteger.ONE : BigInteger.ZERO;
-    } else if ("~".equals(operator)) {
-      //todo: need more information (signed/unsigned, data type length) to invert bits in all cases correct
-      return evalToInt(operand).not().and(UINT64_MAX);
+    FunctionlikeMacro(String macroName, List<Token> restTokens) {
+      this.macroName = macroName;
+      this.restTokens = restTokens;
     }
-    else {
-      throw new EvaluationException("Unknown unary operator  '" + operator + "'");
+
+    private Expression expand() {
+      String value = preprocessor.expandFunctionLikeMacro(macroName, restTokens);
+
+      LOG.trace("expanding '{}' to '{}'", macroName, value);
+      if (value == null) {
+        LOG.warn("Undefined functionlike macro '{}' assuming 0", macroName);
+        return null;
+      }
+      return compile(value);
+    }
+
+    @Override
+    long evalLong() {
+      Expression expansion = expand();
+      return expansion == null ? 0 : expansion.evalLong();
+    }
+
+    @Override
+    BigInteger evalBig() {
+      Expression expansion = expand();
+      return expansion == null ? BigInteger.ZERO : expansion.evalBig();
     }
   }
 
-  BigInteger evalShiftExpression(AstNode exprAst) {
-    String operator;
-    AstNode rhs;
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    int noChildren = exprAst.getNumberOfChildren();
+  private static final class Logical extends Expression {
+    private final boolean isAnd;
+    private final Expression[] operands;
 
-    for(int i = 2; i < noChildren; i+=2){
-      operator = exprAst.getChild(i-1).getTokenValue();
-      rhs = exprAst.getChild(i);
+    Logical(boolean isAnd, Expression[] operands) {
+      this.isAnd = isAnd;
+      this.operands = operands;
+    }
 
-      if ("<<".equals(operator)) {
-        //todo: limit to UINT64_MAX?
-        result = result.shiftLeft(evalToInt(rhs).intValue()).and(UINT64_MAX);
-      } else if (">>".equals(operator)) {
-        result = result.shiftRight(evalToInt(rhs).intValue());
-      } else {
-        throw new EvaluationException("Unknown shift operator '" + operator + "'");
+    @Override
+    long evalLong() {
+      for (Expression operand : operands) {
+        if ((operand.evalLong() != 0) != isAnd) {
+          return isAnd ? 0 : 1;
+        }
       }
+      return isAnd ? 1 : 0;
     }
 
-    return result;
+    @Override
+    BigInteger evalBig() {
+      for (Expression operand : operands) {
+        if ((operand.evalBig().signum() != 0) != isAnd) {
+          return isAnd ? BigInteger.ZERO : BigInteger.ONE;
+        }
+      }
+      return isAnd ? BigInteger.ONE : BigInteger.ZERO;
+    }
   }
 
-  BigInteger evalAdditiveExpression(AstNode exprAst) {
-    String operator;
-    AstNode rhs;
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    int noChildren = exprAst.getNumberOfChildren();
+  private static final class Comparison extends Expression {
+    private final int[] operators;
+    private final Expression[] operands;
 
-    for(int i = 2; i < noChildren; i+=2){
-      operator = exprAst.getChild(i-1).getTokenValue();
-      rhs = exprAst.getChild(i);
+    Comparison(int[] operators, Expression[] operands) {
+      this.operators = operators;
+      this.operands = operands;
+    }
 
-      if ("+".equals(operator)) {
-        result = result.add(evalToInt(rhs));
-      } else if ("-".equals(operator)) {
-        result = result.subtract(evalToInt(rhs));
-      } else {
-        throw new EvaluationException("Unknown additive operator '" + operator + "'");
+    @Override
+    long evalLong() {
+      boolean result = compare(operators[0], operands[0].evalLong(), operands[1].evalLong());
+      for (int i = 1; i < operators.length; i++) {
+        long rhs = operands[i + 1].evalLong();
+        if (isEquality(operators[i])) {
+          // further equality operators compare truth values
+          result = compare(operators[i], result ? 1 : 0, rhs != 0 ? 1 : 0);
+        } else {
+          result = compare(operators[i], result ? 1 : 0, rhs);
+        }
       }
+      return result ? 1 : 0;
     }
 
-    return result;
+    @Override
+    BigInteger evalBig() {
+      boolean result = compare(operators[0], operands[0].evalBig(), operands[1].evalBig());
+      for (int i = 1; i < operators.length; i++) {
+        BigInteger rhs = operands[i + 1].evalBig();
+        if (isEquality(operators[i])) {
+          result = compare(operators[i], result ? 1 : 0, rhs.signum() != 0 ? 1 : 0);
+        } else {
+          result = compare(operators[i], result ? BigInteger.ONE : BigInteger.ZERO, rhs);
+        }
+      }
+      return result ? BigInteger.ONE : BigInteger.ZERO;
+    }
+
+    private static boolean isEquality(int operator) {
+      return operator == EQUAL || operator == NOT_EQUAL;
+    }
+
+    private static boolean compare(int operator, long lhs, long rhs) {
+      switch (operator) {
+        case EQUAL:
+          return lhs == rhs;
+        case NOT_EQUAL:
+          return lhs != rhs;
+        case LESS:
+          return lhs < rhs;
+        case GREATER:
+          return lhs > rhs;
+        case LESS_EQUAL:
+          return lhs <= rhs;
+        default:
+          return lhs >= rhs;
+      }
+    }
+
+    private static boolean compare(int operator, BigInteger lhs, BigInteger rhs) {
+      return compare(operator, lhs.compareTo(rhs), 0L);
+    }
   }
 
-  BigInteger evalMultiplicativeExpression(AstNode exprAst) {
-    String operator;
-    AstNode rhs;
-    BigInteger result = evalToInt(exprAst.getChild(0));
-    int noChildren = exprAst.getNumberOfChildren();
+  private static final class Arithmetic extends Expression {
+    private final int[] operators;
+    private final Expression[] operands;
 
-    for(int i = 2; i < noChildren; i+=2){
-      operator = exprAst.getChild(i-1).getTokenValue();
-      rhs = exprAst.getChild(i);
+    Arithmetic(int[] operators, Expression[] operands) {
+      this.operators = operators;
+      this.operands = operands;
+    }
 
-      if ("*".equals(operator)) {
-        result = result.multiply(evalToInt(rhs));
-      } else if ("/".equals(operator)) {
-        result = result.divide(evalToInt(rhs));
-      } else if ("%".equals(operator)) {
-        result = result.mod(evalToInt(rhs));
-      } else {
-        throw new EvaluationException("Unknown multiplicative operator '" + operator + "'");
+    @Override
+    long evalLong() {
+      long result = operands[0].evalLong();
+      for (int i = 0; i < operators.length; i++) {
+        result = apply(operators[i], result, operands[i + 1].evalLong());
       }
+      return result;
     }
 
-    return result;
-  }
+    @Override
+    BigInteger evalBig() {
+      BigInteger result = operands[0].evalBig();
+      for (int i = 0; i < operators.length; i++) {
+        result = apply(operators[i], result, operands[i + 1].evalBig());
+      }
+      return result;
+    }
 
-  BigInteger evalConditionalExpression(AstNode exprAst) {
-    if (exprAst.getNumberOfChildren() == 5) {
-        AstNode decisionOperand = exprAst.getChild(0);
-        AstNode trueCaseOperand = exprAst.getChild(2);
-        AstNode falseCaseOperand = exprAst.getChild(4);
-        return eval(decisionOperand) ? evalToInt(trueCaseOperand) : evalToInt(falseCaseOperand);
+    private static long apply(int operator, long lhs, long rhs) {
+      long result;
+      switch (operator) {
+        case ADD:
+          result = lhs + rhs;
+          if (((lhs ^ result) & (rhs ^ result)) < 0) {
+            throw OVERFLOW;
+          }
+          return result;
+        case SUBTRACT:
+          result = lhs - rhs;
+          if (((lhs ^ rhs) & (lhs ^ result)) < 0) {
+            throw OVERFLOW;
+          }
+          return result;
+        case MULTIPLY:
+          if (lhs == 0 || rhs == 0) {
+            return 0;
+          }
+          result = lhs * rhs;
+          if ((lhs == Long.MIN_VALUE && rhs == -1) || (rhs == Long.MIN_VALUE && lhs == -1) || result / rhs != lhs) {
+            throw OVERFLOW;
+          }
+          return result;
+        case DIVIDE:
+          // division by zero is reported by the BigInteger evaluation
+          if (rhs == 0 || (lhs == Long.MIN_VALUE && rhs == -1)) {
+            throw OVERFLOW;
+          }
+          return lhs / rhs;
+        case MODULO:
+          // BigInteger.mod() rejects non positive moduli and never returns a negative value
+          if (rhs <= 0) {
+            throw OVERFLOW;
+          }
+          result = lhs % rhs;
+          return result < 0 ? result + rhs : result;
+        case SHIFT_LEFT:
+          // the result is cut to 64 bits without sign
+          int left = (int) rhs;
+          if (left < 0 || left > 62 || lhs < 0) {
+            throw OVERFLOW;
+          }
+          result = lhs << left;
+          if (result < 0 || (result >> left) != lhs) {
+            throw OVERFLOW;
+          }
+          return result;
+        case SHIFT_RIGHT:
+          int right = (int) rhs;
+          if (right < 0 || right > 63) {
+            throw OVERFLOW;
+          }
+          return lhs >> right;
+        case AND:
+          return lhs & rhs;
+        case OR:
+          return lhs | rhs;
+        default:
+          return lhs ^ rhs;
+      }
     }
-    else {
-        AstNode decisionOperand = exprAst.getChild(0);
-        AstNode falseCaseOperand = exprAst.getChild(3);
-        BigInteger decision = evalToInt(decisionOperand);
-        return decision.compareTo(BigInteger.ZERO) != 0 ? decision : evalToInt(falseCaseOperand);
+
+    private static BigInteger apply(int operator, BigInteger lhs, BigInteger rhs) {
+      switch (operator) {
+        case ADD:
+          return lhs.add(rhs);
+        case SUBTRACT:
+          return lhs.subtract(rhs);
+        case MULTIPLY:
+          return lhs.multiply(rhs);
+        case DIVIDE:
+          return lhs.divide(rhs);
+        case MODULO:
+          return lhs.mod(rhs);
+        case SHIFT_LEFT:
+          //todo: limit to UINT64_MAX?
+          return lhs.shiftLeft(rhs.intValue()).and(UINT64_MAX);
+        case SHIFT_RIGHT:
+          return lhs.shiftRight(rhs.intValue());
+        case AND:
+          return lhs.and(rhs);
+        case OR:
+          return lhs.or(rhs);
+        default:
+          return lhs.xor(rhs);
+      }
     }
   }
 
-  BigInteger evalPrimaryExpression(AstNode exprAst) {
-    // case "( expression )"
-    return evalToInt(exprAst.getChild(1));
-  }
+  private static final class Unary extends Expression {
+    private final int operator;
+    private final Expression operand;
 
-  BigInteger evalDefinedExpression(AstNode exprAst) {
-    int posOfMacroName = exprAst.getNumberOfChildren() == 2 ? 1 : 2;
-    String macroName = exprAst.getChild(posOfMacroName).getTokenValue();
-    String value = preprocessor.valueOf(macroName);
+    Unary(int operator, Expression operand) {
+      this.operator = operator;
+      this.operand = operand;
+    }
 
-    LOG.trace("expanding '{}' to '{}'", macroName, value);
+    @Override
+    long evalLong() {
+      long value = operand.evalLong();
+      switch (operator) {
+        case PLUS:
+          return value;
+        case MINUS:
+          if (value == Long.MIN_VALUE) {
+            throw OVERFLOW;
+          }
+          return -value;
+        case NOT:
+          return value == 0 ? 1 : 0;
+        default:
+          // the complement is taken as unsigned 64 bit value
+          if (value >= 0) {
+            throw OVERFLOW;
+          }
+          return ~value;
+      }
+    }
 
-    return value == null ? BigInteger.ZERO : BigInteger.ONE;
+    @Override
+    BigInteger evalBig() {
+      BigInteger value = operand.evalBig();
+      switch (operator) {
+        case PLUS:
+          return value;
+        case MINUS:
+          return value.negate();
+        case NOT:
+          return value.signum() == 0 ? BigInteger.ONE : BigInteger.ZERO;
+        default:
+          //todo: need more information (signed/unsigned, data type length) to invert bits in all cases correct
+          return value.not().and(UINT64_MAX);
+      }
+    }
   }
 
-  BigInteger evalFunctionlikeMacro(AstNode exprAst) {
-    String macroName = exprAst.getChild(0).getTokenValue();
-    List<Token> tokens = exprAst.getTokens();
-    List<Token> restTokens = tokens.subList(1, tokens.size());
-    String value = preprocessor.expandFunctionLikeMacro(macroName, restTokens);
+  private static final class Conditional extends Expression {
+    private final Expression decision;
+    private final Expression trueCase;
+    private final Expression falseCase;
 
-    LOG.trace("expanding '{}' to '{}'", macroName, value);
-    if(value == null){
-      LOG.warn("Undefined functionlike macro '{}' assuming 0", macroName);
+    Conditional(Expression decision, Expression trueCase, Expression falseCase) {
+      this.decision = decision;
+      this.trueCase = trueCase;
+      this.falseCase = falseCase;
     }
 
-    return value == null ? BigInteger.ZERO : evalToInt(value);
-  }
+    @Override
+    long evalLong() {
+      long value = decision.evalLong();
+      if (value != 0) {
+        return trueCase == null ? value : trueCase.evalLong();
+      }
+      return falseCase.evalLong();
+    }
 
-  String stripSuffix(String number)
-  {
-    return number.replaceAll("[LlUu]", "");
+    @Override
+    BigInteger evalBig() {
+      BigInteger value = decision.evalBig();
+      if (value.signum() != 0) {
+        return trueCase == null ? value : trueCase.evalBig();
+      }
+      return falseCase.evalBig();
+    }
   }
 
-  BigInteger decode(String number)
-  {
-    int radix = 10;
-    if (number.length() > 2) {
-      if (number.charAt(0) == '0') {
-        if (number.charAt(1) == 'x' || number.charAt(1) == 'X') {
-          radix = 16; // 0x...
-          number = number.substring(2);
-        } else {
-          radix = 8; // 0...
-        }
-      }
+  private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    LruMap() {
+      super(16, 0.75f, true);
     }
 
-    return new BigInteger(stripSuffix(number), radix);
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > MAX_COMPILED_EXPRESSIONS;
+    }
   }
 }
@@ -0,0 +1,132 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Net effect of preprocessing a header file: the macros it defines and
+ * undefines and the files it marks as analysed (including the effects of
+ * nested includes), together with the part of the preprocessor state which
+ * determined those effects. As long as this state is the same, the summary
+ * can be replayed instead of lexing the header again.
+ */
+final class HeaderSummary {
+
+  enum Kind {
+    DEFINE, UNDEF, ANALYSED
+  }
+
+  static final class Effect {
+    private final Kind kind;
+    private final String macroName;
+    private final CxxPreprocessor.Macro macro;
+    private final File file;
+
+    private Effect(Kind kind, String macroName, CxxPreprocessor.Macro macro, File file) {
+      this.kind = kind;
+      this.macroName = macroName;
+      this.macro = macro;
+      this.file = file;
+    }
+
+    Kind getKind() {
+      return kind;
+    }
+
+    String getMacroName() {
+      return macroName;
+    }
+
+    CxxPreprocessor.Macro getMacro() {
+      return macro;
+    }
+
+    File getFile() {
+      return file;
+    }
+  }
+
+  private final String contentHash;
+  private final Map<String, String> macroDependencies = new HashMap<String, String>();
+  private final Map<File, Boolean> fileDependencies = new HashMap<File, Boolean>();
+  private final Set<String> touchedMacros = new HashSet<String>();
+  private final Set<File> touchedFiles = new HashSet<File>();
+  private final List<Effect> effects = new ArrayList<Effect>();
+
+  HeaderSummary(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * Records that the macro 'name' has been looked up and had the given
+   * definition (null if undefined). Lookups of macros the header changed
+   * itself don't depend on the outside state and are not recorded.
+   */
+  void macroRead(String name, String definition) {
+    if (!touchedMacros.contains(name) && !macroDependencies.containsKey(name)) {
+      macroDependencies.put(name, definition);
+    }
+  }
+
+  void fileRead(File file, boolean analysed) {
+    if (!touchedFiles.contains(file) && !fileDependencies.containsKey(file)) {
+      fileDependencies.put(file, analysed);
+    }
+  }
+
+  void define(CxxPreprocessor.Macro macro) {
+    touchedMacros.add(macro.name);
+    effects.add(new Effect(Kind.DEFINE, macro.name, macro, null));
+  }
+
+  void undef(String name) {
+    touchedMacros.add(name);
+    effects.add(new Effect(Kind.UNDEF, name, null, null));
+  }
+
+  void analysed(File file) {
+    touchedFiles.add(file);
+    effects.add(new Effect(Kind.ANALYSED, null, null, file));
+  }
+
+  Map<String, String> getMacroDependencies() {
+    return Collections.unmodifiableMap(macroDependencies);
+  }
+
+  Map<File, Boolean> getFileDependencies() {
+    return Collections.unmodifiableMap(fileDependencies);
+  }
+
+  List<Effect> getEffects() {
+    return Collections.unmodifiableList(effects);
+  }
+}
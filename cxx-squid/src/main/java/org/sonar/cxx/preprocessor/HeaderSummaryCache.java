@@ -0,0 +1,119 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of header summaries, keyed by the header file as resolved by the
+ * {@link SourceCodeProvider}, i.e. in its canonical form. Since a header may
+ * have different effects depending on the macros defined before it is
+ * included, several summaries (variants) are kept per header. Variants which
+ * belong to an outdated content are dropped. The least recently used headers
+ * are dropped once more than {@link #MAX_HEADERS} are cached.
+ */
+final class HeaderSummaryCache {
+  static final int MAX_HEADERS = 4096;
+  private static final int MAX_VARIANTS = 8;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Map<File, LinkedList<HeaderSummary>> summaries = new LinkedHashMap<File, LinkedList<HeaderSummary>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, LinkedList<HeaderSummary>> eldest) {
+      return size() > MAX_HEADERS;
+    }
+  };
+  private long hits = 0;
+  private long misses = 0;
+
+  List<HeaderSummary> getVariants(File file, String contentHash) {
+    LinkedList<HeaderSummary> variants = summaries.get(file);
+    if (variants == null) {
+      return Collections.emptyList();
+    }
+    if (!variants.isEmpty() && !variants.getFirst().getContentHash().equals(contentHash)) {
+      summaries.remove(file);
+      return Collections.emptyList();
+    }
+    return variants;
+  }
+
+  void put(File file, HeaderSummary summary) {
+    LinkedList<HeaderSummary> variants = summaries.get(file);
+    if (variants == null || !variants.getFirst().getContentHash().equals(summary.getContentHash())) {
+      variants = new LinkedList<HeaderSummary>();
+      summaries.put(file, variants);
+    }
+    if (variants.size() >= MAX_VARIANTS) {
+      variants.removeLast();
+    }
+    variants.addFirst(summary);
+  }
+
+  void hit() {
+    hits++;
+  }
+
+  void miss() {
+    misses++;
+  }
+
+  long getHits() {
+    return hits;
+  }
+
+  long getMisses() {
+    return misses;
+  }
+
+  int size() {
+    return summaries.size();
+  }
+
+  /**
+   * @return the hash of the content of a file, as kept by the provider if it
+   *         has the content cached
+   */
+  static String hash(SourceCodeProvider codeProvider, File file, String content) {
+    String hash = codeProvider.getCachedContentHash(file);
+    return hash != null ? hash : hash(content);
+  }
+
+  static String hash(String content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes(UTF8));
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
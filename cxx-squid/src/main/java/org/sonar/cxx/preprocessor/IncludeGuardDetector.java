@@ -0,0 +1,250 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+/**
+ * Detects the classic include guard pattern:
+ *
+ * <pre>
+ * #ifndef GUARD           (or: #if !defined(GUARD))
+ * #define GUARD
+ * ...
+ * #endif
+ * </pre>
+ *
+ * where nothing but whitespace and comments precedes the first and
+ * follows the last directive. Once such a header has been processed, it
+ * doesn't have any effect as long as the guard macro is defined.
+ */
+final class IncludeGuardDetector {
+  private final String code;
+  private final int length;
+  private int pos = 0;
+
+  private IncludeGuardDetector(String code) {
+    this.code = code;
+    this.length = code.length();
+  }
+
+  /**
+   * @return the name of the guard macro or null if the code isn't guarded
+   */
+  static String detect(String code) {
+    return code == null ? null : new IncludeGuardDetector(code).detect();
+  }
+
+  private String detect() {
+    skipBlanks();
+    String guard = readGuardCondition();
+    if (guard == null || !atEndOfLine()) {
+      return null;
+    }
+
+    skipBlanks();
+    if (!"define".equals(readDirective()) || !guard.equals(readIdentifier())) {
+      return null;
+    }
+    skipRestOfLine();
+
+    int depth = 1;
+    while (true) {
+      skipBlanks();
+      if (pos >= length) {
+        return null;
+      }
+      String keyword = readDirective();
+      if ("if".equals(keyword) || "ifdef".equals(keyword) || "ifndef".equals(keyword)) {
+        depth++;
+      } else if ("endif".equals(keyword)) {
+        depth--;
+        if (depth == 0) {
+          skipRestOfLine();
+          skipBlanks();
+          return pos >= length ? guard : null;
+        }
+      } else if (depth == 1 && ("else".equals(keyword) || "elif".equals(keyword))) {
+        return null;
+      }
+      skipRestOfLine();
+    }
+  }
+
+  private String readGuardCondition() {
+    String keyword = readDirective();
+    if ("ifndef".equals(keyword)) {
+      return readIdentifier();
+    }
+    if ("if".equals(keyword)) {
+      skipSpaces();
+      if (!consume('!')) {
+        return null;
+      }
+      skipSpaces();
+      if (!"defined".equals(readIdentifier())) {
+        return null;
+      }
+      skipSpaces();
+      if (consume('(')) {
+        String guard = readIdentifier();
+        skipSpaces();
+        return consume(')') ? guard : null;
+      }
+      return readIdentifier();
+    }
+    return null;
+  }
+
+  /**
+   * Reads the keyword of the directive at the current position or returns
+   * null, if the current line isn't a directive.
+   */
+  private String readDirective() {
+    if (!consume('#')) {
+      return null;
+    }
+    skipSpaces();
+    return readIdentifier();
+  }
+
+  private String readIdentifier() {
+    skipSpaces();
+    int start = pos;
+    while (pos < length && (Character.isLetterOrDigit(code.charAt(pos)) || code.charAt(pos) == '_')) {
+      pos++;
+    }
+    return start == pos ? null : code.substring(start, pos);
+  }
+
+  private boolean consume(char c) {
+    if (pos < length && code.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipSpaces() {
+    while (pos < length) {
+      char c = code.charAt(pos);
+      if (c == ' ' || c == '\t') {
+        pos++;
+      } else if (c == '\\' && pos + 1 < length && isNewline(code.charAt(pos + 1))) {
+        skipContinuation();
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Skips whitespace (including newlines) and comments
+   */
+  private void skipBlanks() {
+    while (pos < length) {
+      char c = code.charAt(pos);
+      if (Character.isWhitespace(c)) {
+        pos++;
+      } else if (!skipComment()) {
+        break;
+      }
+    }
+  }
+
+  private boolean atEndOfLine() {
+    while (true) {
+      skipSpaces();
+      if (pos >= length || isNewline(code.charAt(pos))) {
+        return true;
+      }
+      if (code.startsWith("//", pos)) {
+        return true;
+      }
+      if (!code.startsWith("/*", pos) || !skipComment()) {
+        return false;
+      }
+    }
+  }
+
+  private boolean skipComment() {
+    if (code.startsWith("//", pos)) {
+      skipToNewline();
+      return true;
+    }
+    if (code.startsWith("/*", pos)) {
+      int end = code.indexOf("*/", pos + 2);
+      pos = end < 0 ? length : end + 2;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Skips the rest of the logical line, taking line continuations, block
+   * comments and literals (which may contain comment delimiters) into account
+   */
+  private void skipRestOfLine() {
+    while (pos < length) {
+      char c = code.charAt(pos);
+      if (isNewline(c)) {
+        return;
+      } else if (c == '\\' && pos + 1 < length && isNewline(code.charAt(pos + 1))) {
+        skipContinuation();
+      } else if (c == '"' || c == '\'') {
+        skipLiteral(c);
+      } else if (!skipComment()) {
+        pos++;
+      }
+    }
+  }
+
+  private void skipLiteral(char delimiter) {
+    pos++;
+    while (pos < length) {
+      char c = code.charAt(pos);
+      if (c == '\\') {
+        pos += 2;
+      } else if (c == delimiter) {
+        pos++;
+        return;
+      } else if (isNewline(c)) {
+        return;
+      } else {
+        pos++;
+      }
+    }
+  }
+
+  private void skipContinuation() {
+    pos += 2;
+    if (code.charAt(pos - 1) == '\r' && pos < length && code.charAt(pos) == '\n') {
+      pos++;
+    }
+  }
+
+  private void skipToNewline() {
+    while (pos < length && !isNewline(code.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private static boolean isNewline(char c) {
+    return c == '\n' || c == '\r';
+  }
+}
@@ -20,7 +20,6 @@
 package org.sonar.cxx.preprocessor;
 
 import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.ANY_CHAR;
-import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.commentRegexp;
 
 import org.sonar.cxx.CxxConfiguration;
 import org.sonar.cxx.channels.PreprocessorChannel;
@@ -44,7 +43,8 @@ public final class IncludeLexer {
         .withFailIfNoChannelToConsumeOneCharacter(true)
         .withChannel(new BlackHoleChannel("\\s"))
         .withChannel(new PreprocessorChannel())
-        .withChannel(commentRegexp("/\\*", ANY_CHAR + "*?", "\\*/"))
+        // comments are of no interest, drop them instead of creating trivia
+        .withChannel(new BlackHoleChannel("/\\*" + ANY_CHAR + "*?\\*/"))
         .withChannel(new BlackHoleChannel(".*"));
 
     for (Preprocessor preprocessor : preprocessors) {
@@ -24,52 +24,47 @@ import java.util.List;
 
 import org.sonar.cxx.api.CxxTokenType;
 
-import com.google.common.collect.Lists;
 import com.sonar.sslr.api.Preprocessor;
 import com.sonar.sslr.api.PreprocessorAction;
 import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.Trivia;
 
 public class JoinStringsPreprocessor extends Preprocessor {
   @Override
   public PreprocessorAction process(List<Token> tokens) {
     Token token = tokens.get(0);
 
-    if (token.getType() == CxxTokenType.STRING) {
-
-      // Joining string literals (C++ Standard, "2.2 Phases of translation, Phase 6")
-
-      int numberOfStrings = 1;
-      StringBuilder sb = new StringBuilder();
+    // most of the string literals stand alone; they pass without allocations
+    if (token.getType() != CxxTokenType.STRING || tokens.get(1).getType() != CxxTokenType.STRING) {
+      return PreprocessorAction.NO_OPERATION;
+    }
 
-      for (;;) {
-        Token nextToken = tokens.get(numberOfStrings);
-        if (nextToken.getType() != CxxTokenType.STRING) {
-          break;
-        }
-        sb.append(stripQuotes(nextToken.getValue()));
-        numberOfStrings++;
-      }
+    // Joining string literals (C++ Standard, "2.2 Phases of translation, Phase 6")
 
-      if (numberOfStrings > 1) {
-        List<Token> tokensToInject = Lists.newArrayList();
-        tokensToInject.add(
-            Token.builder()
-                .setLine(token.getLine())
-                .setColumn(token.getColumn())
-                .setURI(token.getURI())
-                .setType(CxxTokenType.STRING)
-                .setValueAndOriginalValue("\"" + stripQuotes(token.getValue()) + sb.toString() + "\"")
-                .build()
-            );
-        return new PreprocessorAction(numberOfStrings, Collections.EMPTY_LIST, tokensToInject);
+    StringBuilder sb = new StringBuilder("\"");
+    appendContent(sb, token.getValue());
+    int numberOfStrings = 1;
+    for (;;) {
+      Token nextToken = tokens.get(numberOfStrings);
+      if (nextToken.getType() != CxxTokenType.STRING) {
+        break;
       }
-
-      return PreprocessorAction.NO_OPERATION;
+      appendContent(sb, nextToken.getValue());
+      numberOfStrings++;
     }
-    return PreprocessorAction.NO_OPERATION;
+    sb.append('"');
+
+    Token joined = Token.builder()
+        .setLine(token.getLine())
+        .setColumn(token.getColumn())
+        .setURI(token.getURI())
+        .setType(CxxTokenType.STRING)
+        .setValueAndOriginalValue(sb.toString())
+        .build();
+    return new PreprocessorAction(numberOfStrings, Collections.<Trivia>emptyList(), Collections.singletonList(joined));
   }
 
-  private String stripQuotes(String str) {
-    return str.substring(1, str.length() - 1);
+  private static void appendContent(StringBuilder sb, String str) {
+    sb.append(str, 1, str.length() - 1);
   }
 }
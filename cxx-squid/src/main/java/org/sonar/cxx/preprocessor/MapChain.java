@@ -20,54 +20,171 @@
 package org.sonar.cxx.preprocessor;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Macro table with a high and a low priority layer, kept in one map: a
+ * lookup is a single hash map access and disabling a mapping only flags the
+ * entry. Changes of the low priority layer can be recorded in a journal and
+ * applied again later.
+ */
 public class MapChain<K, V> {
-  private Map<K, V> highPrioMap = new HashMap<K, V>();
-  private Map<K, V> lowPrioMap = new HashMap<K, V>();
-  private Map<K, V> highPrioDisabled = new HashMap<K, V>();
-  private Map<K, V> lowPrioDisabled = new HashMap<K, V>();
+  private static class Entry<V> {
+    private V highPrio;
+    private V lowPrio;
+    private int disabled;
+    private boolean hidden;
+
+    private boolean isUnused() {
+      return highPrio == null && lowPrio == null && disabled == 0 && !hidden;
+    }
+  }
+
+  private Map<K, Entry<V>> entries = new HashMap<K, Entry<V>>();
   private boolean isHighPrioEnabled = false;
+  private Map<K, V> journal = null;
 
   public V get(Object key) {
-    V value = highPrioMap.get(key);
-    return value != null ? value : lowPrioMap.get(key);
+    Entry<V> entry = entries.get(key);
+    if (entry == null || entry.disabled > 0 || entry.hidden) {
+      return null;
+    }
+    return entry.highPrio != null ? entry.highPrio : entry.lowPrio;
   }
 
   public void setHighPrio(boolean value) {
     isHighPrioEnabled = value;
   }
 
+  public boolean isHighPrioEnabled() {
+    return isHighPrioEnabled;
+  }
+
   public V put(K key, V value) {
+    Entry<V> entry = getOrCreateEntry(key);
+    V previous;
     if (isHighPrioEnabled) {
-      return highPrioMap.put(key, value);
+      previous = entry.highPrio;
+      entry.highPrio = value;
     } else {
-      return lowPrioMap.put(key, value);
+      previous = entry.lowPrio;
+      entry.lowPrio = value;
+      if (journal != null) {
+        journal.put(key, value);
+      }
     }
+    return previous;
   }
 
   public V removeLowPrio(K key) {
-    return lowPrioMap.remove(key);
+    if (journal != null) {
+      journal.put(key, null);
+    }
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    V previous = entry.lowPrio;
+    entry.lowPrio = null;
+    if (entry.isUnused()) {
+      entries.remove(key);
+    }
+    return previous;
+  }
+
+  /**
+   * Starts recording the changes of the low priority layer. Together with
+   * {@link #applyLowPrio(Map)} this allows to take a snapshot of the table
+   * as the difference to an earlier state.
+   */
+  public void startJournal() {
+    journal = new HashMap<K, V>();
+  }
+
+  /**
+   * @return the low priority mappings changed since {@link #startJournal()},
+   *         removed mappings are mapped to null
+   */
+  public Map<K, V> stopJournal() {
+    Map<K, V> changes = journal;
+    journal = null;
+    return changes == null ? new HashMap<K, V>() : changes;
+  }
+
+  /**
+   * Sets the low priority mappings as recorded by a journal.
+   */
+  public void applyLowPrio(Map<K, V> changes) {
+    for (Map.Entry<K, V> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        removeLowPrio(change.getKey());
+      } else {
+        getOrCreateEntry(change.getKey()).lowPrio = change.getValue();
+        if (journal != null) {
+          journal.put(change.getKey(), change.getValue());
+        }
+      }
+    }
   }
 
   public void clearLowPrio() {
-    lowPrioMap.clear();
+    journal = null;
+    Iterator<Entry<V>> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry<V> entry = it.next();
+      entry.lowPrio = null;
+      if (entry.isUnused()) {
+        it.remove();
+      }
+    }
+  }
+
+  public Map<K, V> getHighPrioMappings() {
+    Map<K, V> mappings = new LinkedHashMap<K, V>();
+    for (Map.Entry<K, Entry<V>> mapping : entries.entrySet()) {
+      if (mapping.getValue().highPrio != null) {
+        mappings.put(mapping.getKey(), mapping.getValue().highPrio);
+      }
+    }
+    return mappings;
   }
 
   public void disable(K key) {
-    move(key, lowPrioMap, lowPrioDisabled);
-    move(key, highPrioMap, highPrioDisabled);
+    Entry<V> entry = entries.get(key);
+    if (entry != null) {
+      entry.disabled++;
+    }
   }
 
   public void enable(K key) {
-    move(key, lowPrioDisabled, lowPrioMap);
-    move(key, highPrioDisabled, highPrioMap);
+    Entry<V> entry = entries.get(key);
+    if (entry != null && entry.disabled > 0) {
+      entry.disabled--;
+    }
+  }
+
+  /**
+   * Hides or shows a mapping independent of {@link #disable}, which counts
+   * the nesting of macro expansions. Hiding is not counted: a key is shown
+   * again by a single call, however often it has been hidden.
+   */
+  public void setHidden(K key, boolean hidden) {
+    Entry<V> entry = entries.get(key);
+    if (entry != null) {
+      entry.hidden = hidden;
+    } else if (hidden) {
+      getOrCreateEntry(key).hidden = true;
+    }
   }
 
-  private void move(K key, Map<K, V> from, Map<K, V> to) {
-    V value = from.remove(key);
-    if (value != null) {
-      to.put(key, value);
+  private Entry<V> getOrCreateEntry(K key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry<V>();
+      entries.put(key, entry);
     }
+    return entry;
   }
 }
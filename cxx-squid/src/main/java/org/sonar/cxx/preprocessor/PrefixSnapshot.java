@@ -0,0 +1,280 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.cxx.CxxConfiguration;
+
+/**
+ * The high priority macros which result from the configured defines and
+ * force includes, together with the headers they were read from. Much like
+ * a precompiled header, a snapshot lets later preprocessors skip the
+ * processing of the force includes. Snapshots are kept in memory and, if a
+ * directory is configured, in files, and are keyed by the configuration.
+ * A snapshot is only used while all of its headers have the recorded content
+ * and all of the includes processed for it still resolve to the recorded
+ * files, so that headers which were missing or which shadow a recorded one
+ * on the include path invalidate it.
+ */
+final class PrefixSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger("CxxPreprocessor");
+  private static final String FORMAT = "sonar-cxx-prefix-snapshot 2";
+  private static final String FILE_PREFIX = "file ";
+  private static final String INCLUDE_PREFIX = "include ";
+  private static final String MACRO_PREFIX = "macro ";
+  static final int MAX_SNAPSHOTS = 64;
+  private static final Map<String, PrefixSnapshot> SNAPSHOTS =
+    new LinkedHashMap<String, PrefixSnapshot>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PrefixSnapshot> eldest) {
+        return size() > MAX_SNAPSHOTS;
+      }
+    };
+
+  private final Map<File, String> fileHashes;
+  private final List<Resolution> resolutions;
+  private final List<String> macroLines;
+
+  /**
+   * The outcome of looking up an include: the file found for a name, or
+   * null if there was none.
+   */
+  static final class Resolution {
+    private final String name;
+    private final String dir;
+    private final boolean quoted;
+    private final File file;
+
+    Resolution(String name, String dir, boolean quoted, File file) {
+      this.name = name;
+      this.dir = dir;
+      this.quoted = quoted;
+      this.file = file;
+    }
+
+    boolean isUpToDate(SourceCodeProvider codeProvider) {
+      File current = codeProvider.getSourceCodeFile(name, dir, quoted);
+      return current == null ? file == null : current.equals(file);
+    }
+
+    @Override
+    public String toString() {
+      return (quoted ? "\"" + name + "\"" : "<" + name + ">") + " in '" + dir + "'";
+    }
+  }
+
+  PrefixSnapshot(Map<File, String> fileHashes, List<Resolution> resolutions, List<String> macroLines) {
+    this.fileHashes = fileHashes;
+    this.resolutions = resolutions;
+    this.macroLines = macroLines;
+  }
+
+  /**
+   * Directive lines of the macros, sorted. The lines are the final definitions
+   * of distinct macros, which are only expanded on use, so they can be defined
+   * in any order; sorting them keeps the snapshot files independent of the
+   * iteration order of the macro table.
+   */
+  List<String> getMacroLines() {
+    return macroLines;
+  }
+
+  /**
+   * Headers which were processed to build the snapshot.
+   */
+  Iterable<File> getFiles() {
+    return fileHashes.keySet();
+  }
+
+  /**
+   * Builds a snapshot from the headers read and the macros defined so far.
+   * Returns null if a header cannot be read anymore.
+   */
+  static PrefixSnapshot create(Iterable<File> files, List<Resolution> resolutions, List<String> macroLines,
+                               SourceCodeProvider codeProvider) {
+    Map<File, String> fileHashes = new LinkedHashMap<File, String>();
+    for (File file : files) {
+      String code = codeProvider.getSourceCode(file);
+      if (code == null) {
+        return null;
+      }
+      fileHashes.put(file, HeaderSummaryCache.hash(codeProvider, file, code));
+    }
+    List<String> sortedMacroLines = new ArrayList<String>(macroLines);
+    Collections.sort(sortedMacroLines);
+    return new PrefixSnapshot(fileHashes, new ArrayList<Resolution>(resolutions), sortedMacroLines);
+  }
+
+  static String key(CxxConfiguration conf) {
+    StringBuilder sb = new StringBuilder(FORMAT).append('\n');
+    sb.append(conf.getCharset()).append('\n');
+    sb.append(conf.getBaseDir()).append('\n');
+    sb.append(conf.getDefines()).append('\n');
+    sb.append(conf.getIncludeDirectories()).append('\n');
+    sb.append(conf.getForceIncludeFiles()).append('\n');
+    return HeaderSummaryCache.hash(sb.toString());
+  }
+
+  /**
+   * Looks up a valid snapshot for the given configuration, first in memory,
+   * then in the snapshot directory.
+   */
+  static PrefixSnapshot find(CxxConfiguration conf, SourceCodeProvider codeProvider) {
+    String key = key(conf);
+    PrefixSnapshot snapshot;
+    synchronized (SNAPSHOTS) {
+      snapshot = SNAPSHOTS.get(key);
+    }
+    if (snapshot == null && conf.getPrefixSnapshotDirectory() != null) {
+      snapshot = read(new File(conf.getPrefixSnapshotDirectory(), key + ".snapshot"));
+    }
+    if (snapshot == null || !snapshot.isUpToDate(codeProvider)) {
+      return null;
+    }
+    synchronized (SNAPSHOTS) {
+      SNAPSHOTS.put(key, snapshot);
+    }
+    return snapshot;
+  }
+
+  static void store(CxxConfiguration conf, PrefixSnapshot snapshot) {
+    String key = key(conf);
+    synchronized (SNAPSHOTS) {
+      SNAPSHOTS.put(key, snapshot);
+    }
+    if (conf.getPrefixSnapshotDirectory() != null) {
+      snapshot.write(new File(conf.getPrefixSnapshotDirectory(), key + ".snapshot"));
+    }
+  }
+
+  static int snapshotsInMemory() {
+    synchronized (SNAPSHOTS) {
+      return SNAPSHOTS.size();
+    }
+  }
+
+  static void clearMemory() {
+    synchronized (SNAPSHOTS) {
+      SNAPSHOTS.clear();
+    }
+  }
+
+  private boolean isUpToDate(SourceCodeProvider codeProvider) {
+    for (Map.Entry<File, String> entry : fileHashes.entrySet()) {
+      String code = codeProvider.getSourceCode(entry.getKey());
+      if (code == null || !HeaderSummaryCache.hash(codeProvider, entry.getKey(), code).equals(entry.getValue())) {
+        LOG.debug("prefix snapshot is outdated, '{}' changed", entry.getKey());
+        return false;
+      }
+    }
+    for (Resolution resolution : resolutions) {
+      if (!resolution.isUpToDate(codeProvider)) {
+        LOG.debug("prefix snapshot is outdated, the include {} resolves differently", resolution);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static PrefixSnapshot read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      List<String> lines = FileUtils.readLines(file, "UTF-8");
+      if (lines.isEmpty() || !FORMAT.equals(lines.get(0))) {
+        return null;
+      }
+      Map<File, String> fileHashes = new LinkedHashMap<File, String>();
+      List<Resolution> resolutions = new ArrayList<Resolution>();
+      List<String> macroLines = new ArrayList<String>();
+      for (String line : lines.subList(1, lines.size())) {
+        if (line.startsWith(FILE_PREFIX)) {
+          int separator = line.indexOf(' ', FILE_PREFIX.length());
+          fileHashes.put(new File(line.substring(separator + 1)), line.substring(FILE_PREFIX.length(), separator));
+        } else if (line.startsWith(INCLUDE_PREFIX)) {
+          Resolution resolution = readResolution(line.substring(INCLUDE_PREFIX.length()));
+          if (resolution == null) {
+            return null;
+          }
+          resolutions.add(resolution);
+        } else if (line.startsWith(MACRO_PREFIX)) {
+          macroLines.add(line.substring(MACRO_PREFIX.length()));
+        }
+      }
+      LOG.debug("read prefix snapshot '{}'", file);
+      return new PrefixSnapshot(fileHashes, resolutions, macroLines);
+    } catch (IOException e) {
+      LOG.warn("Cannot read the prefix snapshot '{}': {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private static Resolution readResolution(String line) {
+    // quoted, file and directory are tab separated in front of the name
+    String[] fields = line.split("\t", 4);
+    if (fields.length < 4) {
+      return null;
+    }
+    File file = fields[1].isEmpty() ? null : new File(fields[1]);
+    return new Resolution(fields[3], fields[2], "q".equals(fields[0]), file);
+  }
+
+  private void write(File file) {
+    List<String> lines = new ArrayList<String>();
+    lines.add(FORMAT);
+    for (Map.Entry<File, String> entry : fileHashes.entrySet()) {
+      lines.add(FILE_PREFIX + entry.getValue() + " " + entry.getKey().getPath());
+    }
+    for (Resolution resolution : resolutions) {
+      lines.add(INCLUDE_PREFIX + (resolution.quoted ? "q" : "a") + "\t"
+                + (resolution.file == null ? "" : resolution.file.getPath()) + "\t"
+                + resolution.dir + "\t" + resolution.name);
+    }
+    for (String macroLine : macroLines) {
+      lines.add(MACRO_PREFIX + macroLine);
+    }
+
+    // write to a temporary file first, other scanners may read the snapshot concurrently
+    File tmpFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      FileUtils.writeLines(tmpFile, "UTF-8", lines, "\n");
+      if (!tmpFile.renameTo(file)) {
+        FileUtils.deleteQuietly(file);
+        if (!tmpFile.renameTo(file)) {
+          FileUtils.deleteQuietly(tmpFile);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot write the prefix snapshot '{}': {}", file, e.getMessage());
+      FileUtils.deleteQuietly(tmpFile);
+    }
+  }
+}
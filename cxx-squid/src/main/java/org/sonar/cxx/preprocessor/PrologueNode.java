@@ -0,0 +1,66 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Node in the tree of the include prologues seen so far, i.e. of the
+ * sequences of includes translation units start with. A node stands for the
+ * preprocessor state after the includes on its path and stores how the
+ * state changed compared to its parent: the macros (re)defined or removed
+ * (mapped to null) and the files marked as analysed. Since every translation
+ * unit starts from the same state, a unit with a known prologue can apply
+ * these changes instead of processing the headers again.
+ */
+final class PrologueNode<V> {
+  private final Map<File, PrologueNode<V>> children = new HashMap<File, PrologueNode<V>>();
+  private final Map<String, V> macroChanges;
+  private final List<File> analysedFiles;
+
+  PrologueNode() {
+    this(Collections.<String, V>emptyMap(), Collections.<File>emptyList());
+  }
+
+  PrologueNode(Map<String, V> macroChanges, List<File> analysedFiles) {
+    this.macroChanges = macroChanges;
+    this.analysedFiles = analysedFiles;
+  }
+
+  PrologueNode<V> getChild(File include) {
+    return children.get(include);
+  }
+
+  void addChild(File include, PrologueNode<V> child) {
+    children.put(include, child);
+  }
+
+  Map<String, V> getMacroChanges() {
+    return macroChanges;
+  }
+
+  List<File> getAnalysedFiles() {
+    return analysedFiles;
+  }
+}
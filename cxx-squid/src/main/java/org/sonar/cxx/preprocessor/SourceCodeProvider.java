@@ -20,8 +20,17 @@
 package org.sonar.cxx.preprocessor;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -33,12 +42,34 @@ import org.slf4j.LoggerFactory;
  * an absolute and as a relative file system path. In the latter case
  * the scanner searches a list of directories (known to him) for a
  * file with such a name.
+ *
+ * Resolutions (including failed ones) are memoized and the existence
+ * checks are answered from lazily built directory listings, so that the
+ * file system is only hit once per directory and resolved file. The
+ * listings are compared ignoring case and the file system decides about
+ * names which differ in case only, as it may be case insensitive.
+ *
+ * The decoded contents of the files are kept in a LRU cache, which is
+ * bounded by the (approximate) number of bytes the strings occupy. The hash
+ * of a cached content is computed once and kept along with it.
  */
 public class SourceCodeProvider {
+  public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
   private List<File> includeRoots = new LinkedList<File>();
+  private Map<String, File> resolvedFiles = new HashMap<String, File>();
+  private Map<String, Set<String>> directoryIndex = new HashMap<String, Set<String>>();
+  private LinkedHashMap<File, CachedContent> contentCache = new LinkedHashMap<File, CachedContent>(16, 0.75f, true);
+  private Charset charset = Charset.defaultCharset();
+  private long maxCacheSize = DEFAULT_CACHE_SIZE;
+  private long cacheSize = 0;
+  private long cacheHits = 0;
+  private long cacheMisses = 0;
+  private long cacheEvictions = 0;
   public static final Logger LOG = LoggerFactory.getLogger("SourceCodeProvider");
 
   public void setIncludeRoots(List<String> includeRoots, String baseDir) {
+    resolvedFiles.clear();
     for (String tmp : includeRoots) {
 
       File includeRoot = new File(tmp);
@@ -63,10 +94,22 @@ public class SourceCodeProvider {
   }
 
   public File getSourceCodeFile(String filename, String cwd, boolean quoted) {
+    // the current directory only matters in the quoted case
+    String key = quoted ? "\"" + cwd + File.pathSeparator + filename : "<" + filename;
+    if (resolvedFiles.containsKey(key)) {
+      return resolvedFiles.get(key);
+    }
+
+    File result = resolveSourceCodeFile(filename, cwd, quoted);
+    resolvedFiles.put(key, result);
+    return result;
+  }
+
+  private File resolveSourceCodeFile(String filename, String cwd, boolean quoted) {
     File result = null;
     File file = new File(filename);
     if (file.isAbsolute()) {
-      if (file.isFile()) {
+      if (isFile(file)) {
         result = file;
       }
     }
@@ -76,7 +119,7 @@ public class SourceCodeProvider {
       // current directory.
       if (quoted) {
         File abspath = new File(new File(cwd), file.getPath());
-        if (abspath.isFile()) {
+        if (isFile(abspath)) {
           result = abspath;
         }
       }
@@ -87,7 +130,7 @@ public class SourceCodeProvider {
       if (result == null) {
         for (File folder : includeRoots) {
           File abspath = new File(folder.getPath(), filename);
-          if (abspath.isFile()) {
+          if (isFile(abspath)) {
             result = abspath;
             break;
           }
@@ -106,11 +149,70 @@ public class SourceCodeProvider {
     return result;
   }
 
+  private boolean isFile(File file) {
+    File dir = file.getParentFile();
+    if (dir == null) {
+      return file.isFile();
+    }
+    // a name missing from the listing cannot exist in any case variant; for
+    // others, file.isFile() follows the case sensitivity of the file system
+    return getDirectoryEntries(dir).contains(normalizeName(file.getName())) && file.isFile();
+  }
+
+  private Set<String> getDirectoryEntries(File dir) {
+    Set<String> entries = directoryIndex.get(dir.getPath());
+    if (entries == null) {
+      String[] names = dir.list();
+      if (names == null) {
+        entries = Collections.emptySet();
+      } else {
+        entries = new HashSet<String>(names.length * 2);
+        for (String name : names) {
+          entries.add(normalizeName(name));
+        }
+      }
+      directoryIndex.put(dir.getPath(), entries);
+    }
+    return entries;
+  }
+
+  private static String normalizeName(String name) {
+    return name.toLowerCase(Locale.ENGLISH);
+  }
+
+  public void setCharset(Charset charset) {
+    if (charset != null && !charset.equals(this.charset)) {
+      this.charset = charset;
+      clearCache();
+    }
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Sets the maximum number of bytes the cached file contents may occupy.
+   * Zero disables the caching.
+   */
+  public void setMaxCacheSize(long maxCacheSize) {
+    this.maxCacheSize = maxCacheSize;
+    evict();
+  }
+
   public String getSourceCode(File file) {
+    CachedContent cached = contentCache.get(file);
+    if (cached != null) {
+      cacheHits++;
+      return cached.code;
+    }
+
+    cacheMisses++;
     String code = null;
     if (file.isFile()) {
       try {
-        code = FileUtils.readFileToString(file);
+        code = FileUtils.readFileToString(file, charset.name());
+        cache(file, code);
       } catch (java.io.IOException e) {
         LOG.error("Cannot read contents of the file '{}'", file);
       }
@@ -118,4 +220,67 @@ public class SourceCodeProvider {
 
     return code;
   }
+
+  /**
+   * @return the hash of the content of the file as returned by
+   *         {@link #getSourceCode(File)}, null if the content is not cached
+   */
+  public String getCachedContentHash(File file) {
+    CachedContent cached = contentCache.get(file);
+    if (cached == null) {
+      return null;
+    }
+    if (cached.hash == null) {
+      cached.hash = HeaderSummaryCache.hash(cached.code);
+    }
+    return cached.hash;
+  }
+
+  public long getCacheHits() {
+    return cacheHits;
+  }
+
+  public long getCacheMisses() {
+    return cacheMisses;
+  }
+
+  public long getCacheEvictions() {
+    return cacheEvictions;
+  }
+
+  private void cache(File file, String code) {
+    long size = sizeOf(code);
+    if (size <= maxCacheSize) {
+      contentCache.put(file, new CachedContent(code));
+      cacheSize += size;
+      evict();
+    }
+  }
+
+  private void evict() {
+    Iterator<CachedContent> it = contentCache.values().iterator();
+    while (cacheSize > maxCacheSize && it.hasNext()) {
+      cacheSize -= sizeOf(it.next().code);
+      it.remove();
+      cacheEvictions++;
+    }
+  }
+
+  private void clearCache() {
+    contentCache.clear();
+    cacheSize = 0;
+  }
+
+  private static long sizeOf(String code) {
+    return 2L * code.length();
+  }
+
+  private static final class CachedContent {
+    private final String code;
+    private String hash = null;
+
+    private CachedContent(String code) {
+      this.code = code;
+    }
+  }
 }
@@ -20,6 +20,7 @@
 package org.sonar.cxx.preprocessor;
 
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -41,6 +42,14 @@ public final class StandardDefinitions {
       .build();
   }
 
+  /**
+   * Keywords of C++ which are no keywords in C. In C files these are lexed
+   * as identifiers.
+   */
+  public static Set<String> cxxOnlyKeywords() {
+    return compatibilityMacros().keySet();
+  }
+
   public static Map<String, String> compatibilityMacros(){
     // This is a collection of macros used to let C code be parsed by C++ parser
     return ImmutableMap.<String, String>builder()
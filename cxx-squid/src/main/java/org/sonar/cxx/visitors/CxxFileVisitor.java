@@ -19,9 +19,8 @@
  */
 package org.sonar.cxx.visitors;
 
-import org.sonar.cxx.parser.CxxParser;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.squidbridge.SquidAstVisitor;
-import org.sonar.squidbridge.SquidAstVisitorContext;
 
 import com.sonar.sslr.api.AstAndTokenVisitor;
 import com.sonar.sslr.api.AstNode;
@@ -31,9 +30,9 @@ import com.sonar.sslr.api.Token;
 public class CxxFileVisitor<GRAMMAR extends Grammar> extends SquidAstVisitor<GRAMMAR>
   implements AstAndTokenVisitor {
 
-  private SquidAstVisitorContext context = null;
+  private CxxVisitorContext<GRAMMAR> context = null;
 
-  public CxxFileVisitor(SquidAstVisitorContext context){
+  public CxxFileVisitor(CxxVisitorContext<GRAMMAR> context){
     this.context = context;
   }
 
@@ -42,7 +41,7 @@ public class CxxFileVisitor<GRAMMAR extends Grammar> extends SquidAstVisitor<GRA
    */
   @Override
   public void visitFile(AstNode node) {
-    CxxParser.finishedParsing(context.getFile());
+    context.getPreprocessor().finishedPreprocessing(context.getFile());
   }
 
   /**
@@ -0,0 +1,129 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.cxx.CompilationDatabase.FileSettings;
+
+public class CompilationDatabaseTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = tmp.newFolder("build").getCanonicalFile();
+  }
+
+  @Test
+  public void command_lines_are_split_like_in_a_shell() {
+    assertThat(CompilationDatabase.splitCommandLine("cc  -DA=\"x y\" 'b c'\\ d -DS=\\\"s\\\" \"e\\\\\""))
+      .isEqualTo(Arrays.asList("cc", "-DA=x y", "b c d", "-DS=\"s\"", "e\\"));
+  }
+
+  @Test
+  public void flags_are_read_from_commands_and_arguments() throws IOException {
+    CompilationDatabase db = parse("["
+      + "{\"directory\": \"" + path(dir) + "\", \"file\": \"a.cc\","
+      + " \"command\": \"g++ -std=c++11 -DA -DB=2 -D C(x)=x -UB -Iinc -isystem /usr/inc -include pre.h -c a.cc\"},"
+      + "{\"directory\": \"" + path(dir) + "\", \"file\": \"b.c\","
+      + " \"arguments\": [\"gcc\", \"-std=c99\", \"-DA\", \"-c\", \"b.c\"]}"
+      + "]");
+
+    FileSettings a = db.getSettings(new File(dir, "a.cc"));
+    assertThat(a.getDefines()).isEqualTo(Arrays.asList("A 1", "C(x) x"));
+    assertThat(a.getIncludeDirectories()).isEqualTo(Arrays.asList(new File(dir, "inc").getPath(), "/usr/inc"));
+    assertThat(a.getForceIncludes()).isEqualTo(Arrays.asList(new File(dir, "pre.h").getPath()));
+    assertThat(a.isCxx()).isTrue();
+
+    FileSettings b = db.getSettings(new File(dir, "b.c"));
+    assertThat(b.getDefines()).isEqualTo(Arrays.asList("A 1"));
+    assertThat(b.isC()).isTrue();
+
+    assertThat(db.getSettings(new File(dir, "c.cc"))).isNull();
+  }
+
+  @Test
+  public void files_with_equal_settings_are_grouped() throws IOException {
+    CompilationDatabase db = parse("["
+      + command("a.cc", "-DA") + "," + command("b.cc", "-DB") + "," + command("c.cc", "-DA")
+      + "]");
+    File a = new File(dir, "a.cc");
+    File b = new File(dir, "b.cc");
+    File c = new File(dir, "c.cc");
+    File d = new File(dir, "d.cc");
+
+    Map<FileSettings, List<File>> groups = db.group(Arrays.asList(a, b, c, d));
+    assertThat(groups).hasSize(3);
+    assertThat(groups.get(db.getSettings(a))).isEqualTo(Arrays.asList(a, c));
+    assertThat(groups.get(db.getSettings(b))).isEqualTo(Arrays.asList(b));
+    assertThat(groups.get(null)).isEqualTo(Arrays.asList(d));
+  }
+
+  @Test
+  public void settings_extend_the_global_configuration() throws IOException {
+    CompilationDatabase db = parse("[" + command("a.c", "-std=gnu99 -DA -Iinc -include pre.h") + "]");
+    CxxConfiguration base = new CxxConfiguration();
+    base.setDefines(Arrays.asList("G 1"));
+    base.setIncludeDirectories(Arrays.asList("global"));
+    base.setForceIncludeFiles(Arrays.asList("global.h"));
+
+    CxxConfiguration conf = CompilationDatabase.configure(base, db.getSettings(new File(dir, "a.c")));
+    assertThat(conf.getDefines()).isEqualTo(Arrays.asList("G 1", "A 1"));
+    assertThat(conf.getIncludeDirectories()).isEqualTo(Arrays.asList(new File(dir, "inc").getPath(), "global"));
+    assertThat(conf.getForceIncludeFiles()).isEqualTo(Arrays.asList("global.h", new File(dir, "pre.h").getPath()));
+    assertThat(conf.getCFilesPatterns()).isEqualTo(Arrays.asList("*"));
+    assertThat(base.getDefines()).isEqualTo(Arrays.asList("G 1"));
+  }
+
+  @Test(expected = IOException.class)
+  public void invalid_json_is_rejected() throws IOException {
+    parse("[{\"directory\": \"x\", \"file\": \"a.cc\"");
+  }
+
+  private String command(String file, String flags) {
+    return "{\"directory\": \"" + path(dir) + "\", \"file\": \"" + file + "\", \"command\": \"cc " + flags + " -c "
+      + file + "\"}";
+  }
+
+  private static String path(File file) {
+    return file.getPath().replace("\\", "\\\\");
+  }
+
+  private CompilationDatabase parse(String json) throws IOException {
+    File file = tmp.newFile();
+    FileUtils.write(file, json);
+    return CompilationDatabase.parse(file);
+  }
+}
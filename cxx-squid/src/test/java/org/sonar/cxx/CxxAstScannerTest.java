@@ -44,6 +44,21 @@ public class CxxAstScannerTest {
     assertThat(project.getInt(CxxMetric.FILES)).isEqualTo(2);
   }
 
+  @Test
+  public void preprocessor_is_scoped_to_the_scanner() {
+    CxxVisitorContext<Grammar> context1 = new CxxVisitorContext<Grammar>(new SourceProject("Cxx Project"));
+    CxxVisitorContext<Grammar> context2 = new CxxVisitorContext<Grammar>(new SourceProject("Cxx Project"));
+    AstScanner<Grammar> scanner1 = CxxAstScanner.create(context1, new CxxConfiguration());
+    AstScanner<Grammar> scanner2 = CxxAstScanner.create(context2, new CxxConfiguration());
+
+    scanner1.scanFile(new File("src/test/resources/metrics/trivial.cc"));
+    scanner2.scanFile(new File("src/test/resources/metrics/classes.cc"));
+
+    assertThat(context1.getPreprocessor()).isNotNull();
+    assertThat(context2.getPreprocessor()).isNotNull();
+    assertThat(context1.getPreprocessor()).isNotSameAs(context2.getPreprocessor());
+  }
+
   @Test
   public void comments() {
     SourceFile file = CxxAstScanner.scanSingleFile(new File("src/test/resources/metrics/comments.cc"));
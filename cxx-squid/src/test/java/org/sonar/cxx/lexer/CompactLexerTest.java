@@ -0,0 +1,149 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.api.CxxKeyword;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.Trivia;
+import com.sonar.sslr.impl.Lexer;
+
+/**
+ * Differential test: the compact lexer has to produce the same tokens as the
+ * CxxLexer without preprocessors.
+ */
+public class CompactLexerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final Lexer lexer = CxxLexer.create();
+  private final CompactLexer compactLexer = new CompactLexer(new CxxConfiguration());
+
+  @Test
+  public void tokens_are_kept_over_the_source() {
+    CompactTokens tokens = compactLexer.lex("/* c1 */ int a = 0x1f; // c2\r\nb\n#define M\\\n 1\n");
+
+    assertThat(tokens.size()).isEqualTo(10);
+    assertThat(tokens.isComment(0)).isTrue();
+    assertThat(tokens.getValue(0)).isEqualTo("/* c1 */");
+    assertThat(tokens.getType(1)).isEqualTo(CxxKeyword.INT);
+    assertThat(tokens.getValue(4)).isEqualTo("0x1f");
+    assertThat(tokens.isComment(6)).isTrue();
+    assertThat(tokens.getLine(7)).isEqualTo(2);
+    assertThat(tokens.getColumn(7)).isEqualTo(0);
+    assertThat(tokens.getValue(8)).isEqualTo("#define M  1");
+    assertThat(tokens.getType(9)).isEqualTo(GenericTokenType.EOF);
+  }
+
+  @Test
+  public void comments() {
+    assertSameTokens("// line\nx /* block */ y /* multi\nline */ z");
+    assertSameTokens("/*/ still a comment */ a /**/ b /***/ c //");
+    assertSameTokens("a /* unterminated\n comment");
+    assertSameTokens("a // trailing\r\nb //\rc");
+  }
+
+  @Test
+  public void directives() {
+    assertSameTokens("#include <a.h>\n#define A(x) x /* c\n c */ + 1\nA(2)");
+    assertSameTokens("#define B 1 \\\r\n + 2 \\\n + 3\r\nB\n# if B // c\n#endif");
+    assertSameTokens("#define C /* unterminated");
+    assertSameTokens("x \\\n y \\ z");
+  }
+
+  @Test
+  public void literals_identifiers_and_punctuators() {
+    assertSameTokens("0 10 0x1fu 07 1.5e-3f .5 nullptr nullptrx 123_km 'a' L'\\'' u8\"s\\\"\" R\"(raw)\" \"open");
+    assertSameTokens("int x; class Foo : public Bar { virtual ~Foo(); }; a<<=b->*c ... :: @ $");
+  }
+
+  @Test
+  public void test_resources() throws Exception {
+    Collection<File> files = FileUtils.listFiles(new File("src/test/resources"), null, true);
+    assertThat(files).isNotEmpty();
+    for (File file : files) {
+      assertThat(describe(compactLexer.lex(file)))
+          .as(file.getPath())
+          .isEqualTo(describe(lexer.lex(file)));
+    }
+  }
+
+  @Test
+  public void cxx_keywords_are_identifiers_in_c_files() throws Exception {
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setCFilesPatterns(new String[] {"*.c"});
+    File file = tmp.newFile("a.c");
+    FileUtils.writeStringToFile(file, "int class;");
+
+    CompactTokens tokens = new CompactLexer(conf).lex(file);
+
+    assertThat(tokens.getType(0)).isEqualTo(CxxKeyword.INT);
+    assertThat(tokens.getType(1)).isEqualTo(GenericTokenType.IDENTIFIER);
+    assertThat(describe(tokens)).isEqualTo(describe(CxxLexer.create(conf).lex(file)));
+  }
+
+  private void assertSameTokens(String source) {
+    assertThat(describe(compactLexer.lex(source)))
+        .as(source)
+        .isEqualTo(describe(lexer.lex(source)));
+  }
+
+  private static List<String> describe(CompactTokens tokens) {
+    List<Token> materialized = new ArrayList<Token>();
+    for (int i = 0; i < tokens.size(); i++) {
+      if (!tokens.isComment(i)) {
+        materialized.add(tokens.getToken(i));
+      }
+    }
+    return describe(materialized);
+  }
+
+  private static List<String> describe(List<Token> tokens) {
+    List<String> result = new ArrayList<String>();
+    for (Token token : tokens) {
+      for (Trivia trivia : token.getTrivia()) {
+        for (Token triviaToken : trivia.getTokens()) {
+          result.add("trivia " + describe(triviaToken));
+        }
+      }
+      result.add(describe(token));
+    }
+    return result;
+  }
+
+  private static String describe(Token token) {
+    return token.getType() + " '" + token.getOriginalValue() + "' '" + token.getValue() + "' "
+        + token.getLine() + ":" + token.getColumn() + " " + token.getURI();
+  }
+}
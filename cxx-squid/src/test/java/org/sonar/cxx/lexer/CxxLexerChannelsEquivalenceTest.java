@@ -0,0 +1,160 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.ANY_CHAR;
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.and;
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.commentRegexp;
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.o2n;
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.opt;
+import static com.sonar.sslr.impl.channel.RegexpChannelBuilder.regexp;
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.api.CxxPunctuator;
+import org.sonar.cxx.api.CxxTokenType;
+import org.sonar.cxx.channels.CharacterLiteralsChannel;
+import org.sonar.cxx.channels.PreprocessorChannel;
+import org.sonar.cxx.channels.StringLiteralsChannel;
+
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.api.Trivia;
+import com.sonar.sslr.impl.Lexer;
+import com.sonar.sslr.impl.channel.BlackHoleChannel;
+import com.sonar.sslr.impl.channel.IdentifierAndKeywordChannel;
+import com.sonar.sslr.impl.channel.PunctuatorChannel;
+import com.sonar.sslr.impl.channel.UnknownCharacterChannel;
+
+/**
+ * Differential test: the hand-written channels of the CxxLexer have to
+ * produce the same tokens as the regular expression based channels they
+ * replaced.
+ */
+public class CxxLexerChannelsEquivalenceTest {
+
+  private static final String INTEGER_SUFFIX = "(((U|u)(LL|ll|L|l)?)|((LL|ll|L|l)(u|U)?))";
+  private static final String EXP = "([Ee][+-]?+[0-9_]++)";
+  private static final String FLOAT_SUFFIX = "(f|l|F|L)";
+
+  private static Lexer lexer;
+  private static Lexer regexpLexer;
+
+  @BeforeClass
+  public static void init() {
+    lexer = CxxLexer.create();
+    regexpLexer = Lexer.builder()
+        .withCharset(new CxxConfiguration().getCharset())
+        .withFailIfNoChannelToConsumeOneCharacter(true)
+        .withChannel(new BlackHoleChannel("\\s"))
+        .withChannel(commentRegexp("//[^\\n\\r]*+"))
+        .withChannel(commentRegexp("/\\*", ANY_CHAR + "*?", "\\*/"))
+        .withChannel(new BackslashChannel())
+        .withChannel(new PreprocessorChannel())
+        .withChannel(new CharacterLiteralsChannel())
+        .withChannel(new StringLiteralsChannel())
+        .withChannel(regexp(CxxTokenType.NUMBER, "[0-9]++\\.[0-9]*+" + opt(EXP) + opt(FLOAT_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "\\.[0-9]++" + opt(EXP) + opt(FLOAT_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "[0-9]++" + EXP + opt(FLOAT_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "[1-9][0-9]*+" + opt(INTEGER_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "0[0-7]++" + opt(INTEGER_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "0[xX][0-9a-fA-F]++" + opt(INTEGER_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, "0" + opt(INTEGER_SUFFIX)))
+        .withChannel(regexp(CxxTokenType.NUMBER, CxxKeyword.NULLPTR.getValue()))
+        .withChannel(new IdentifierAndKeywordChannel(and("[a-zA-Z_]", o2n("\\w")), true, CxxKeyword.values()))
+        .withChannel(new PunctuatorChannel(CxxPunctuator.values()))
+        .withChannel(new UnknownCharacterChannel())
+        .build();
+  }
+
+  @Test
+  public void comments() {
+    assertSameTokens("// line\nx /* block */ y /* multi\nline */ z");
+    assertSameTokens("/*/ still a comment */ a /**/ b /***/ c //");
+    assertSameTokens("a /* unterminated\n comment");
+    assertSameTokens("a // trailing\r\nb //\rc");
+    assertSameTokens("x = a / b /c*/ d;");
+  }
+
+  @Test
+  public void numbers() {
+    assertSameTokens("0 1 10 0u 0U 1ul 1UL 1uLL 1ull 1uLl 1l 1L 1ll 1LL 1Ll 1lu 1LLU 1lL");
+    assertSameTokens("07 0777 078 09 0089 00 0x 0x1 0X1f 0xABCDEFu 0x1ull 0xg 0x.5");
+    assertSameTokens("1. 1.5 .5 . .e1 1.e 1.e+ 1.e+5 1.5e-3f 1e 1e5 1e+5L 1E_5 1e_ 1e+_1 1.5.6 1..2");
+    assertSameTokens("1f 1.f 1.5F 1.5l 1e5d 0e0 00e1 0.0 08.5 123abc 123_km 1.5_mm 0b101");
+    assertSameTokens("nullptr nullptrx xnullptr null nullp nullpt(nullptr)");
+  }
+
+  @Test
+  public void identifiers_and_keywords() {
+    assertSameTokens("int x; class Foo : public Bar { virtual ~Foo(); };");
+    assertSameTokens("_ _1 a1_b int_ Int INT ints i nt alignas alignof char16_t static_assert thread_local");
+    assertSameTokens("u8x Lx Rx ux Ux L'a' u8\"a\" R\"(raw)\"");
+  }
+
+  @Test
+  public void punctuators() {
+    assertSameTokens("a+++++b a<<=b>>=c a->*b .*... :: ::: <: %: %:%: ## # ! != ~ ^= |= ||");
+    assertSameTokens("x<<<y x>>>y a&&&b a-->b a...b a..b @ $ `");
+  }
+
+  @Test
+  public void test_resources() throws Exception {
+    Collection<File> files = FileUtils.listFiles(new File("src/test/resources"), null, true);
+    assertThat(files).isNotEmpty();
+    for (File file : files) {
+      assertThat(describe(lexer.lex(file)))
+          .as(file.getPath())
+          .isEqualTo(describe(regexpLexer.lex(file)));
+    }
+  }
+
+  private static void assertSameTokens(String source) {
+    assertThat(describe(lexer.lex(source)))
+        .as(source)
+        .isEqualTo(describe(regexpLexer.lex(source)));
+  }
+
+  private static List<String> describe(List<Token> tokens) {
+    List<String> result = new ArrayList<String>();
+    for (Token token : tokens) {
+      for (Trivia trivia : token.getTrivia()) {
+        for (Token triviaToken : trivia.getTokens()) {
+          result.add("trivia " + describe(triviaToken));
+        }
+      }
+      result.add(describe(token));
+    }
+    return result;
+  }
+
+  private static String describe(Token token) {
+    return token.getType() + " '" + token.getOriginalValue() + "' '" + token.getValue() + "' "
+        + token.getLine() + ":" + token.getColumn() + " " + token.getURI();
+  }
+}
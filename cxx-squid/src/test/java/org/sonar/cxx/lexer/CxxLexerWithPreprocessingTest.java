@@ -28,13 +28,19 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sonar.cxx.CxxConfiguration;
 import org.sonar.cxx.api.CxxKeyword;
 import org.sonar.cxx.api.CxxPunctuator;
@@ -52,6 +58,9 @@ import com.sonar.sslr.impl.Lexer;
 
 public class CxxLexerWithPreprocessingTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private static Lexer lexer;
 
   public CxxLexerWithPreprocessingTest() {
@@ -164,6 +173,42 @@ public class CxxLexerWithPreprocessingTest {
     assertThat(tokens, hasToken("cccc", GenericTokenType.IDENTIFIER));
   }
 
+  @Test
+  public void expanding_hashoperator_with_many_tokens() {
+    List<Token> tokens = lexer.lex("#define str(a) # a\n str(x + y)");
+    assertThat(tokens).hasSize(2);
+    assertThat(tokens, hasToken("\"x + y\"", CxxTokenType.STRING));
+  }
+
+  @Test
+  public void expanding_hashhash_operator_pastes_boundary_tokens() {
+    List<Token> tokens = lexer.lex("#define concat(a,b) a ## b\n concat(x y, z)");
+    assertThat(tokens).hasSize(3); // x yz + EOF
+    assertThat(tokens, hasToken("x", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("yz", GenericTokenType.IDENTIFIER));
+  }
+
+  @Test
+  public void expanding_hashhash_operator_into_a_number() {
+    List<Token> tokens = lexer.lex("#define hex(n) 0x ## n\n hex(10)");
+    assertThat(tokens).hasSize(2); // 0x10 + EOF
+    assertThat(tokens, hasToken("0x10", CxxTokenType.NUMBER));
+  }
+
+  @Test
+  public void expanding_hashhash_operator_drops_comma_before_missing_varargs() {
+    List<Token> tokens = lexer.lex("#define log(fmt, ...) f(fmt, ## __VA_ARGS__)\n log(a)");
+    assertThat(tokens).hasSize(5); // f ( a ) + EOF
+    assertThat(tokens, not(hasToken(",", CxxPunctuator.COMMA)));
+  }
+
+  @Test
+  public void expanding_varargs_keeps_their_tokens() {
+    List<Token> tokens = lexer.lex("#define wrapper(x, ...) x(__VA_ARGS__) #__VA_ARGS__\n wrapper(f, 1, g(2))");
+    assertThat(tokens).hasSize(11); // f ( 1 , g ( 2 ) ) "1,g(2)" + EOF
+    assertThat(tokens, hasToken("\"1,g(2)\"", CxxTokenType.STRING));
+  }
+
   //@Test
   public void hashhash_arguments_with_whitespace_before_comma() {
     // The blank behind FOO finds its way into the expansion.
@@ -347,6 +392,207 @@ public class CxxLexerWithPreprocessingTest {
     assertThat(tokens, hasToken("B", GenericTokenType.IDENTIFIER));
   }
 
+  @Test
+  public void header_summaries_respect_the_macro_state() {
+    SourceCodeProvider scp = mock(SourceCodeProvider.class);
+    when(scp.getSourceCodeFile(anyString(), anyString(), eq(false))).thenReturn(new File("/home/joe/header.h"));
+    when(scp.getSourceCode(any(File.class))).thenReturn("#ifdef X\n#define A 1\n#else\n#define A 2\n#endif\n");
+
+    File file = new File("/home/joe/file.cc");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(file);
+
+    CxxPreprocessor pp = new CxxPreprocessor(ctx, new CxxConfiguration(), scp);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    assertThat(lexer.lex("#include <header.h>\nA"), hasToken("2", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#define X\n#include <header.h>\nA"), hasToken("1", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#include <header.h>\nA"), hasToken("2", CxxTokenType.NUMBER));
+  }
+
+  @Test
+  public void header_summaries_are_not_kept_from_units_with_an_exhausted_budget() {
+    SourceCodeProvider scp = mock(SourceCodeProvider.class);
+    File header = new File("/home/joe/header.h");
+    File inner = new File("/home/joe/inner.h");
+    when(scp.getSourceCodeFile(eq("header.h"), anyString(), eq(false))).thenReturn(header);
+    when(scp.getSourceCodeFile(eq("inner.h"), anyString(), eq(false))).thenReturn(inner);
+    when(scp.getSourceCode(header)).thenReturn("#include INNER\n");
+    when(scp.getSourceCode(inner)).thenReturn("#define A 1\n");
+
+    File file = new File("/home/joe/file.cc");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(file);
+
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setMaxExpandedTokens(8);
+    CxxPreprocessor pp = new CxxPreprocessor(ctx, conf, scp);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    // the budget is used up before the header, INNER is left unexpanded
+    assertThat(lexer.lex("#define E x x x x x x x x x x\nE\n#define INNER <inner.h>\n#include <header.h>\nA"),
+      hasToken("A", GenericTokenType.IDENTIFIER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#define INNER <inner.h>\n#include <header.h>\nA"), hasToken("1", CxxTokenType.NUMBER));
+  }
+
+  @Test
+  public void changed_headers_are_lexed_again() {
+    SourceCodeProvider scp = mock(SourceCodeProvider.class);
+    File header = new File("/home/joe/header.h");
+    when(scp.getSourceCodeFile(anyString(), anyString(), eq(false))).thenReturn(header);
+    when(scp.getSourceCode(header)).thenReturn("#define A 1\n", "#define A 1\n", "#define A 2\n");
+
+    File file = new File("/home/joe/file.cc");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(file);
+
+    CxxPreprocessor pp = new CxxPreprocessor(ctx, new CxxConfiguration(), scp);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    assertThat(lexer.lex("#define X\n#include <header.h>\nA"), hasToken("1", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#define Y\n#include <header.h>\nA"), hasToken("1", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#define X\n#include <header.h>\nA"), hasToken("2", CxxTokenType.NUMBER));
+  }
+
+  @Test
+  public void guarded_headers_are_not_read_while_the_guard_is_defined() {
+    SourceCodeProvider scp = mock(SourceCodeProvider.class);
+    File header = new File("/home/joe/header.h");
+    when(scp.getSourceCodeFile(anyString(), anyString(), eq(false))).thenReturn(header);
+    when(scp.getSourceCode(any(File.class))).thenReturn("#ifndef GUARD\n#define GUARD\n#define A 1\n#endif\n");
+
+    File file = new File("/home/joe/file.cc");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(file);
+
+    CxxPreprocessor pp = new CxxPreprocessor(ctx, new CxxConfiguration(), scp);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    assertThat(lexer.lex("#include <header.h>\nA"), hasToken("1", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+    assertThat(lexer.lex("#define GUARD\n#include <header.h>\nA"), hasToken("A", GenericTokenType.IDENTIFIER));
+    verify(scp, times(1)).getSourceCode(header);
+  }
+
+  @Test
+  public void units_with_a_known_include_prologue_reuse_its_state() {
+    SourceCodeProvider scp = mock(SourceCodeProvider.class);
+    File common = new File("/home/joe/common.h");
+    File config = new File("/home/joe/config.h");
+    when(scp.getSourceCodeFile(eq("common.h"), anyString(), eq(false))).thenReturn(common);
+    when(scp.getSourceCodeFile(eq("config.h"), anyString(), eq(false))).thenReturn(config);
+    when(scp.getSourceCode(common)).thenReturn("#define A 1
+#undef U
+");
+    when(scp.getSourceCode(config)).thenReturn("#ifdef Y
+#define B 2
+#else
+#define B 3
+#endif
+");
+
+    File file = new File("/home/joe/file.cc");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(file);
+
+    CxxPreprocessor pp = new CxxPreprocessor(ctx, new CxxConfiguration(), scp);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    String prologue = "#include <common.h>\n#pragma once\n#include <config.h>\n";
+    List<Token> tokens = lexer.lex(prologue + "A B");
+    assertThat(tokens, hasToken("1", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("3", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+
+    tokens = lexer.lex(prologue + "A B");
+    assertThat(tokens, hasToken("1", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("3", CxxTokenType.NUMBER));
+    verify(scp, times(1)).getSourceCode(common);
+    verify(scp, times(1)).getSourceCode(config);
+    pp.finishedPreprocessing(file);
+
+    tokens = lexer.lex("#include <common.h>\n#define Y\n#include <config.h>\nA B");
+    assertThat(tokens, hasToken("1", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("2", CxxTokenType.NUMBER));
+    verify(scp, times(1)).getSourceCode(common);
+    pp.finishedPreprocessing(file);
+
+    assertThat(lexer.lex("A B"), hasToken("A", GenericTokenType.IDENTIFIER));
+  }
+
+  @Test
+  public void repeated_definitions_behave_like_fresh_ones() {
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    File file = new File("/home/joe/file.cc");
+    when(ctx.getFile()).thenReturn(file);
+    CxxPreprocessor pp = new CxxPreprocessor(ctx);
+    lexer = CxxLexer.create(pp, new JoinStringsPreprocessor());
+
+    String defines = "#define A 1\n#define F(x, ...) x + A + __VA_ARGS__\n";
+    assertThat(lexer.lex(defines + "F(2, 3)"), hasToken("3", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+
+    List<Token> tokens = lexer.lex(defines + "#undef A\n#define A 4\nF(2, 5)");
+    assertThat(tokens, hasToken("4", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("5", CxxTokenType.NUMBER));
+    pp.finishedPreprocessing(file);
+
+    tokens = lexer.lex(defines + "F(6, 7)");
+    assertThat(tokens, hasToken("1", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("7", CxxTokenType.NUMBER));
+  }
+
+  @Test
+  public void cxx_only_keywords_are_identifiers_in_c_files() throws IOException {
+    File cFile = tmp.newFile("file.c");
+    FileUtils.write(cFile, "#define NEW new\nclass NEW int\n");
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    when(ctx.getFile()).thenReturn(cFile);
+
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setCFilesPatterns(new String[] {"*.c"});
+    Lexer cLexer = CxxLexer.create(conf, new CxxPreprocessor(ctx, conf), new JoinStringsPreprocessor());
+
+    List<Token> tokens = cLexer.lex(cFile);
+    assertThat(tokens, hasToken("class", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("new", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("int", CxxKeyword.INT));
+  }
+
+  @Test
+  public void cplusplus_is_defined_in_a_cxx_file_after_several_c_files() throws IOException {
+    String code = "#ifdef __cplusplus\n111\n#else\n222\n#endif\n";
+    File cFile1 = tmp.newFile("first.c");
+    File cFile2 = tmp.newFile("second.c");
+    File cxxFile = tmp.newFile("third.cc");
+    for (File file : Arrays.asList(cFile1, cFile2, cxxFile)) {
+      FileUtils.write(file, code);
+    }
+    SquidAstVisitorContext<Grammar> ctx = mock(SquidAstVisitorContext.class);
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setCFilesPatterns(new String[] {"*.c"});
+    CxxPreprocessor cxxpp = new CxxPreprocessor(ctx, conf);
+    Lexer scanLexer = CxxLexer.create(conf, cxxpp, new JoinStringsPreprocessor());
+
+    for (File cFile : Arrays.asList(cFile1, cFile2)) {
+      when(ctx.getFile()).thenReturn(cFile);
+      List<Token> tokens = scanLexer.lex(cFile);
+      assertThat(tokens, hasToken("222", CxxTokenType.NUMBER));
+      assertThat(tokens, not(hasToken("111", CxxTokenType.NUMBER)));
+      cxxpp.finishedPreprocessing(cFile);
+    }
+
+    when(ctx.getFile()).thenReturn(cxxFile);
+    List<Token> tokens = scanLexer.lex(cxxFile);
+    assertThat(tokens, hasToken("111", CxxTokenType.NUMBER));
+    assertThat(tokens, not(hasToken("222", CxxTokenType.NUMBER)));
+  }
+
   @Test
   public void macro_replacement_in_includes_is_working() {
     List<Token> tokens = lexer.lex("#define A \"B\"\n"
@@ -488,6 +734,75 @@ public class CxxLexerWithPreprocessingTest {
     assertThat(tokens).hasSize(2); // nota + EOF
   }
 
+  @Test
+  public void directives_in_inactive_branches_are_skipped() {
+    List<Token> tokens = lexer.lex("#if 0\n"
+      + "  #define a b\n"
+      + "  #include <notexisting.h>\n"
+      + "  #ifdef whatever\n"
+      + "    x y z\n"
+      + "  #elif 1\n"
+      + "    u v w\n"
+      + "  #else\n"
+      + "    #undef c\n"
+      + "  #endif\n"
+      + "  # error this is not evaluated\n"
+      + "#elif 0\n"
+      + "  e\n"
+      + "#else\n"
+      + "  a\n"
+      + "#endif\n"
+      + "c\n");
+
+    assertThat(tokens, hasToken("a", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("c", GenericTokenType.IDENTIFIER));
+    assertThat(tokens).hasSize(3); // a + c + EOF
+  }
+
+  @Test
+  public void trivial_directives_are_handled_like_parsed_ones() {
+    List<Token> tokens = lexer.lex("#define A\n"
+      + "#pragma once\n"
+      + "#ifdef A // comment\n"
+      + "  a\n"
+      + "#else\n"
+      + "  nota\n"
+      + "#endif // A\n"
+      + "#undef A\n"
+      + "#ifndef A\n"
+      + "  #if_unknown\n"
+      + "  b\n"
+      + "#endif\n");
+
+    assertThat(tokens, hasToken("a", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("b", GenericTokenType.IDENTIFIER));
+    assertThat(tokens).hasSize(3); // a + b + EOF
+  }
+
+  @Test
+  public void unknown_directives_in_inactive_branches_do_not_nest() {
+    List<Token> tokens = lexer.lex("#if 0\n"
+      + "  #if_unknown\n"
+      + "#endif\n"
+      + "a\n");
+
+    assertThat(tokens, hasToken("a", GenericTokenType.IDENTIFIER));
+    assertThat(tokens).hasSize(2); // a + EOF
+  }
+
+  @Test
+  public void macros_are_left_unexpanded_when_the_budget_is_exhausted() {
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setMaxExpandedTokens(1);
+    CxxPreprocessor cxxpp = new CxxPreprocessor(mock(SquidAstVisitorContext.class), conf);
+    List<Token> tokens = CxxLexer.create(cxxpp).lex("#define A x\n"
+      + "A A\n");
+
+    assertThat(tokens, hasToken("x", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("A", GenericTokenType.IDENTIFIER));
+    assertThat(tokens).hasSize(3); // x + A + EOF
+  }
+
   // Proper separation of parametrized macros and macros expand to a string enclosed
   // in parentheses
   @Test
@@ -656,4 +971,20 @@ public class CxxLexerWithPreprocessingTest {
                                    + "A");
     assertThat(tokens, hasToken("0xcf", CxxKeyword.INT));
   }
+
+  @Test
+  public void repeated_expansions_follow_redefinitions() {
+    List<Token> tokens = lexer.lex("#define A 1\n"
+                                   + "#define P(x) x ## A\n"
+                                   + "A P(y)\n"
+                                   + "#undef A\n"
+                                   + "#define A 2\n"
+                                   + "#define yA z\n"
+                                   + "A P(y)\n");
+    assertThat(tokens, hasToken("1", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("yA", GenericTokenType.IDENTIFIER));
+    assertThat(tokens, hasToken("2", CxxTokenType.NUMBER));
+    assertThat(tokens, hasToken("z", GenericTokenType.IDENTIFIER));
+    assertThat(tokens).hasSize(5); // 1 + yA + 2 + z + EOF
+  }
 }
@@ -0,0 +1,108 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.lexer;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.preprocessor.CxxPreprocessor;
+import org.sonar.cxx.preprocessor.JoinStringsPreprocessor;
+import org.sonar.squidbridge.SquidAstVisitorContext;
+
+import com.sonar.sslr.api.GenericTokenType;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.impl.Lexer;
+
+public class StringPoolTest {
+
+  @Test
+  public void equal_spellings_are_the_same_string() {
+    StringPool pool = new StringPool();
+    String first = pool.intern("size_t".toCharArray(), 6);
+    assertThat(pool.intern("size_txyz".toCharArray(), 6)).isSameAs(first);
+    assertThat(pool.intern(new String("size_t"))).isSameAs(first);
+    assertThat(pool.intern("size".toCharArray(), 4)).isNotSameAs(first).isEqualTo("size");
+    assertThat(pool.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void the_pool_is_bounded() {
+    StringPool pool = new StringPool();
+    for (int i = 0; i < 2 * StringPool.MAX_CAPACITY; i++) {
+      assertThat(pool.intern("id" + i)).isEqualTo("id" + i);
+    }
+    assertThat(pool.size()).isLessThanOrEqualTo(StringPool.MAX_CAPACITY / 2);
+    String id = pool.intern("id");
+    assertThat(pool.intern("id".toCharArray(), 2)).isSameAs(id);
+  }
+
+  @Test
+  public void lexed_and_expanded_identifiers_share_their_spelling() {
+    Lexer lexer = createLexer();
+    List<Token> tokens = lexer.lex("#define M std\n#define N(x) x\nstd M N(std) M");
+    List<Token> identifiers = identifiers(tokens);
+    assertThat(identifiers).hasSize(4);
+    for (Token token : identifiers) {
+      assertThat(token.getValue()).isSameAs(identifiers.get(0).getValue());
+      assertThat(token.getOriginalValue()).isSameAs(identifiers.get(0).getValue());
+    }
+  }
+
+  @Test
+  public void identifiers_of_a_unit_are_stored_once() throws Exception {
+    Lexer lexer = createLexer();
+    List<Token> identifiers = identifiers(lexer.lex(FileUtils.readFileToString(new File("src/test/resources/parser/own/conditions.cc"))));
+    assertThat(identifiers).isNotEmpty();
+
+    Set<String> spellings = new HashSet<String>();
+    Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+    for (Token token : identifiers) {
+      spellings.add(token.getValue());
+      instances.add(token.getValue());
+    }
+    assertThat(instances.size()).isEqualTo(spellings.size());
+  }
+
+  private static Lexer createLexer() {
+    CxxPreprocessor cxxpp = new CxxPreprocessor(mock(SquidAstVisitorContext.class));
+    return CxxLexer.create(new CxxConfiguration(), cxxpp.getIdentifierPool(), cxxpp, new JoinStringsPreprocessor());
+  }
+
+  private static List<Token> identifiers(List<Token> tokens) {
+    List<Token> identifiers = new ArrayList<Token>();
+    for (Token token : tokens) {
+      if (token.getType() == GenericTokenType.IDENTIFIER) {
+        identifiers.add(token);
+      }
+    }
+    return identifiers;
+  }
+}
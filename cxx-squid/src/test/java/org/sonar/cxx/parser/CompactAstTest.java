@@ -0,0 +1,114 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.CxxVisitorContext;
+import org.sonar.squidbridge.api.SourceProject;
+
+import com.sonar.sslr.api.AstNode;
+import com.sonar.sslr.api.Grammar;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.impl.Parser;
+
+public class CompactAstTest {
+
+  private static final CxxGrammarImpl[] RULES_IN_USE = {
+    CxxGrammarImpl.functionDefinition,
+    CxxGrammarImpl.declaratorId,
+    CxxGrammarImpl.statement,
+    CxxGrammarImpl.expression,
+    CxxGrammarImpl.condition,
+    CxxGrammarImpl.LITERAL,
+    CxxGrammarImpl.classSpecifier,
+    CxxGrammarImpl.memberDeclarator,
+    CxxGrammarImpl.par_expression
+  };
+
+  private final Collection<File> files = FileUtils.listFiles(new File("src/test/resources/parser/own"),
+                                                             new String[] {"cc"}, true);
+
+  @Test
+  public void compact_trees_have_less_nodes_and_the_same_content() {
+    List<AstNode> fullTrees = parse(false);
+    List<AstNode> compactTrees = parse(true);
+
+    int fullNodes = 0;
+    int compactNodes = 0;
+    for (int i = 0; i < fullTrees.size(); i++) {
+      AstNode full = fullTrees.get(i);
+      AstNode compact = compactTrees.get(i);
+      assertThat(values(compact.getTokens())).isEqualTo(values(full.getTokens()));
+      for (CxxGrammarImpl rule : RULES_IN_USE) {
+        assertThat(compact.getDescendants(rule).size()).as(rule.toString())
+            .isEqualTo(full.getDescendants(rule).size());
+      }
+      fullNodes += countNodes(full);
+      compactNodes += countNodes(compact);
+    }
+    assertThat(compactNodes).isLessThan(fullNodes);
+  }
+
+  @Test
+  public void the_full_tree_is_the_default() {
+    assertThat(new CxxConfiguration().getCompactAst()).isFalse();
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setCompactAst(true);
+    assertThat(conf.copy().getCompactAst()).isTrue();
+  }
+
+  private List<AstNode> parse(boolean compactAst) {
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setCompactAst(compactAst);
+    CxxVisitorContext<Grammar> context = new CxxVisitorContext<Grammar>(new SourceProject(""));
+    Parser<Grammar> parser = CxxParser.create(context, conf);
+    List<AstNode> trees = new ArrayList<AstNode>();
+    for (File file : files) {
+      trees.add(parser.parse(file));
+      context.getPreprocessor().finishedPreprocessing(file);
+    }
+    return trees;
+  }
+
+  private static List<String> values(List<Token> tokens) {
+    List<String> values = new ArrayList<String>();
+    for (Token token : tokens) {
+      values.add(token.getValue());
+    }
+    return values;
+  }
+
+  private static int countNodes(AstNode node) {
+    int count = 1;
+    for (AstNode child : node.getChildren()) {
+      count += countNodes(child);
+    }
+    return count;
+  }
+}
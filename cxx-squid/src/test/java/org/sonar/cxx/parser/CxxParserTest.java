@@ -30,7 +30,11 @@ import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.squidbridge.SquidAstVisitorContext;
+import org.sonar.squidbridge.api.SourceProject;
+
+import com.sonar.sslr.api.Grammar;
 
 
 public class CxxParserTest extends ParserBaseTest {
@@ -49,10 +53,12 @@ public class CxxParserTest extends ParserBaseTest {
 
   @Test
   public void testParsingOnDiverseSourceFiles() {
+    CxxVisitorContext<Grammar> context = new CxxVisitorContext<Grammar>(new SourceProject(""));
+    p = CxxParser.create(context, conf);
     Collection<File> files = listFiles(goodFiles, new String[] {"cc", "cpp", "hpp"});
     for (File file : files) {
       p.parse(file);
-      CxxParser.finishedParsing(file);
+      context.getPreprocessor().finishedPreprocessing(file);
     }
   }
 
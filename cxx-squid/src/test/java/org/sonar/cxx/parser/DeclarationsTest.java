@@ -163,6 +163,9 @@ public class DeclarationsTest extends ParserBaseTest {
     assertThat(p).matches("paramtype<T>");
     assertThat(p).matches("carray<int,10>");
     assertThat(p).matches("::P");
+    assertThat(p).matches("__typeof__(a)");
+    assertThat(p).matches("decltype(a)");
+    assertThat(p).matches("std::vector<int>");
   }
 
   @Test
@@ -236,6 +239,10 @@ public class DeclarationsTest extends ParserBaseTest {
     assertThat(p).matches("void");
     assertThat(p).matches("auto");
     assertThat(p).matches("decltypeSpecifier");
+
+    assertThat(p).notMatches("1");
+    assertThat(p).notMatches("const");
+    assertThat(p).notMatches("( typeName )");
   }
 
   @Test
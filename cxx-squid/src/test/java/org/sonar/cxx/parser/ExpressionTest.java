@@ -132,6 +132,21 @@ public class ExpressionTest extends ParserBaseTest {
     assertThat(p).matches("decltypeSpecifier ::");
     assertThat(p).matches("typeName :: foo ::");
     assertThat(p).matches("namespaceName :: simpleTemplateId ::");
+
+    assertThat(p).notMatches("foo");
+    assertThat(p).notMatches("1 ::");
+    assertThat(p).notMatches("( typeName ) ::");
+  }
+
+  @Test
+  public void nestedNameSpecifier_reallife() {
+    p.setRootRule(g.rule(CxxGrammarImpl.nestedNameSpecifier));
+
+    assertThat(p).matches("std::");
+    assertThat(p).matches("::std::");
+    assertThat(p).matches("vector<int>::");
+    assertThat(p).matches("decltype(a)::");
+    assertThat(p).notMatches("a < b");
   }
 
   @Test
@@ -0,0 +1,174 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.CxxVisitorContext;
+import org.sonar.cxx.parser.ParseProfile.RuleStatistics;
+import org.sonar.squidbridge.api.SourceProject;
+import org.sonar.sslr.grammar.GrammarRuleKey;
+
+import com.sonar.sslr.api.AstNode;
+import com.sonar.sslr.api.Grammar;
+import com.sonar.sslr.api.Rule;
+import com.sonar.sslr.api.Token;
+import com.sonar.sslr.impl.Parser;
+
+public class ParseProfilerTest {
+
+  private static final String CODE = "#define N 2\n"
+    + "#if N > 1\n"
+    + "int values[N] = { 1, 2 };\n"
+    + "#endif\n"
+    + "template<typename T> T max(T a, T b) { return a < b ? b : a; }\n"
+    + "int main() { int i = max<int>(values[0], values[1]); return i * N; }\n";
+
+  @Test
+  public void profiled_rules_are_counted_per_file_and_in_aggregate() {
+    ParseProfile profile = new ParseProfile();
+    parse(profile, "a.cc", "b.cc");
+
+    assertThat(profile.getFiles()).hasSize(2);
+    RuleStatistics translationUnit = find(profile.getRules(), "CxxGrammarImpl.translationUnit");
+    assertThat(translationUnit.getInvocations()).isEqualTo(2);
+    assertThat(translationUnit.getMatches()).isEqualTo(2);
+    assertThat(translationUnit.getBacktrackedTokens()).isEqualTo(0);
+
+    long backtrackedTokens = 0;
+    boolean preprocessorRules = false;
+    for (RuleStatistics statistics : profile.getRules()) {
+      assertThat(statistics.getInvocations()).as(statistics.getRule()).isGreaterThan(0);
+      assertThat(statistics.getMatches()).as(statistics.getRule()).isLessThanOrEqualTo(statistics.getInvocations());
+      assertThat(statistics.getSelfNanos()).as(statistics.getRule()).isLessThanOrEqualTo(statistics.getTotalNanos());
+      backtrackedTokens += statistics.getBacktrackedTokens();
+      preprocessorRules |= statistics.getRule().startsWith("CppGrammar.");
+    }
+    assertThat(backtrackedTokens).isGreaterThan(0);
+    assertThat(preprocessorRules).isTrue();
+  }
+
+  @Test
+  public void profiling_does_not_change_the_tree() {
+    AstNode plain = CxxParser.create().parse(CODE);
+    AstNode profiled = parse(new ParseProfile(), "a.cc").get(0);
+    assertThat(dump(profiled)).isEqualTo(dump(plain));
+  }
+
+  @Test
+  public void report_lists_rules_and_files() {
+    ParseProfile profile = new ParseProfile();
+    parse(profile, "a.cc");
+    StringWriter report = new StringWriter();
+    profile.write(report);
+
+    assertThat(report.toString())
+      .contains("Parse profile of 1 files")
+      .contains("CxxGrammarImpl.translationUnit")
+      .contains("CppGrammar.ifLine")
+      .contains("a.cc");
+  }
+
+  @Test
+  public void only_the_slowest_files_are_kept() {
+    ParseProfile profile = new ParseProfile();
+    for (int i = 0; i < 1000; i++) {
+      RuleStatistics statistics = new RuleStatistics("rule");
+      statistics.invocations = 1;
+      statistics.selfNanos = i;
+      profile.add("file" + i, Arrays.asList(statistics));
+    }
+
+    assertThat(profile.getFileCount()).isEqualTo(1000);
+    List<ParseProfile.FileStatistics> files = profile.getFiles();
+    assertThat(files).hasSize(ParseProfile.MAX_FILES);
+    assertThat(files.get(0).getFile()).isEqualTo("file999");
+    assertThat(files.get(ParseProfile.MAX_FILES - 1).getFile()).isEqualTo("file" + (1000 - ParseProfile.MAX_FILES));
+    assertThat(find(profile.getRules(), "rule").getInvocations()).isEqualTo(1000);
+  }
+
+  @Test
+  public void grammars_which_cannot_be_instrumented_are_parsed_without_profiling() {
+    Grammar grammar = mock(Grammar.class);
+    when(grammar.rule((GrammarRuleKey) anyObject())).thenReturn(mock(Rule.class));
+    ParseProfile profile = new ParseProfile();
+    ParseProfiler profiler = new ParseProfiler(profile);
+
+    profiler.instrument(grammar, CxxGrammarImpl.translationUnit);
+    profiler.finishFile(new File("a.cc"));
+
+    assertThat(profile.getRules()).isEmpty();
+    assertThat(profile.getFileCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void copies_of_the_configuration_share_the_profile() {
+    ParseProfile profile = new ParseProfile();
+    CxxConfiguration conf = new CxxConfiguration();
+    assertThat(conf.getParseProfile()).isNull();
+    conf.setParseProfile(profile);
+    assertThat(conf.copy().getParseProfile()).isSameAs(profile);
+  }
+
+  private static List<AstNode> parse(ParseProfile profile, String... fileNames) {
+    CxxConfiguration conf = new CxxConfiguration();
+    conf.setParseProfile(profile);
+    CxxVisitorContext<Grammar> context = new CxxVisitorContext<Grammar>(new SourceProject(""));
+    Parser<Grammar> parser = CxxParser.create(context, conf);
+    List<AstNode> trees = new ArrayList<AstNode>();
+    for (String fileName : fileNames) {
+      trees.add(parser.parse(CODE));
+      context.getPreprocessor().finishedPreprocessing(new File(fileName));
+    }
+    return trees;
+  }
+
+  private static RuleStatistics find(List<RuleStatistics> rules, String name) {
+    for (RuleStatistics statistics : rules) {
+      if (statistics.getRule().equals(name)) {
+        return statistics;
+      }
+    }
+    throw new AssertionError("no statistics for " + name);
+  }
+
+  private static String dump(AstNode node) {
+    StringBuilder sb = new StringBuilder(node.getName());
+    Token token = node.getToken();
+    if (!node.hasChildren() && token != null) {
+      sb.append(' ').append(token.getValue());
+    }
+    for (AstNode child : node.getChildren()) {
+      sb.append('(').append(dump(child)).append(')');
+    }
+    return sb.toString();
+  }
+}
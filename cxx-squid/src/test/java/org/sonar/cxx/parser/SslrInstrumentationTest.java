@@ -0,0 +1,86 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.parser;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.sslr.internal.vm.CompilableGrammarRule;
+import org.sonar.sslr.internal.vm.FirstOfExpression;
+import org.sonar.sslr.internal.vm.Machine;
+import org.sonar.sslr.internal.vm.NativeExpression;
+import org.sonar.sslr.internal.vm.ParsingExpression;
+import org.sonar.sslr.internal.vm.SequenceExpression;
+
+import com.sonar.sslr.api.Grammar;
+
+public class SslrInstrumentationTest {
+
+  /**
+   * SslrInstrumentation uses SSLR internals which were checked against this
+   * version only: on an upgrade, check them and the profiler tests, then
+   * update the version here.
+   */
+  private static final String SSLR_VERSION = "1.20";
+
+  @Test
+  public void sslr_version_is_the_one_the_instrumentation_was_checked_against() throws IOException {
+    InputStream in = CompilableGrammarRule.class.getResourceAsStream(
+      "/META-INF/maven/org.codehaus.sonar.sslr/sslr-core/pom.properties");
+    assertThat(in).isNotNull();
+    Properties properties = new Properties();
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    assertThat(properties.getProperty("version")).isEqualTo(SSLR_VERSION);
+  }
+
+  @Test
+  public void used_internals_are_available() throws NoSuchMethodException {
+    CompilableGrammarRule.class.getMethod("getExpression");
+    CompilableGrammarRule.class.getMethod("setExpression", ParsingExpression.class);
+    FirstOfExpression.class.getConstructor(ParsingExpression[].class);
+    SequenceExpression.class.getConstructor(ParsingExpression[].class);
+    NativeExpression.class.getMethod("execute", Machine.class);
+    Machine.class.getMethod("getIndex");
+    Machine.class.getMethod("jump", int.class);
+    Machine.class.getMethod("backtrack");
+  }
+
+  @Test
+  public void grammar_rules_can_be_instrumented() {
+    Grammar grammar = CxxGrammarImpl.create(new CxxConfiguration());
+    ParsingExpression body = ((CompilableGrammarRule) grammar.rule(CxxGrammarImpl.translationUnit)).getExpression();
+    ParseProfiler profiler = new ParseProfiler(new ParseProfile());
+
+    assertThat(SslrInstrumentation.instrument(grammar, CxxGrammarImpl.translationUnit, profiler,
+                                              new ParseProfile.RuleStatistics("translationUnit"))).isTrue();
+    ParsingExpression instrumented = ((CompilableGrammarRule) grammar.rule(CxxGrammarImpl.translationUnit)).getExpression();
+    assertThat(instrumented).isInstanceOf(FirstOfExpression.class);
+    assertThat(instrumented).isNotSameAs(body);
+  }
+}
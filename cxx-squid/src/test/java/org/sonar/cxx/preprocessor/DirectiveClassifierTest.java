@@ -0,0 +1,74 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class DirectiveClassifierTest {
+
+  @Test
+  public void reads_the_keyword() {
+    assertThat(DirectiveClassifier.keyword("#define A")).isEqualTo("define");
+    assertThat(DirectiveClassifier.keyword("#  \tifdef A")).isEqualTo("ifdef");
+    assertThat(DirectiveClassifier.keyword("#include_next <a.h>")).isEqualTo("include_next");
+    assertThat(DirectiveClassifier.keyword("#if_not_a_keyword")).isEqualTo("if_not_a_keyword");
+    assertThat(DirectiveClassifier.keyword("#")).isEqualTo("");
+  }
+
+  @Test
+  public void classifies_keywords() {
+    assertThat(DirectiveClassifier.isConditional("elif")).isTrue();
+    assertThat(DirectiveClassifier.isConditional("define")).isFalse();
+
+    assertThat(DirectiveClassifier.isIgnored("pragma")).isTrue();
+    assertThat(DirectiveClassifier.isIgnored("error")).isTrue();
+    assertThat(DirectiveClassifier.isIgnored("line")).isTrue();
+    assertThat(DirectiveClassifier.isIgnored("")).isTrue();
+    assertThat(DirectiveClassifier.isIgnored("include")).isFalse();
+    assertThat(DirectiveClassifier.isIgnored("undef")).isFalse();
+    assertThat(DirectiveClassifier.isIgnored("endif")).isFalse();
+  }
+
+  @Test
+  public void recognizes_plain_else_and_endif_lines() {
+    assertThat(DirectiveClassifier.hasNoArguments("#endif")).isTrue();
+    assertThat(DirectiveClassifier.hasNoArguments("# else  ")).isTrue();
+    assertThat(DirectiveClassifier.hasNoArguments("#endif // GUARD")).isTrue();
+    assertThat(DirectiveClassifier.hasNoArguments("#endif GUARD")).isFalse();
+  }
+
+  @Test
+  public void extracts_the_macro_name_of_plain_ifdef_lines() {
+    assertThat(DirectiveClassifier.ifdefMacroName("#ifdef A")).isEqualTo("A");
+    assertThat(DirectiveClassifier.ifdefMacroName("#ifndef  _A_1 // comment")).isEqualTo("_A_1");
+    assertThat(DirectiveClassifier.ifdefMacroName("#ifdef")).isNull();
+    assertThat(DirectiveClassifier.ifdefMacroName("#ifdef 1")).isNull();
+    assertThat(DirectiveClassifier.ifdefMacroName("#ifdef A B")).isNull();
+  }
+
+  @Test
+  public void extracts_the_macro_name_of_plain_undef_lines() {
+    assertThat(DirectiveClassifier.undefMacroName("#undef A")).isEqualTo("A");
+    assertThat(DirectiveClassifier.undefMacroName("#undef A ")).isNull();
+    assertThat(DirectiveClassifier.undefMacroName("#undefA")).isNull();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class ExpansionBudgetTest {
+
+  @Test
+  public void unlimited_budget_allows_everything() {
+    ExpansionBudget budget = new ExpansionBudget(0, 0, 0);
+    budget.consumed(Integer.MAX_VALUE);
+    assertThat(budget.allows("A", 10000)).isTrue();
+    assertThat(budget.getSummary()).isNull();
+  }
+
+  @Test
+  public void depth_limit_affects_deep_expansions_only() {
+    ExpansionBudget budget = new ExpansionBudget(0, 2, 0);
+    assertThat(budget.allows("A", 1)).isTrue();
+    assertThat(budget.allows("B", 2)).isFalse();
+    assertThat(budget.allows("A", 0)).isTrue();
+    assertThat(budget.getSummary()).contains("depth (2)").contains("B (1)");
+  }
+
+  @Test
+  public void token_limit_stops_all_further_expansions() {
+    ExpansionBudget budget = new ExpansionBudget(10, 0, 0);
+    assertThat(budget.allows("A", 0)).isTrue();
+    budget.consumed(10);
+    assertThat(budget.allows("A", 0)).isFalse();
+    assertThat(budget.allows("B", 0)).isFalse();
+    assertThat(budget.allows("B", 0)).isFalse();
+    assertThat(budget.getSummary()).contains("expanded tokens (10)").contains("3 expansions skipped")
+      .contains("B (2), A (1)");
+  }
+
+  @Test
+  public void reset_starts_a_new_budget() {
+    ExpansionBudget budget = new ExpansionBudget(10, 0, 0);
+    budget.consumed(10);
+    assertThat(budget.allows("A", 0)).isFalse();
+    budget.reset();
+    assertThat(budget.allows("A", 0)).isTrue();
+    assertThat(budget.getSummary()).isNull();
+  }
+}
@@ -230,6 +230,32 @@ public class ExpressionEvaluatorTest {
     assertFalse(evaluator.eval("~0xFFFFFFFFFFFFFFFF"));
   }
 
+  @Test
+  public void values_exceeding_64_bit_signed_range() {
+    assertTrue(evaluator.eval("0xFFFFFFFFFFFFFFFF > 0"));
+    assertTrue(evaluator.eval("~0 == 0xFFFFFFFFFFFFFFFF"));
+    assertTrue(evaluator.eval("(1 << 63) == 0x8000000000000000"));
+    assertTrue(evaluator.eval("0x7FFFFFFFFFFFFFFF + 1 > 0x7FFFFFFFFFFFFFFF"));
+    assertTrue(evaluator.eval("-0x7FFFFFFFFFFFFFFF - 2 < 0"));
+    assertTrue(evaluator.eval("0x100000000 * 0x100000000 == 0x10000000000000000"));
+
+    assertFalse(evaluator.eval("(1 << 64) != 0"));
+    assertFalse(evaluator.eval("-7 % 3 != 2"));
+  }
+
+  @Test
+  public void cached_expressions_see_current_macro_values() {
+    CxxPreprocessor pp = mock(CxxPreprocessor.class);
+    ExpressionEvaluator evaluator = new ExpressionEvaluator(mock(CxxConfiguration.class), pp);
+
+    when(pp.valueOf("LALA")).thenReturn("1");
+    assertTrue(evaluator.eval("LALA > 0"));
+    when(pp.valueOf("LALA")).thenReturn("0");
+    assertFalse(evaluator.eval("LALA > 0"));
+    when(pp.valueOf("LALA")).thenReturn("0xFFFFFFFFFFFFFFFF");
+    assertTrue(evaluator.eval("LALA > 0"));
+  }
+
   @Test
   public void identifier_defined() {
     CxxPreprocessor pp = mock(CxxPreprocessor.class);
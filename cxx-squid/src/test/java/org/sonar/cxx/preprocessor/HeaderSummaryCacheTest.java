@@ -0,0 +1,64 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class HeaderSummaryCacheTest {
+  private HeaderSummaryCache cache = new HeaderSummaryCache();
+
+  @Test
+  public void variants_of_an_outdated_content_are_dropped() {
+    File header = new File("header.h");
+    cache.put(header, new HeaderSummary("1"));
+    cache.put(header, new HeaderSummary("1"));
+    assertEquals(2, cache.getVariants(header, "1").size());
+    assertTrue(cache.getVariants(header, "2").isEmpty());
+    assertTrue(cache.getVariants(header, "1").isEmpty());
+  }
+
+  @Test
+  public void the_least_recently_used_headers_are_dropped() {
+    File first = new File("header0.h");
+    cache.put(first, new HeaderSummary("h"));
+    for (int i = 1; i <= HeaderSummaryCache.MAX_HEADERS; i++) {
+      cache.getVariants(first, "h");
+      cache.put(new File("header" + i + ".h"), new HeaderSummary("h"));
+    }
+    assertEquals(HeaderSummaryCache.MAX_HEADERS, cache.size());
+    assertEquals(1, cache.getVariants(first, "h").size());
+    assertTrue(cache.getVariants(new File("header1.h"), "h").isEmpty());
+  }
+
+  @Test
+  public void the_hash_kept_by_the_provider_is_used() throws Exception {
+    File file = new File(new File("src/test/resources/codeprovider/source.hh").getAbsolutePath());
+    SourceCodeProvider codeProvider = new SourceCodeProvider();
+    assertEquals(HeaderSummaryCache.hash("other"), HeaderSummaryCache.hash(codeProvider, file, "other"));
+
+    codeProvider.getSourceCode(file);
+    assertEquals(HeaderSummaryCache.hash("source code"), HeaderSummaryCache.hash(codeProvider, file, "other"));
+  }
+}
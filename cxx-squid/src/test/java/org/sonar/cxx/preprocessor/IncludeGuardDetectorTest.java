@@ -0,0 +1,62 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class IncludeGuardDetectorTest {
+
+  @Test
+  public void detects_ifndef_guard() {
+    assertThat(IncludeGuardDetector.detect("#ifndef GUARD\n#define GUARD\nint a;\n#endif\n")).isEqualTo("GUARD");
+  }
+
+  @Test
+  public void detects_if_not_defined_guard() {
+    assertThat(IncludeGuardDetector.detect("#if !defined(GUARD)\n#define GUARD 1\n#endif")).isEqualTo("GUARD");
+    assertThat(IncludeGuardDetector.detect("#if ! defined GUARD\n#define GUARD\n#endif")).isEqualTo("GUARD");
+  }
+
+  @Test
+  public void ignores_comments_and_nested_conditionals() {
+    assertThat(IncludeGuardDetector.detect("/* license\n#if 0 */\n// comment\n"
+      + "#ifndef GUARD // guard\n"
+      + "#define GUARD\n"
+      + "#ifdef A\n"
+      + "#else\n"
+      + "#endif\n"
+      + "const char* s = \"/*\";\n"
+      + "#endif /* GUARD */\n"
+      + "// trailing comment\n")).isEqualTo("GUARD");
+  }
+
+  @Test
+  public void rejects_unguarded_code() {
+    assertThat(IncludeGuardDetector.detect("int a;\n#ifndef GUARD\n#define GUARD\n#endif\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#ifndef GUARD\n#define GUARD\n#endif\nint a;\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#ifndef GUARD\n#define OTHER\n#endif\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#ifndef GUARD\n#define GUARD\n#else\n#endif\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#ifndef GUARD\n#define GUARD\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#if !defined(GUARD) && X\n#define GUARD\n#endif\n")).isNull();
+    assertThat(IncludeGuardDetector.detect("#pragma once\n")).isNull();
+  }
+}
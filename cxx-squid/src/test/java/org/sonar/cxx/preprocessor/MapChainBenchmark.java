@@ -0,0 +1,181 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Measures the cost of the macro table operations of the preprocessor:
+ * looking up an identifier, and disabling and enabling a macro around its
+ * expansion. The current table is compared with the former one, which kept
+ * four hash maps and moved entries between them. It takes a while and its
+ * output has to be read, so it is not part of the test suite.
+ */
+@Ignore("benchmark, run manually")
+public class MapChainBenchmark {
+  private static final int MACROS = 5000;
+  private static final int IDENTIFIERS = 100000;
+  private static final int MACRO_PERCENTAGE = 10;
+  private static final int ROUNDS = 50;
+
+  @Test
+  public void lookupCostPerIdentifier() {
+    Random random = new Random(42);
+    MapChain<String, String> table = new MapChain<String, String>();
+    FormerMapChain<String, String> formerTable = new FormerMapChain<String, String>();
+    List<String> macroNames = new ArrayList<String>();
+    for (int i = 0; i < MACROS; i++) {
+      String name = "MACRO_" + Integer.toHexString(random.nextInt());
+      table.put(name, name);
+      formerTable.put(name, name);
+      macroNames.add(name);
+    }
+
+    // most of the identifiers in the code are no macros
+    String[] identifiers = new String[IDENTIFIERS];
+    for (int i = 0; i < IDENTIFIERS; i++) {
+      identifiers[i] = random.nextInt(100) < MACRO_PERCENTAGE
+        ? macroNames.get(random.nextInt(macroNames.size()))
+        : "ident_" + Integer.toHexString(random.nextInt());
+    }
+
+    for (int warmup = 0; warmup < 3; warmup++) {
+      lookup(formerTable, identifiers);
+      lookup(table, identifiers);
+      expand(formerTable, identifiers);
+      expand(table, identifiers);
+    }
+    System.out.printf("lookup, former table:  %.2f ns per identifier%n", lookup(formerTable, identifiers));
+    System.out.printf("lookup, MapChain:      %.2f ns per identifier%n", lookup(table, identifiers));
+    System.out.printf("expand, former table:  %.2f ns per identifier%n", expand(formerTable, identifiers));
+    System.out.printf("expand, MapChain:      %.2f ns per identifier%n", expand(table, identifiers));
+  }
+
+  private static double lookup(MapChain<String, String> table, String[] identifiers) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (String identifier : identifiers) {
+        if (table.get(identifier) != null) {
+          found++;
+        }
+      }
+    }
+    return perIdentifier(System.nanoTime() - start, found);
+  }
+
+  private static double lookup(FormerMapChain<String, String> table, String[] identifiers) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (String identifier : identifiers) {
+        if (table.get(identifier) != null) {
+          found++;
+        }
+      }
+    }
+    return perIdentifier(System.nanoTime() - start, found);
+  }
+
+  /**
+   * Looks up every identifier and disables and enables the macros found, as
+   * the expansion of a macro does.
+   */
+  private static double expand(MapChain<String, String> table, String[] identifiers) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (String identifier : identifiers) {
+        if (table.get(identifier) != null) {
+          table.disable(identifier);
+          table.enable(identifier);
+          found++;
+        }
+      }
+    }
+    return perIdentifier(System.nanoTime() - start, found);
+  }
+
+  private static double expand(FormerMapChain<String, String> table, String[] identifiers) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (String identifier : identifiers) {
+        if (table.get(identifier) != null) {
+          table.disable(identifier);
+          table.enable(identifier);
+          found++;
+        }
+      }
+    }
+    return perIdentifier(System.nanoTime() - start, found);
+  }
+
+  private static double perIdentifier(long nanos, int found) {
+    // use the result, so that the loops are not optimized away
+    if (found < 0) {
+      throw new IllegalStateException();
+    }
+    return (double) nanos / ((double) ROUNDS * IDENTIFIERS);
+  }
+
+  /**
+   * The macro table as it was before disabled mappings were flagged in place.
+   */
+  private static class FormerMapChain<K, V> {
+    private Map<K, V> highPrioMap = new HashMap<K, V>();
+    private Map<K, V> lowPrioMap = new HashMap<K, V>();
+    private Map<K, V> highPrioDisabled = new HashMap<K, V>();
+    private Map<K, V> lowPrioDisabled = new HashMap<K, V>();
+
+    public V get(Object key) {
+      V value = highPrioMap.get(key);
+      return value != null ? value : lowPrioMap.get(key);
+    }
+
+    public V put(K key, V value) {
+      return lowPrioMap.put(key, value);
+    }
+
+    public void disable(K key) {
+      move(key, lowPrioMap, lowPrioDisabled);
+      move(key, highPrioMap, highPrioDisabled);
+    }
+
+    public void enable(K key) {
+      move(key, lowPrioDisabled, lowPrioMap);
+      move(key, highPrioDisabled, highPrioMap);
+    }
+
+    private void move(K key, Map<K, V> from, Map<K, V> to) {
+      V value = from.remove(key);
+      if (value != null) {
+        to.put(key, value);
+      }
+    }
+  }
+}
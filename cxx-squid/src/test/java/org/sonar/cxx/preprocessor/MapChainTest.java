@@ -21,6 +21,8 @@ package org.sonar.cxx.preprocessor;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Map;
+
 import org.junit.Test;
 
 public class MapChainTest {
@@ -111,4 +113,91 @@ public class MapChainTest {
     assertEquals(mc.get("khigh"), "vhigh");
     assertEquals(mc.get("klow"), "vlow");
   }
+
+  @Test
+  public void nestedDisablingKeepsTheMappingDisabled() {
+    mc.put("k", "v");
+    mc.disable("k");
+    mc.disable("k");
+    mc.enable("k");
+    assertEquals(mc.get("k"), null);
+    mc.enable("k");
+    assertEquals(mc.get("k"), "v");
+  }
+
+  @Test
+  public void enablingAnEnabledMappingHasNoEffect() {
+    mc.put("k", "v");
+    mc.enable("k");
+    mc.disable("k");
+    assertEquals(mc.get("k"), null);
+  }
+
+  @Test
+  public void hidingIsNotCounted() {
+    mc.setHighPrio(true);
+    mc.put("k", "v");
+    mc.setHidden("k", true);
+    mc.setHidden("k", true);
+    assertEquals(mc.get("k"), null);
+    mc.setHidden("k", false);
+    assertEquals(mc.get("k"), "v");
+  }
+
+  @Test
+  public void hiddenMappingsSurviveClearingLowPrio() {
+    mc.setHidden("k", true);
+    mc.clearLowPrio();
+    mc.put("k", "v");
+    assertEquals(mc.get("k"), null);
+    mc.setHidden("k", false);
+    assertEquals(mc.get("k"), "v");
+  }
+
+  @Test
+  public void manyMappingsCanBeRetrieved() {
+    for (int i = 0; i < 100000; i++) {
+      mc.put("k" + i, "v" + i);
+    }
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(mc.get("k" + i), "v" + i);
+      assertEquals(mc.get("x" + i), null);
+    }
+  }
+
+  @Test
+  public void mappingsCanBePutAgainAfterClearing() {
+    mc.put("k", "v");
+    mc.clearLowPrio();
+    mc.put("k", "v2");
+    assertEquals(mc.get("k"), "v2");
+  }
+
+  @Test
+  public void journaledChangesCanBeAppliedAgain() {
+    mc.put("a", "1");
+    mc.put("b", "2");
+    mc.startJournal();
+    mc.put("a", "3");
+    mc.removeLowPrio("b");
+    mc.put("c", "4");
+    Map<String, String> changes = mc.stopJournal();
+
+    mc.clearLowPrio();
+    mc.put("a", "1");
+    mc.put("b", "2");
+    mc.applyLowPrio(changes);
+    assertEquals(mc.get("a"), "3");
+    assertEquals(mc.get("b"), null);
+    assertEquals(mc.get("c"), "4");
+  }
+
+  @Test
+  public void highPrioMappingsAreNotJournaled() {
+    mc.startJournal();
+    mc.setHighPrio(true);
+    mc.put("k", "v");
+    mc.setHighPrio(false);
+    assertEquals(mc.stopJournal().isEmpty(), true);
+  }
 }
@@ -0,0 +1,174 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.cxx.CxxConfiguration;
+import org.sonar.squidbridge.SquidAstVisitorContext;
+
+public class PrefixSnapshotTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File header;
+  private File snapshotDir;
+  private CxxConfiguration conf;
+
+  @Before
+  public void setUp() throws IOException {
+    PrefixSnapshot.clearMemory();
+    header = tmp.newFile("force.h");
+    FileUtils.write(header, "#define A 1\n#define F(x) x + A\n");
+    snapshotDir = tmp.newFolder("snapshots");
+
+    conf = new CxxConfiguration();
+    conf.setDefines(Arrays.asList("B 2", "__LINE__ 42"));
+    conf.setForceIncludeFiles(Arrays.asList(header.getAbsolutePath()));
+    conf.setPrefixSnapshotDirectory(snapshotDir);
+  }
+
+  @After
+  public void tearDown() {
+    PrefixSnapshot.clearMemory();
+  }
+
+  @Test
+  public void snapshot_gives_the_same_macros() {
+    CxxPreprocessor first = createPreprocessor();
+    assertThat(snapshotDir.list()).hasSize(1);
+
+    CxxPreprocessor second = createPreprocessor();
+    for (String name : Arrays.asList("A", "B", "F", "__LINE__", "__cplusplus")) {
+      assertThat(second.valueOf(name)).isEqualTo(first.valueOf(name));
+    }
+  }
+
+  @Test
+  public void snapshot_is_read_from_the_directory() {
+    createPreprocessor();
+    PrefixSnapshot.clearMemory();
+
+    PrefixSnapshot snapshot = PrefixSnapshot.find(conf, new SourceCodeProvider());
+    assertThat(snapshot).isNotNull();
+    assertThat(snapshot.getMacroLines()).hasSize(3);
+    assertThat(createPreprocessor().valueOf("A")).isEqualTo("1");
+  }
+
+  @Test
+  public void changed_headers_invalidate_the_snapshot() throws IOException {
+    createPreprocessor();
+    FileUtils.write(header, "#define A 3\n");
+
+    assertThat(PrefixSnapshot.find(conf, new SourceCodeProvider())).isNull();
+    CxxPreprocessor pp = createPreprocessor();
+    assertThat(pp.valueOf("A")).isEqualTo("3");
+    assertThat(pp.valueOf("F")).isNull();
+  }
+
+  @Test
+  public void snapshots_depend_on_the_configuration() {
+    createPreprocessor();
+    conf.setDefines(Arrays.asList("B 5"));
+
+    assertThat(PrefixSnapshot.find(conf, new SourceCodeProvider())).isNull();
+    assertThat(createPreprocessor().valueOf("B")).isEqualTo("5");
+  }
+
+  @Test
+  public void headers_which_were_missing_invalidate_the_snapshot() throws IOException {
+    File includeDir = tmp.newFolder("include");
+    FileUtils.write(header, "#include <late.h>\n#ifndef LATE\n#define A 1\n#endif\n");
+    conf.setIncludeDirectories(Arrays.asList(includeDir.getAbsolutePath()));
+    assertThat(createPreprocessor().valueOf("A")).isEqualTo("1");
+
+    FileUtils.write(new File(includeDir, "late.h"), "#define LATE 1\n");
+    CxxPreprocessor pp = createPreprocessor();
+    assertThat(pp.valueOf("LATE")).isEqualTo("1");
+    assertThat(pp.valueOf("A")).isNull();
+  }
+
+  @Test
+  public void shadowing_headers_invalidate_the_snapshot() throws IOException {
+    File firstDir = tmp.newFolder("first");
+    File secondDir = tmp.newFolder("second");
+    FileUtils.write(new File(secondDir, "config.h"), "#define C 2\n");
+    FileUtils.write(header, "#include <config.h>\n");
+    conf.setIncludeDirectories(Arrays.asList(firstDir.getAbsolutePath(), secondDir.getAbsolutePath()));
+    assertThat(createPreprocessor().valueOf("C")).isEqualTo("2");
+
+    FileUtils.write(new File(firstDir, "config.h"), "#define C 1\n");
+    assertThat(createPreprocessor().valueOf("C")).isEqualTo("1");
+  }
+
+  @Test
+  public void snapshot_files_do_not_depend_on_the_definition_order() throws IOException {
+    File otherDir = tmp.newFolder("other");
+    PrefixSnapshot.store(conf, createSnapshot("#define Z 1", "#define A 2", "#define M(x) x"));
+    CxxConfiguration other = conf.copy();
+    other.setPrefixSnapshotDirectory(otherDir);
+    PrefixSnapshot.store(other, createSnapshot("#define M(x) x", "#define Z 1", "#define A 2"));
+
+    File written = snapshotDir.listFiles()[0];
+    assertThat(FileUtils.readFileToByteArray(new File(otherDir, written.getName())))
+      .isEqualTo(FileUtils.readFileToByteArray(written));
+    assertThat(createSnapshot("#define Z 1", "#define A 2").getMacroLines())
+      .containsExactly("#define A 2", "#define Z 1");
+  }
+
+  @Test
+  public void snapshots_in_memory_are_bounded() {
+    for (int i = 0; i < 1000; i++) {
+      CxxConfiguration other = conf.copy();
+      other.setDefines(Arrays.asList("X " + i));
+      other.setPrefixSnapshotDirectory(null);
+      PrefixSnapshot.store(other, createEmptySnapshot());
+    }
+    assertThat(PrefixSnapshot.snapshotsInMemory()).isLessThanOrEqualTo(PrefixSnapshot.MAX_SNAPSHOTS);
+  }
+
+  private static PrefixSnapshot createEmptySnapshot() {
+    return PrefixSnapshot.create(new ArrayList<File>(), new ArrayList<PrefixSnapshot.Resolution>(),
+                                 new ArrayList<String>(), new SourceCodeProvider());
+  }
+
+  private PrefixSnapshot createSnapshot(String... macroLines) {
+    return PrefixSnapshot.create(Arrays.asList(header), new ArrayList<PrefixSnapshot.Resolution>(),
+                                 Arrays.asList(macroLines), new SourceCodeProvider());
+  }
+
+  @SuppressWarnings("unchecked")
+  private CxxPreprocessor createPreprocessor() {
+    return new CxxPreprocessor(mock(SquidAstVisitorContext.class), conf);
+  }
+}
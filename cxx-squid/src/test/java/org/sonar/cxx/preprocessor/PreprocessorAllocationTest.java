@@ -0,0 +1,100 @@
+/*
+ * Sonar C++ Plugin (Community)
+ * Copyright (C) 2011 Waleri Enns and CONTACT Software GmbH
+ * dev@sonar.codehaus.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.cxx.preprocessor;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.sonar.cxx.CxxVisitorContext;
+import org.sonar.cxx.api.CxxMetric;
+import org.sonar.cxx.lexer.CxxLexer;
+import org.sonar.squidbridge.api.SourceProject;
+
+import com.sonar.sslr.api.Grammar;
+import com.sonar.sslr.api.Preprocessor;
+import com.sonar.sslr.api.PreprocessorAction;
+import com.sonar.sslr.api.Token;
+
+/**
+ * Measures the memory allocated per token by the preprocessors for code
+ * without any macros, which has to pass them without allocations.
+ */
+public class PreprocessorAllocationTest {
+  private static final int WARMUP_ROUNDS = 50;
+  private static final double MAX_BYTES_PER_TOKEN = 1.0;
+  private static final String CODE = "int main(int argc, char** argv) {\n"
+    + "  const char* s = \"text\";\n"
+    + "  return argc + 42 * sizeof(s);\n"
+    + "}\n";
+
+  @Test
+  public void ordinary_tokens_pass_the_cxx_preprocessor_without_allocations() {
+    CxxVisitorContext<Grammar> context = new CxxVisitorContext<Grammar>(new SourceProject("Cxx Project"));
+    context.setFile(new File("file.cc").getAbsoluteFile(), CxxMetric.FILES);
+    assertThat(allocatedBytesPerToken(new CxxPreprocessor(context))).isLessThan(MAX_BYTES_PER_TOKEN);
+  }
+
+  @Test
+  public void ordinary_tokens_pass_the_string_joiner_without_allocations() {
+    assertThat(allocatedBytesPerToken(new JoinStringsPreprocessor())).isLessThan(MAX_BYTES_PER_TOKEN);
+  }
+
+  private static double allocatedBytesPerToken(Preprocessor preprocessor) {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+    assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append(CODE);
+    }
+    List<Token> tokens = CxxLexer.create().lex(sb.toString());
+    List<List<Token>> tails = new ArrayList<List<Token>>();
+    for (int i = 0; i < tokens.size(); i++) {
+      tails.add(tokens.subList(i, tokens.size()));
+    }
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      process(preprocessor, tails);
+    }
+    long threadId = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(threadId);
+    process(preprocessor, tails);
+    long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+    return (double) allocated / tails.size();
+  }
+
+  private static void process(Preprocessor preprocessor, List<List<Token>> tails) {
+    for (int i = 0; i < tails.size(); i++) {
+      // no assertion objects here, they would be measured as well
+      if (preprocessor.process(tails.get(i)) != PreprocessorAction.NO_OPERATION) {
+        fail("unexpected action for " + tails.get(i).get(0));
+      }
+    }
+  }
+}
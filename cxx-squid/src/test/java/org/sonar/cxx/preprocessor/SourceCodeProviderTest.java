@@ -22,12 +22,19 @@ package org.sonar.cxx.preprocessor;
 import static org.junit.Assert.assertEquals;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class SourceCodeProviderTest {
   private SourceCodeProvider codeProvider = new SourceCodeProvider();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
   private File expected = new File(new File("src/test/resources/codeprovider/source.hh").getAbsolutePath());
 
   // ////////////////////////////////////////////////////////////////////////////
@@ -134,8 +141,72 @@ public class SourceCodeProviderTest {
     assertEquals(null, codeProvider.getSourceCodeFile(path, cwd, false));
   }
 
+  // ////////////////////////////////////////////////////////////////////////////
+  // Memoization of the resolution results
+
+  @Test
+  public void resolution_results_are_memoized() throws IOException {
+    File root = tmp.newFolder("include");
+    codeProvider.setIncludeRoots(Arrays.asList(root.getAbsolutePath()), "/");
+    assertEquals(null, codeProvider.getSourceCodeFile("late.hh", "/", false));
+
+    File late = new File(root, "late.hh");
+    late.createNewFile();
+    assertEquals(null, codeProvider.getSourceCodeFile("late.hh", "/", false));
+
+    SourceCodeProvider freshProvider = new SourceCodeProvider();
+    freshProvider.setIncludeRoots(Arrays.asList(root.getAbsolutePath()), "/");
+    assertEquals(late.getCanonicalFile(), freshProvider.getSourceCodeFile("late.hh", "/", false));
+  }
+
+  @Test
+  public void names_differing_in_case_follow_the_file_system() throws IOException {
+    File root = tmp.newFolder("mixedcase");
+    File header = new File(root, "Foo.hh");
+    header.createNewFile();
+    codeProvider.setIncludeRoots(Arrays.asList(root.getAbsolutePath()), "/");
+
+    assertEquals(header.getCanonicalFile(), codeProvider.getSourceCodeFile("Foo.hh", "/", false));
+    File otherCase = new File(root, "foo.hh");
+    assertEquals(otherCase.isFile() ? otherCase.getCanonicalFile() : null,
+                 codeProvider.getSourceCodeFile("foo.hh", "/", false));
+    assertEquals(null, codeProvider.getSourceCodeFile("bar.hh", "/", false));
+  }
+
   @Test
   public void getting_source_code() {
     assertEquals("source code", codeProvider.getSourceCode(expected));
   }
+
+  @Test
+  public void source_code_is_cached() {
+    codeProvider.getSourceCode(expected);
+    assertEquals("source code", codeProvider.getSourceCode(expected));
+    assertEquals(1, codeProvider.getCacheMisses());
+    assertEquals(1, codeProvider.getCacheHits());
+  }
+
+  @Test
+  public void source_code_cache_is_bounded() throws IOException {
+    File other = tmp.newFile("other.hh");
+    FileUtils.writeStringToFile(other, "other");
+    codeProvider.setMaxCacheSize("source code".length() * 2);
+
+    codeProvider.getSourceCode(expected);
+    codeProvider.getSourceCode(other);
+    assertEquals(1, codeProvider.getCacheEvictions());
+
+    codeProvider.getSourceCode(expected);
+    assertEquals(3, codeProvider.getCacheMisses());
+  }
+
+  @Test
+  public void the_hash_of_cached_source_code_is_kept() {
+    assertEquals(null, codeProvider.getCachedContentHash(expected));
+    codeProvider.getSourceCode(expected);
+    assertEquals(HeaderSummaryCache.hash("source code"), codeProvider.getCachedContentHash(expected));
+
+    codeProvider.setMaxCacheSize(0);
+    assertEquals(null, codeProvider.getCachedContentHash(expected));
+  }
 }
@@ -26,6 +26,7 @@ import org.sonar.api.PropertyType;
 import org.sonar.api.SonarPlugin;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.resources.Qualifiers;
+import org.sonar.cxx.CxxConfiguration;
 import org.sonar.plugins.cxx.compiler.CxxCompilerGccParser;
 import org.sonar.plugins.cxx.compiler.CxxCompilerGccRuleRepository;
 import org.sonar.plugins.cxx.compiler.CxxCompilerSensor;
@@ -61,6 +62,13 @@ public final class CxxPlugin extends SonarPlugin {
   public static final String ERROR_RECOVERY_KEY = "sonar.cxx.errorRecoveryEnabled";
   public static final String FORCE_INCLUDE_FILES_KEY = "sonar.cxx.forceIncludes";
   public static final String C_FILES_PATTERNS_KEY = "sonar.cxx.cFilesPatterns";
+  public static final String THREADS_KEY = "sonar.cxx.threads";
+  public static final String MAX_EXPANDED_TOKENS_KEY = "sonar.cxx.preprocessor.maxExpandedTokens";
+  public static final String MAX_EXPANSION_DEPTH_KEY = "sonar.cxx.preprocessor.maxExpansionDepth";
+  public static final String MAX_PREPROCESSING_TIME_KEY = "sonar.cxx.preprocessor.maxTime";
+  public static final String COMPILATION_DATABASE_KEY = "sonar.cxx.compilationDatabase";
+  public static final String COMPACT_AST_KEY = "sonar.cxx.compactAst";
+  public static final String PARSE_PROFILING_KEY = "sonar.cxx.parseProfiling";
 
   private static List<PropertyDefinition> generalProperties() {
     String subcateg = "(1) General";
@@ -118,6 +126,59 @@ public final class CxxPlugin extends SonarPlugin {
       .index(6)
       .build(),
 
+      PropertyDefinition.builder(THREADS_KEY)
+      .defaultValue("1")
+      .name("Number of threads")
+      .description("Number of threads used to scan the source files. Each thread uses its own parser and check instances."
+                   + " Use 0 to use one thread per available processor.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.INTEGER)
+      .index(7)
+      .build(),
+
+      PropertyDefinition.builder(MAX_EXPANDED_TOKENS_KEY)
+      .defaultValue(Long.toString(CxxConfiguration.DEFAULT_MAX_EXPANDED_TOKENS))
+      .name("Maximum number of expanded tokens")
+      .description("Maximum number of tokens the preprocessor produces by macro expansion in one source file,"
+                   + " including its headers. Further macros are left unexpanded. Use 0 for no limit.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.INTEGER)
+      .index(8)
+      .build(),
+
+      PropertyDefinition.builder(MAX_EXPANSION_DEPTH_KEY)
+      .defaultValue(Integer.toString(CxxConfiguration.DEFAULT_MAX_EXPANSION_DEPTH))
+      .name("Maximum macro expansion depth")
+      .description("Maximum nesting depth of macro expansions. Deeper macros are left unexpanded. Use 0 for no limit.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.INTEGER)
+      .index(9)
+      .build(),
+
+      PropertyDefinition.builder(MAX_PREPROCESSING_TIME_KEY)
+      .defaultValue(Integer.toString(CxxConfiguration.DEFAULT_MAX_PREPROCESSING_SECONDS))
+      .name("Maximum macro expansion time")
+      .description("Time in seconds after which the preprocessor stops expanding macros in a source file."
+                   + " Use 0 for no limit.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.INTEGER)
+      .index(10)
+      .build(),
+
+      PropertyDefinition.builder(COMPILATION_DATABASE_KEY)
+      .name("Compilation database")
+      .description("Path to a Clang JSON compilation database (compile_commands.json), relative to projects root."
+                   + " The defines, include directories and force includes of every compile command are used"
+                   + " in addition to the settings above.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .index(11)
+      .build(),
+
       PropertyDefinition.builder(CxxPlugin.ERROR_RECOVERY_KEY)
       .defaultValue("False")
       .name("Parse error recovery")
@@ -125,6 +186,26 @@ public final class CxxPlugin extends SonarPlugin {
       .subCategory(subcateg)
       .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
       .type(PropertyType.BOOLEAN)
+      .build(),
+
+      PropertyDefinition.builder(COMPACT_AST_KEY)
+      .defaultValue("False")
+      .name("Compact syntax tree")
+      .description("Omits single child nodes of pass-through rules (e.g. idExpression, initializerClause) from the syntax tree"
+                   + " to save memory and time. XPath rules must not refer to these rules when enabled.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.BOOLEAN)
+      .build(),
+
+      PropertyDefinition.builder(PARSE_PROFILING_KEY)
+      .defaultValue("False")
+      .name("Parse profiling")
+      .description("Records per grammar rule the invocations, matches, backtracked tokens and parse time"
+                   + " and writes them to 'cxx-parse-profile.txt' in the working directory. Slows down the analysis.")
+      .subCategory(subcateg)
+      .onQualifiers(Qualifiers.PROJECT, Qualifiers.MODULE)
+      .type(PropertyType.BOOLEAN)
       .build()
       );
   }
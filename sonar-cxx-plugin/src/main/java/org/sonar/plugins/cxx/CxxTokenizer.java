@@ -21,7 +21,6 @@ package org.sonar.plugins.cxx;
 
 import java.io.File;
 import java.nio.charset.Charset;
-import java.util.List;
 
 import net.sourceforge.pmd.cpd.SourceCode;
 import net.sourceforge.pmd.cpd.TokenEntry;
@@ -29,10 +28,8 @@ import net.sourceforge.pmd.cpd.Tokenizer;
 import net.sourceforge.pmd.cpd.Tokens;
 
 import org.sonar.cxx.CxxConfiguration;
-import org.sonar.cxx.lexer.CxxLexer;
-
-import com.sonar.sslr.api.Token;
-import com.sonar.sslr.impl.Lexer;
+import org.sonar.cxx.lexer.CompactLexer;
+import org.sonar.cxx.lexer.CompactTokens;
 
 public class CxxTokenizer implements Tokenizer {
 
@@ -43,18 +40,16 @@ public class CxxTokenizer implements Tokenizer {
   }
 
   public final void tokenize(SourceCode source, Tokens cpdTokens) {
-    Lexer lexer = CxxLexer.create(new CxxConfiguration(charset));
+    CompactLexer lexer = new CompactLexer(new CxxConfiguration(charset));
     String fileName = source.getFileName();
-    List<Token> tokens = lexer.lex(new File(fileName));
-    for (Token token : tokens) {
-      TokenEntry cpdToken = new TokenEntry(getTokenImage(token), fileName, token.getLine());
-      cpdTokens.add(cpdToken);
+    CompactTokens tokens = lexer.lex(new File(fileName));
+    for (int i = 0; i < tokens.size(); i++) {
+      if (!tokens.isComment(i)) {
+        TokenEntry cpdToken = new TokenEntry(tokens.getValue(i), fileName, tokens.getLine(i));
+        cpdTokens.add(cpdToken);
+      }
     }
     cpdTokens.add(TokenEntry.getEOF());
   }
 
-  private String getTokenImage(Token token) {
-    return token.getValue();
-  }
-
 }
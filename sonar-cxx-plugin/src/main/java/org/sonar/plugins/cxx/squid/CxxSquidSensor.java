@@ -20,11 +20,21 @@
 package org.sonar.plugins.cxx.squid;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.sonar.api.batch.Sensor;
 import org.sonar.api.batch.SensorContext;
@@ -41,20 +51,27 @@ import org.sonar.api.measures.PersistenceMode;
 import org.sonar.api.measures.RangeDistributionBuilder;
 import org.sonar.api.resources.Project;
 import org.sonar.api.scan.filesystem.ModuleFileSystem;
+import org.sonar.api.utils.SonarException;
+import org.sonar.cxx.CompilationDatabase;
+import org.sonar.cxx.CompilationDatabase.FileSettings;
 import org.sonar.cxx.CxxAstScanner;
 import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.cxx.api.CxxMetric;
 import org.sonar.cxx.checks.CheckList;
-import org.sonar.cxx.parser.CxxParser;
+import org.sonar.cxx.parser.ParseProfile;
 import org.sonar.plugins.cxx.CxxLanguage;
 import org.sonar.plugins.cxx.utils.CxxMetrics;
+import org.sonar.plugins.cxx.utils.CxxUtils;
 import org.sonar.plugins.cxx.CxxPlugin;
 import org.sonar.squidbridge.AstScanner;
 import org.sonar.squidbridge.SquidAstVisitor;
 import org.sonar.squidbridge.api.CheckMessage;
+import org.sonar.squidbridge.api.SourceCodeSearchEngine;
 import org.sonar.squidbridge.api.SourceCode;
 import org.sonar.squidbridge.api.SourceFile;
 import org.sonar.squidbridge.api.SourceFunction;
+import org.sonar.squidbridge.api.SourceProject;
 import org.sonar.squidbridge.indexer.QueryByParent;
 import org.sonar.squidbridge.indexer.QueryByType;
 
@@ -67,12 +84,11 @@ public final class CxxSquidSensor implements Sensor {
   private static final Number[] FUNCTIONS_DISTRIB_BOTTOM_LIMITS = {1, 2, 4, 6, 8, 10, 12, 20, 30};
   private static final Number[] FILES_DISTRIB_BOTTOM_LIMITS = {0, 5, 10, 20, 30, 60, 90};
 
-  private final Checks<Object> checks;
+  private final CheckFactory checkFactory;
   private ActiveRules rules;
 
   private Project project;
   private SensorContext context;
-  private AstScanner<Grammar> scanner;
   private Settings conf;
   private ModuleFileSystem fs;
   private ResourcePerspectives perspectives;
@@ -82,7 +98,7 @@ public final class CxxSquidSensor implements Sensor {
    */
   public CxxSquidSensor(ResourcePerspectives perspectives, Settings conf,
                         ModuleFileSystem fs, CheckFactory checkFactory, ActiveRules rules) {
-    this.checks = checkFactory.create(CheckList.REPOSITORY_KEY).addAnnotatedChecks(CheckList.getChecks());
+    this.checkFactory = checkFactory;
     this.rules = rules;
     this.conf = conf;
     this.fs = fs;
@@ -100,14 +116,106 @@ public final class CxxSquidSensor implements Sensor {
     this.project = project;
     this.context = context;
 
-    List<SquidAstVisitor<Grammar>> visitors = new ArrayList<SquidAstVisitor<Grammar>>((Collection) checks.all());
-    this.scanner = CxxAstScanner.create(createConfiguration(this.fs, this.conf),
-                                        visitors.toArray(new SquidAstVisitor[visitors.size()]));
+    CxxConfiguration cxxConf = createConfiguration(this.fs, this.conf);
+    List<File> files = fs.files(CxxLanguage.SOURCE_QUERY);
+    int threads = getNumberOfThreads(files.size());
 
-    scanner.scanFiles(fs.files(CxxLanguage.SOURCE_QUERY));
+    // files with the same compile settings are scanned together, so that they share
+    // the preprocessor state, the include resolution and the header summaries
+    List<ScanWorker> workers = new ArrayList<ScanWorker>();
+    CompilationDatabase db = readCompilationDatabase();
+    if (db == null) {
+      workers.addAll(createWorkers(cxxConf, files, threads));
+    } else {
+      Map<FileSettings, List<File>> groups = db.group(files);
+      CxxUtils.LOG.info("Scanning {} source files in {} configuration groups", files.size(), groups.size());
+      for (Map.Entry<FileSettings, List<File>> group : groups.entrySet()) {
+        CxxConfiguration groupConf = CompilationDatabase.configure(cxxConf, group.getKey());
+        workers.addAll(createWorkers(groupConf, group.getValue(), Math.min(threads, group.getValue().size())));
+      }
+    }
+
+    if (threads == 1) {
+      for (ScanWorker worker : workers) {
+        worker.call();
+      }
+    } else {
+      CxxUtils.LOG.info("Scanning {} source files using {} threads", files.size(), threads);
+      scanInParallel(workers, threads);
+    }
+
+    save(files, workers);
+    writeParseProfile(cxxConf.getParseProfile());
+  }
 
-    Collection<SourceCode> squidSourceFiles = scanner.getIndex().search(new QueryByType(SourceFile.class));
-    save(squidSourceFiles);
+  private void writeParseProfile(ParseProfile profile) {
+    if (profile == null) {
+      return;
+    }
+    File report = new File(fs.workingDir() != null ? fs.workingDir() : fs.baseDir(), "cxx-parse-profile.txt");
+    try {
+      profile.write(report);
+      CxxUtils.LOG.info("Parse profile written to '{}'", report);
+    } catch (IOException e) {
+      CxxUtils.LOG.error("Cannot write the parse profile '{}': {}", report, e.getMessage());
+    }
+  }
+
+  private CompilationDatabase readCompilationDatabase() {
+    String path = conf.getString(CxxPlugin.COMPILATION_DATABASE_KEY);
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+    File file = new File(path);
+    if (!file.isAbsolute()) {
+      file = new File(fs.baseDir(), path);
+    }
+    try {
+      return CompilationDatabase.parse(file);
+    } catch (IOException e) {
+      CxxUtils.LOG.error("Cannot read the compilation database '{}': {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private int getNumberOfThreads(int numberOfFiles) {
+    int threads = conf.hasKey(CxxPlugin.THREADS_KEY) ? conf.getInt(CxxPlugin.THREADS_KEY) : 1;
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    return Math.max(1, Math.min(threads, numberOfFiles));
+  }
+
+  private List<ScanWorker> createWorkers(CxxConfiguration cxxConf, List<File> files, int threads) {
+    List<List<File>> partitions = new ArrayList<List<File>>();
+    for (int i = 0; i < threads; i++) {
+      partitions.add(new ArrayList<File>());
+    }
+    for (int i = 0; i < files.size(); i++) {
+      partitions.get(i % threads).add(files.get(i));
+    }
+
+    List<ScanWorker> workers = new ArrayList<ScanWorker>();
+    for (List<File> partition : partitions) {
+      workers.add(new ScanWorker(cxxConf, partition));
+    }
+    return workers;
+  }
+
+  private void scanInParallel(List<ScanWorker> workers, int threads) {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Void> result : executor.invokeAll(workers)) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SonarException("Interrupted while scanning the source files", e);
+    } catch (ExecutionException e) {
+      throw new SonarException("Cannot scan the source files", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   private CxxConfiguration createConfiguration(ModuleFileSystem fs, Settings conf) {
@@ -119,26 +227,43 @@ public final class CxxSquidSensor implements Sensor {
     }
     cxxConf.setIncludeDirectories(conf.getStringArray(CxxPlugin.INCLUDE_DIRECTORIES_KEY));
     cxxConf.setErrorRecoveryEnabled(conf.getBoolean(CxxPlugin.ERROR_RECOVERY_KEY));
+    cxxConf.setCompactAst(conf.getBoolean(CxxPlugin.COMPACT_AST_KEY));
     cxxConf.setForceIncludeFiles(conf.getStringArray(CxxPlugin.FORCE_INCLUDE_FILES_KEY));
     cxxConf.setCFilesPatterns(conf.getStringArray(CxxPlugin.C_FILES_PATTERNS_KEY));
     cxxConf.setHeaderFileSuffixes(conf.getStringArray(CxxPlugin.HEADER_FILE_SUFFIXES_KEY));
+    if (fs.workingDir() != null) {
+      cxxConf.setPrefixSnapshotDirectory(new File(fs.workingDir(), "cxx-prefix-snapshots"));
+    }
+    if (conf.hasKey(CxxPlugin.MAX_EXPANDED_TOKENS_KEY)) {
+      cxxConf.setMaxExpandedTokens(conf.getLong(CxxPlugin.MAX_EXPANDED_TOKENS_KEY));
+    }
+    if (conf.hasKey(CxxPlugin.MAX_EXPANSION_DEPTH_KEY)) {
+      cxxConf.setMaxExpansionDepth(conf.getInt(CxxPlugin.MAX_EXPANSION_DEPTH_KEY));
+    }
+    if (conf.hasKey(CxxPlugin.MAX_PREPROCESSING_TIME_KEY)) {
+      cxxConf.setMaxPreprocessingSeconds(conf.getInt(CxxPlugin.MAX_PREPROCESSING_TIME_KEY));
+    }
+    if (conf.getBoolean(CxxPlugin.PARSE_PROFILING_KEY)) {
+      cxxConf.setParseProfile(new ParseProfile());
+    }
     return cxxConf;
   }
 
-  private void save(Collection<SourceCode> squidSourceFiles) {
+  private void save(List<File> files, List<ScanWorker> workers) {
     int violationsCount = 0;
     DependencyAnalyzer dependencyAnalyzer = new DependencyAnalyzer(perspectives, project, context, rules);
-    for (SourceCode squidSourceFile : squidSourceFiles) {
-      SourceFile squidFile = (SourceFile) squidSourceFile;
+    for (ScannedFile scanned : collectScannedFiles(files, workers)) {
+      SourceFile squidFile = scanned.squidFile;
+      ScanWorker worker = scanned.worker;
       File ioFile = new File(squidFile.getKey());
 
       org.sonar.api.resources.File sonarFile = org.sonar.api.resources.File.fromIOFile(ioFile, project);
 
       saveMeasures(sonarFile, squidFile);
       saveFilesComplexityDistribution(sonarFile, squidFile);
-      saveFunctionsComplexityDistribution(sonarFile, squidFile);
-      violationsCount += saveViolations(sonarFile, squidFile);
-      dependencyAnalyzer.addFile(sonarFile, CxxParser.getIncludedFiles(ioFile));
+      saveFunctionsComplexityDistribution(worker.scanner.getIndex(), sonarFile, squidFile);
+      violationsCount += saveViolations(worker.checks, sonarFile, squidFile);
+      dependencyAnalyzer.addFile(sonarFile, worker.visitorContext.getPreprocessor().getIncludedFiles(ioFile));
     }
 
     Measure measure = new Measure(CxxMetrics.SQUID);
@@ -147,6 +272,34 @@ public final class CxxSquidSensor implements Sensor {
     dependencyAnalyzer.save();
   }
 
+  /**
+   * Collects the scanned files of all workers in the order of the input files.
+   * The workers get interleaved partitions (and, with a compilation database,
+   * configuration groups), so iterating them worker by worker would save the files,
+   * and report duplicated includes, in an order depending on the number of threads.
+   */
+  private static List<ScannedFile> collectScannedFiles(List<File> files, List<ScanWorker> workers) {
+    Map<String, Integer> inputOrder = new HashMap<String, Integer>();
+    for (int i = 0; i < files.size(); i++) {
+      inputOrder.put(files.get(i).getAbsolutePath(), i);
+    }
+
+    List<ScannedFile> scanned = new ArrayList<ScannedFile>();
+    for (ScanWorker worker : workers) {
+      for (SourceCode squidSourceFile : worker.scanner.getIndex().search(new QueryByType(SourceFile.class))) {
+        SourceFile squidFile = (SourceFile) squidSourceFile;
+        Integer index = inputOrder.get(new File(squidFile.getKey()).getAbsolutePath());
+        scanned.add(new ScannedFile(worker, squidFile, index == null ? Integer.MAX_VALUE : index));
+      }
+    }
+    Collections.sort(scanned, new Comparator<ScannedFile>() {
+      public int compare(ScannedFile a, ScannedFile b) {
+        return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+      }
+    });
+    return scanned;
+  }
+
   private void saveMeasures(org.sonar.api.resources.File sonarFile, SourceFile squidFile) {
     context.saveMeasure(sonarFile, CoreMetrics.FILES, squidFile.getDouble(CxxMetric.FILES));
     context.saveMeasure(sonarFile, CoreMetrics.LINES, squidFile.getDouble(CxxMetric.LINES));
@@ -161,8 +314,8 @@ public final class CxxSquidSensor implements Sensor {
     context.saveMeasure(sonarFile, CoreMetrics.PUBLIC_UNDOCUMENTED_API, squidFile.getDouble(CxxMetric.PUBLIC_UNDOCUMENTED_API));
   }
 
-  private void saveFunctionsComplexityDistribution(org.sonar.api.resources.File sonarFile, SourceFile squidFile) {
-    Collection<SourceCode> squidFunctionsInFile = scanner.getIndex().search(new QueryByParent(squidFile), new QueryByType(SourceFunction.class));
+  private void saveFunctionsComplexityDistribution(SourceCodeSearchEngine index, org.sonar.api.resources.File sonarFile, SourceFile squidFile) {
+    Collection<SourceCode> squidFunctionsInFile = index.search(new QueryByParent(squidFile), new QueryByType(SourceFunction.class));
     RangeDistributionBuilder complexityDistribution = new RangeDistributionBuilder(CoreMetrics.FUNCTION_COMPLEXITY_DISTRIBUTION, FUNCTIONS_DISTRIB_BOTTOM_LIMITS);
     for (SourceCode squidFunction : squidFunctionsInFile) {
       complexityDistribution.add(squidFunction.getDouble(CxxMetric.COMPLEXITY));
@@ -176,7 +329,7 @@ public final class CxxSquidSensor implements Sensor {
     context.saveMeasure(sonarFile, complexityDistribution.build().setPersistenceMode(PersistenceMode.MEMORY));
   }
 
-  private int saveViolations(org.sonar.api.resources.File sonarFile, SourceFile squidFile) {
+  private int saveViolations(Checks<Object> checks, org.sonar.api.resources.File sonarFile, SourceFile squidFile) {
     Collection<CheckMessage> messages = squidFile.getCheckMessages();
     int violationsCount = 0;
     if (messages != null) {
@@ -202,4 +355,42 @@ public final class CxxSquidSensor implements Sensor {
     return getClass().getSimpleName();
   }
 
+  private static final class ScannedFile {
+    private final ScanWorker worker;
+    private final SourceFile squidFile;
+    private final int index;
+
+    ScannedFile(ScanWorker worker, SourceFile squidFile, int index) {
+      this.worker = worker;
+      this.squidFile = squidFile;
+      this.index = index;
+    }
+  }
+
+  /**
+   * Scans a subset of the source files. Every worker owns its scanner, i.e. its
+   * preprocessor, grammar and check instances, so that workers can run concurrently.
+   */
+  private final class ScanWorker implements Callable<Void> {
+    private final Checks<Object> checks;
+    private final CxxVisitorContext<Grammar> visitorContext;
+    private final AstScanner<Grammar> scanner;
+    private final List<File> files;
+
+    ScanWorker(CxxConfiguration cxxConf, List<File> files) {
+      this.files = files;
+      this.checks = checkFactory.create(CheckList.REPOSITORY_KEY).addAnnotatedChecks(CheckList.getChecks());
+      this.visitorContext = new CxxVisitorContext<Grammar>(new SourceProject("Cxx Project"));
+
+      List<SquidAstVisitor<Grammar>> visitors = new ArrayList<SquidAstVisitor<Grammar>>((Collection) checks.all());
+      this.scanner = CxxAstScanner.create(visitorContext, cxxConf,
+                                          visitors.toArray(new SquidAstVisitor[visitors.size()]));
+    }
+
+    public Void call() {
+      scanner.scanFiles(files);
+      return null;
+    }
+  }
+
 }
@@ -25,22 +25,39 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.fest.assertions.Assertions.assertThat;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.rule.ActiveRule;
 import org.sonar.api.batch.rule.CheckFactory;
 import org.sonar.api.batch.rule.ActiveRules;
 import org.sonar.api.component.ResourcePerspectives;
 import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issuable;
+import org.sonar.api.issue.Issue;
 import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.measures.Metric;
 import org.sonar.api.resources.Directory;
 import org.sonar.api.resources.Project;
+import org.sonar.api.resources.Resource;
+import org.sonar.api.rule.RuleKey;
 import org.sonar.api.scan.filesystem.ModuleFileSystem;
+import org.sonar.cxx.checks.CheckList;
+import org.sonar.cxx.checks.CycleBetweenPackagesCheck;
+import org.sonar.cxx.checks.DuplicatedIncludeCheck;
 import org.sonar.plugins.cxx.CxxPlugin;
 import org.sonar.plugins.cxx.TestUtils;
 
@@ -149,6 +166,24 @@ public class CxxSquidSensorTest {
     verify(context).saveMeasure((Project) anyObject(), eq(CoreMetrics.PACKAGE_EDGES_WEIGHT), eq(0.0));
   }
 
+  @Test
+  public void testScanningWithSeveralThreads() {
+    // the same project is analysed sequentially and with more threads than
+    // the files are evenly divisible by: everything saved has to be the same
+    List<String> sequentialMeasures = new ArrayList<String>();
+    List<String> sequentialIssues = new ArrayList<String>();
+    analyseWithThreads(1, sequentialMeasures, sequentialIssues);
+
+    List<String> parallelMeasures = new ArrayList<String>();
+    List<String> parallelIssues = new ArrayList<String>();
+    analyseWithThreads(3, parallelMeasures, parallelIssues);
+
+    assertThat(sequentialIssues).isNotEmpty();
+    assertThat(savedFiles(parallelMeasures)).isEqualTo(savedFiles(sequentialMeasures));
+    assertThat(sorted(parallelMeasures)).isEqualTo(sorted(sequentialMeasures));
+    assertThat(sorted(parallelIssues)).isEqualTo(sorted(sequentialIssues));
+  }
+
   @Test
   public void testCircularPackageDependency() {
     setUpSensor(TestUtils.loadResource("circular-packages-project"), null);
@@ -166,13 +201,122 @@ public class CxxSquidSensorTest {
   }
 
   private void setUpSensor(File baseDir, String sourceDir){
+    setUpSensor(baseDir, sourceDir, mock(ResourcePerspectives.class), mock(ActiveRules.class));
+  }
+
+  private void setUpSensor(File baseDir, String sourceDir, ResourcePerspectives perspectives, ActiveRules rules){
     List<File> sourceDirs = new ArrayList<File>();
     sourceDirs.add(sourceDir == null ? baseDir : new File(baseDir, sourceDir));
     project = TestUtils.mockProject(baseDir, sourceDirs, emptyList);
     fs = TestUtils.mockFileSystem(baseDir, sourceDirs, emptyList);
-    ActiveRules rules = mock(ActiveRules.class);
     CheckFactory checkFactory = new CheckFactory(rules);
-    sensor = new CxxSquidSensor(mock(ResourcePerspectives.class),
-                                settings, fs, checkFactory, rules);
+    sensor = new CxxSquidSensor(perspectives, settings, fs, checkFactory, rules);
+  }
+
+  private void analyseWithThreads(int threads, List<String> measures, List<String> issues) {
+    settings.setProperty(CxxPlugin.THREADS_KEY, String.valueOf(threads));
+    setUpSensor(TestUtils.loadResource("circular-packages-project"), null,
+                recordingPerspectives(issues),
+                activeRules(CycleBetweenPackagesCheck.RULE_KEY, DuplicatedIncludeCheck.RULE_KEY, "NewLineAtEOF"));
+    sensor.analyse(project, recordingContext(measures));
+  }
+
+  private static ActiveRules activeRules(String... keys) {
+    ActiveRules rules = mock(ActiveRules.class);
+    List<ActiveRule> active = new ArrayList<ActiveRule>();
+    for (String key : keys) {
+      RuleKey ruleKey = RuleKey.of(CheckList.REPOSITORY_KEY, key);
+      ActiveRule rule = mock(ActiveRule.class);
+      when(rule.ruleKey()).thenReturn(ruleKey);
+      when(rules.find(ruleKey)).thenReturn(rule);
+      active.add(rule);
+    }
+    when(rules.findByRepository(CheckList.REPOSITORY_KEY)).thenReturn(active);
+    return rules;
+  }
+
+  /**
+   * Records every saveMeasure call as "resource metric value".
+   */
+  private static SensorContext recordingContext(final List<String> measures) {
+    return mock(SensorContext.class, new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        if ("saveMeasure".equals(invocation.getMethod().getName())) {
+          StringBuilder call = new StringBuilder();
+          for (Object argument : invocation.getArguments()) {
+            call.append(describe(argument)).append(' ');
+          }
+          measures.add(call.toString().trim());
+        }
+        return Mockito.RETURNS_DEFAULTS.answer(invocation);
+      }
+    });
+  }
+
+  /**
+   * Records every built issue as "resource ruleKey=... line=... message=...".
+   */
+  private static ResourcePerspectives recordingPerspectives(final List<String> issues) {
+    ResourcePerspectives perspectives = mock(ResourcePerspectives.class);
+    when(perspectives.as((Class) anyObject(), (Resource) anyObject())).thenAnswer(new Answer<Issuable>() {
+      public Issuable answer(InvocationOnMock invocation) {
+        return recordingIssuable(describe(invocation.getArguments()[1]), issues);
+      }
+    });
+    return perspectives;
+  }
+
+  private static Issuable recordingIssuable(final String resource, final List<String> issues) {
+    final StringBuilder issue = new StringBuilder(resource);
+    Issuable.IssueBuilder issueBuilder = mock(Issuable.IssueBuilder.class, new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        String method = invocation.getMethod().getName();
+        if ("build".equals(method)) {
+          issues.add(issue.toString());
+          issue.setLength(0);
+          issue.append(resource);
+          return mock(Issue.class);
+        }
+        if (invocation.getMethod().getReturnType() == Issuable.IssueBuilder.class) {
+          issue.append(' ').append(method).append('=').append(Arrays.toString(invocation.getArguments()));
+          return invocation.getMock();
+        }
+        return Mockito.RETURNS_DEFAULTS.answer(invocation);
+      }
+    });
+    Issuable issuable = mock(Issuable.class);
+    when(issuable.newIssueBuilder()).thenReturn(issueBuilder);
+    when(issuable.addIssue((Issue) anyObject())).thenReturn(true);
+    return issuable;
+  }
+
+  private static String describe(Object argument) {
+    if (argument instanceof Resource) {
+      return ((Resource) argument).getKey();
+    }
+    if (argument instanceof Metric) {
+      return ((Metric) argument).getKey();
+    }
+    if (argument instanceof Measure) {
+      Measure measure = (Measure) argument;
+      return measure.getMetricKey() + "=" + measure.getValue() + "/" + measure.getData();
+    }
+    return String.valueOf(argument);
+  }
+
+  private static List<String> savedFiles(List<String> measures) {
+    List<String> files = new ArrayList<String>();
+    for (String measure : measures) {
+      if (measure.endsWith(" " + CoreMetrics.FILES_KEY + " 1.0")) {
+        files.add(measure);
+      }
+    }
+    return files;
+  }
+
+  private static List<String> sorted(List<String> list) {
+    List<String> result = new ArrayList<String>(list);
+    Collections.sort(result);
+    return result;
   }
 }
@@ -19,15 +19,19 @@
  */
 package org.sonar.cxx.toolkit;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.List;
 
 import org.sonar.colorizer.KeywordsTokenizer;
 import org.sonar.colorizer.Tokenizer;
 import org.sonar.cxx.CxxConfiguration;
+import org.sonar.cxx.CxxVisitorContext;
 import org.sonar.cxx.api.CxxKeyword;
+import org.sonar.cxx.api.CxxMetric;
 import org.sonar.cxx.parser.CxxParser;
+import org.sonar.cxx.parser.ParseProfile;
 import org.sonar.squidbridge.SquidAstVisitorContext;
-import org.sonar.squidbridge.SquidAstVisitorContextImpl;
 import org.sonar.squidbridge.api.SourceProject;
 import org.sonar.sslr.toolkit.Toolkit;
 
@@ -40,16 +44,36 @@ public final class CxxToolkit {
   }
 
   public static void main(String[] args) {
+    if (args.length == 2 && "-profile".equals(args[0])) {
+      profile(new File(args[1]).getAbsoluteFile());
+      return;
+    }
+
     System.setProperty("com.apple.mrj.application.apple.menu.about.name", "SSDK");
 
     CxxConfiguration config = new CxxConfiguration();
     config.setErrorRecoveryEnabled(false);
     SquidAstVisitorContext<Grammar> context =
-      new SquidAstVisitorContextImpl<Grammar>(new SourceProject(""));
+      new CxxVisitorContext<Grammar>(new SourceProject(""));
 
     new Toolkit(CxxParser.create(context, config), getCxxTokenizers(), "SSLR Cxx Toolkit").run();
   }
 
+  /**
+   * Parses a single file with parse profiling enabled and prints the per
+   * rule statistics.
+   */
+  private static void profile(File file) {
+    CxxConfiguration config = new CxxConfiguration();
+    config.setParseProfile(new ParseProfile());
+    CxxVisitorContext<Grammar> context = new CxxVisitorContext<Grammar>(new SourceProject(""));
+    context.setFile(file, CxxMetric.FILES);
+
+    CxxParser.create(context, config).parse(file);
+    context.getPreprocessor().finishedPreprocessing(file);
+    config.getParseProfile().write(new PrintWriter(System.out));
+  }
+
   public static List<Tokenizer> getCxxTokenizers() {
     return ImmutableList.of(
         (Tokenizer) new KeywordsTokenizer("<span class=\"k\">", "</span>", CxxKeyword.keywordValues()));